@@ -0,0 +1,92 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures whole batches through ConversionEngine.runBatch(), including disk I/O, with
+ * varying numbers of threads, with and without the staged pipeline. Each operation is one
+ * complete batch over the same set of generated source files, overwriting the previous
+ * operation's output.
+ *
+ * @author scorbo2
+ * @since 2024-01-11
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({"JPEG_TO_PNG", "PNG_TO_JPEG_95"})
+    public BenchmarkConversion conversion;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    @Param({"1920x1080"})
+    public String size;
+
+    @Param({"32"})
+    public int imageCount;
+
+    private Path dir;
+    private List<File> sourceFiles;
+    private ConversionEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] dimensions = SyntheticImages.parseSize(size);
+        dir = Files.createTempDirectory("imageconverter-benchmark");
+        sourceFiles = SyntheticImages.writeBatch(dir.toFile(), imageCount, dimensions[0], dimensions[1],
+                                                 SyntheticImages.Kind.RGB, conversion.getSourceFormat());
+        engine = new ConversionEngine(conversion.settings()
+                                                .setOverwriteIfExists(true)
+                                                .setThreadCount(threads)
+                                                .setPipelined(pipelined)
+                                                .build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public BatchResult runBatch() {
+        BatchResult result = engine.runBatch(sourceFiles, (srcFile, targetFile, outcome, timeSpent) -> {
+        }, () -> false);
+        if (result.getConvertedCount() != imageCount) {
+            throw new IllegalStateException("Only " + result.getConvertedCount() + " of " + imageCount
+                                                + " images were converted.");
+        }
+        return result;
+    }
+}
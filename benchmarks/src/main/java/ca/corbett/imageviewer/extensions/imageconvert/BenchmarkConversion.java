@@ -0,0 +1,48 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+/**
+ * The conversions offered by ImageConverterDialog, as benchmark parameters. Jpeg output
+ * is measured at a few quality levels, and png output at each compression level, since
+ * both have a large effect on encode time.
+ *
+ * @author scorbo2
+ * @since 2024-01-11
+ */
+public enum BenchmarkConversion {
+    JPEG_TO_PNG_FAST("jpg", ConversionSettings.OutputFormat.PNG, 0.95f, ConversionSettings.PngCompression.FAST),
+    JPEG_TO_PNG("jpg", ConversionSettings.OutputFormat.PNG, 0.95f, ConversionSettings.PngCompression.BALANCED),
+    JPEG_TO_PNG_SMALL("jpg", ConversionSettings.OutputFormat.PNG, 0.95f, ConversionSettings.PngCompression.SMALL),
+    PNG_TO_JPEG_60("png", ConversionSettings.OutputFormat.JPEG, 0.60f, ConversionSettings.PngCompression.BALANCED),
+    PNG_TO_JPEG_80("png", ConversionSettings.OutputFormat.JPEG, 0.80f, ConversionSettings.PngCompression.BALANCED),
+    PNG_TO_JPEG_95("png", ConversionSettings.OutputFormat.JPEG, 0.95f, ConversionSettings.PngCompression.BALANCED);
+
+    private final String sourceFormat;
+    private final ConversionSettings.OutputFormat outputFormat;
+    private final float jpegQuality;
+    private final ConversionSettings.PngCompression pngCompression;
+
+    BenchmarkConversion(String sourceFormat, ConversionSettings.OutputFormat outputFormat, float jpegQuality,
+                        ConversionSettings.PngCompression pngCompression) {
+        this.sourceFormat = sourceFormat;
+        this.outputFormat = outputFormat;
+        this.jpegQuality = jpegQuality;
+        this.pngCompression = pngCompression;
+    }
+
+    /**
+     * The ImageIO format name (and file extension) of the source images.
+     */
+    public String getSourceFormat() {
+        return sourceFormat;
+    }
+
+    /**
+     * Returns a settings builder for this conversion, with everything else at its defaults.
+     */
+    public ConversionSettings.Builder settings() {
+        return ConversionSettings.builder()
+                                 .setOutputFormat(outputFormat)
+                                 .setJpegQuality(jpegQuality)
+                                 .setPngCompression(pngCompression);
+    }
+}
@@ -0,0 +1,104 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decode and encode steps of a single conversion, entirely in memory, so that
+ * changes to the codecs can be measured without disk noise. The decode() and encode()
+ * benchmarks isolate each step, and convert() does both, as a batch worker would.
+ * <p>
+ * Note that the ARGB and RGB variants of JPEG_TO_PNG are the same, as jpeg sources never
+ * have an alpha channel.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-11
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"JPEG_TO_PNG_FAST", "JPEG_TO_PNG", "JPEG_TO_PNG_SMALL", "PNG_TO_JPEG_60", "PNG_TO_JPEG_80",
+        "PNG_TO_JPEG_95"})
+    public BenchmarkConversion conversion;
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"RGB", "ARGB", "GRAY"})
+    public SyntheticImages.Kind kind;
+
+    private ConversionEngine engine;
+    private CodecPool codecs;
+    private File sourceFile;
+    private byte[] sourceBytes;
+    private BufferedImage decodedImage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] dimensions = SyntheticImages.parseSize(size);
+        BufferedImage image = SyntheticImages.generate(dimensions[0], dimensions[1], kind, 1);
+        sourceBytes = SyntheticImages.encode(image, conversion.getSourceFormat());
+        engine = new ConversionEngine(conversion.settings().build());
+        codecs = new CodecPool(engine);
+
+        // Only the extension of this file is used, to choose the reader:
+        sourceFile = new File("synthetic." + conversion.getSourceFormat());
+        decodedImage = codecs.read(sourceFile, sourceBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        codecs.close();
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return codecs.read(sourceFile, sourceBytes);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return encode(decodedImage);
+    }
+
+    @Benchmark
+    public int convert() throws IOException {
+        return encode(codecs.read(sourceFile, sourceBytes));
+    }
+
+    /**
+     * Encodes into a pooled buffer, as a batch worker would, and returns the encoded size.
+     */
+    private int encode(BufferedImage image) throws IOException {
+        OutputBuffer encoded = codecs.acquireBuffer();
+        try {
+            engine.encodeImage(image, codecs, encoded);
+            return encoded.size();
+        }
+        finally {
+            codecs.releaseBuffer(encoded);
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+/**
+ * An end-to-end load test of the batch path: generates a SyntheticCorpus, then converts the
+ * whole tree with ConversionEngine, exactly as a recursive conversion from ImageConverterDialog
+ * (through ImageConverterThread) or ImageConverterCli would, but headlessly and without
+ * ImageViewer. It measures throughput, peak heap and time spent in garbage collection over
+ * several runs, and compares them with a baseline stored in a properties file, failing if any
+ * of them has got worse by more than the allowed tolerance. Unlike the JMH benchmarks, this
+ * looks at a whole batch at a realistic scale, so it catches problems like memory that grows
+ * with the size of the tree, or a batch that slows down as it goes.
+ * <p>
+ * Each run converts the same tree: files converted by one run are deleted before the next,
+ * while the targets that the corpus was generated with are left alone, so every run skips the
+ * same files. Everything runs offline. Baseline numbers only mean something on the machine and
+ * JVM settings they were recorded with, so record one on the machine the test will run on:
+ * </p>
+ * <pre>
+ *     java -Xmx1g -cp target/benchmarks.jar ca.corbett.imageviewer.extensions.imageconvert.LoadTest \
+ *         --images 2000 --update-baseline
+ * </pre>
+ * Run with --help for the full list of options.
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class LoadTest {
+
+    /**
+     * The default baseline file, in the working directory.
+     */
+    public static final String DEFAULT_BASELINE_FILE = "loadtest-baseline.properties";
+
+    /**
+     * Garbage collection time is small and noisy, so it's allowed to grow by this much on top of the
+     * tolerance before it counts as a regression.
+     */
+    private static final long GC_SLACK_MILLIS = 50;
+
+    private static final String SCENARIO_KEY = "scenario";
+    private static final String IMAGES_PER_SECOND_KEY = "imagesPerSecond";
+    private static final String MEGABYTES_PER_SECOND_KEY = "megabytesPerSecond";
+    private static final String PEAK_HEAP_KEY = "peakHeapBytes";
+    private static final String GC_MILLIS_KEY = "gcMillis";
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private final SyntheticCorpus.Builder corpusBuilder = SyntheticCorpus.builder();
+    private ConversionSettings.Builder settingsBuilder;
+    private int runs = 3;
+    private int warmupRuns = 1;
+    private File corpusDir;
+    private File baselineFile = new File(DEFAULT_BASELINE_FILE);
+    private double tolerance = 0.10;
+    private double heapTolerance = 0.25;
+    private boolean updateBaseline;
+
+    LoadTest(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(new LoadTest(System.out, System.err).run(args));
+    }
+
+    /**
+     * Parses the given arguments and runs the load test they describe.
+     *
+     * @param args Command line arguments.
+     * @return A process exit code: 0 for success, 1 for a regression or a failed file, 2 for bad arguments
+     * or a baseline that doesn't match.
+     */
+    int run(String[] args) {
+        try {
+            if (!parseArgs(args)) {
+                return 0;
+            }
+        }
+        catch (IllegalArgumentException iae) {
+            err.println("Error: " + iae.getMessage());
+            err.println("Use --help for usage information.");
+            return 2;
+        }
+
+        SyntheticCorpus corpus = corpusBuilder.build();
+        ConversionSettings settings = settingsBuilder.build();
+        String scenario = corpus.getDescription() + "; to " + settings.getOutputFormat() + ", "
+            + settings.getThreadCount() + " threads" + (settings.isPipelined() ? ", pipelined" : "")
+            + "; max heap " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + "MB";
+        boolean deleteCorpus = corpusDir == null;
+        try {
+            File root = prepareCorpus(corpus);
+            try {
+                Measurement measurement = measure(root, settings);
+                if (measurement == null) {
+                    return 1;
+                }
+                return checkBaseline(scenario, measurement);
+            }
+            finally {
+                if (deleteCorpus) {
+                    deleteTree(root.toPath());
+                }
+            }
+        }
+        catch (IOException ioe) {
+            err.println("Error: " + ioe.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Generates the corpus, into a temporary directory unless one was given. A directory that was
+     * given and isn't empty is assumed to hold a corpus from an earlier run with the same options.
+     */
+    private File prepareCorpus(SyntheticCorpus corpus) throws IOException {
+        File root = corpusDir;
+        if (root == null) {
+            root = Files.createTempDirectory("imageconverter-loadtest").toFile();
+        }
+        else {
+            String[] existing = root.list();
+            if (existing != null && existing.length > 0) {
+                out.println("Using the existing corpus in " + root.getAbsolutePath());
+                return root;
+            }
+        }
+        out.println("Generating corpus (" + corpus.getDescription() + ")...");
+        long startTime = System.currentTimeMillis();
+        SyntheticCorpus.Summary summary = corpus.generate(root);
+        out.println("Generated " + summary + " in " + (System.currentTimeMillis() - startTime) + "ms");
+        return root;
+    }
+
+    /**
+     * Runs the warmup and measured batches, and sums up the measured ones. Returns null if any
+     * file failed to convert, as the numbers would mean nothing.
+     */
+    private Measurement measure(File root, ConversionSettings settings) {
+        List<Measurement> measurements = new ArrayList<>();
+        for (int i = 0; i < warmupRuns + runs; i++) {
+            boolean warmup = i < warmupRuns;
+            Measurement measurement = runBatch(root, settings);
+            if (measurement == null) {
+                return null;
+            }
+            out.println((warmup ? "Warmup " + (i + 1) : "Run " + (i - warmupRuns + 1)) + ": " + measurement);
+            if (!warmup) {
+                measurements.add(measurement);
+            }
+        }
+        return Measurement.combine(measurements);
+    }
+
+    private Measurement runBatch(File root, ConversionSettings settings) {
+        Queue<File> converted = new ConcurrentLinkedQueue<>();
+        Queue<String> problems = new ConcurrentLinkedQueue<>();
+        ConversionListener listener = (srcFile, targetFile, outcome, timeSpent) -> {
+            if (outcome == ConversionEngine.OperationOutcome.Success) {
+                converted.add(targetFile);
+            }
+            else if (outcome != ConversionEngine.OperationOutcome.SkippedBecauseExists) {
+                problems.add(outcome + ": " + srcFile.getPath());
+            }
+        };
+
+        // Start every run from the same place, so that one run's garbage isn't counted against the next:
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long[] gcBefore = getGcTotals();
+
+        SourceFileScanner scanner = new SourceFileScanner(List.of(root), true, settings);
+        BatchResult result = new ConversionEngine(settings).runBatch(scanner, null, listener, () -> false);
+
+        long[] gcAfter = getGcTotals();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        // Put the tree back the way it was for the next run:
+        for (File file : converted) {
+            if (!file.delete()) {
+                err.println("Warning: unable to delete " + file.getPath());
+            }
+        }
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                err.println(problem);
+            }
+            err.println("Error: " + problems.size() + " files could not be converted.");
+            return null;
+        }
+
+        ConversionMetrics metrics = result.getMetrics();
+        double seconds = Math.max(result.getElapsedTime(), 1) / 1000.0;
+        return new Measurement(result.getConvertedCount(), result.getSkippedCount(), result.getElapsedTime(),
+                               result.getConvertedCount() / seconds,
+                               (metrics.getBytesRead() + metrics.getBytesWritten()) / (1024.0 * 1024) / seconds,
+                               peakHeap, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    /**
+     * Returns the total {time in ms, count} of garbage collections so far, over all collectors.
+     */
+    private static long[] getGcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionTime());
+            totals[1] += Math.max(0, collector.getCollectionCount());
+        }
+        return totals;
+    }
+
+    /**
+     * Compares the measurement with the baseline, or records it as the new baseline.
+     */
+    private int checkBaseline(String scenario, Measurement measurement) throws IOException {
+        out.println("Result: " + measurement);
+        if (updateBaseline || !baselineFile.exists()) {
+            Properties baseline = new Properties();
+            baseline.setProperty(SCENARIO_KEY, scenario);
+            baseline.setProperty(IMAGES_PER_SECOND_KEY, Double.toString(measurement.imagesPerSecond));
+            baseline.setProperty(MEGABYTES_PER_SECOND_KEY, Double.toString(measurement.megabytesPerSecond));
+            baseline.setProperty(PEAK_HEAP_KEY, Long.toString(measurement.peakHeapBytes));
+            baseline.setProperty(GC_MILLIS_KEY, Long.toString(measurement.gcMillis));
+            try (OutputStream outStream = new FileOutputStream(baselineFile)) {
+                baseline.store(outStream, "ImageConverter load test baseline");
+            }
+            out.println("Recorded the baseline in " + baselineFile.getAbsolutePath());
+            return 0;
+        }
+
+        Properties baseline = new Properties();
+        try (InputStream inStream = new FileInputStream(baselineFile)) {
+            baseline.load(inStream);
+        }
+        if (!scenario.equals(baseline.getProperty(SCENARIO_KEY))) {
+            err.println("Error: the baseline in " + baselineFile.getPath() + " was recorded for a different scenario:");
+            err.println("  baseline: " + baseline.getProperty(SCENARIO_KEY));
+            err.println("  this run: " + scenario);
+            err.println("Use --update-baseline to replace it, or --baseline to use another file.");
+            return 2;
+        }
+
+        double baseImagesPerSecond;
+        long basePeakHeap;
+        long baseGcMillis;
+        try {
+            baseImagesPerSecond = Double.parseDouble(baseline.getProperty(IMAGES_PER_SECOND_KEY));
+            basePeakHeap = Long.parseLong(baseline.getProperty(PEAK_HEAP_KEY));
+            baseGcMillis = Long.parseLong(baseline.getProperty(GC_MILLIS_KEY));
+        }
+        catch (NullPointerException | NumberFormatException e) {
+            throw new IOException("Baseline file " + baselineFile.getPath() + " is incomplete or corrupt.");
+        }
+
+        List<String> regressions = new ArrayList<>();
+        if (measurement.imagesPerSecond < baseImagesPerSecond * (1 - tolerance)) {
+            regressions.add(String.format("throughput fell from %.1f to %.1f images/s",
+                                          baseImagesPerSecond, measurement.imagesPerSecond));
+        }
+        if (measurement.peakHeapBytes > basePeakHeap * (1 + heapTolerance)) {
+            regressions.add(String.format("peak heap grew from %dMB to %dMB",
+                                          basePeakHeap / (1024 * 1024), measurement.peakHeapBytes / (1024 * 1024)));
+        }
+        if (measurement.gcMillis > baseGcMillis * (1 + tolerance) + GC_SLACK_MILLIS) {
+            regressions.add(String.format("GC time grew from %dms to %dms", baseGcMillis, measurement.gcMillis));
+        }
+        out.println(String.format("Baseline: %.1f images/s, peak heap %dMB, GC %dms",
+                                  baseImagesPerSecond, basePeakHeap / (1024 * 1024), baseGcMillis));
+        if (regressions.isEmpty()) {
+            out.println("PASSED");
+            return 0;
+        }
+        for (String regression : regressions) {
+            out.println("Regression: " + regression);
+        }
+        out.println("FAILED");
+        return 1;
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Parses our arguments.
+     *
+     * @return false if the caller only asked for help, true otherwise.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    private boolean parseArgs(String[] args) {
+        settingsBuilder = ConversionSettings.builder();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    printUsage();
+                    return false;
+                case "--images":
+                    corpusBuilder.setImageCount(requirePositive(args, ++i, arg));
+                    break;
+                case "--depth":
+                    int depth = requireInt(args, ++i, arg);
+                    if (depth < 0) {
+                        throw new IllegalArgumentException("Depth must not be negative.");
+                    }
+                    corpusBuilder.setDepth(depth);
+                    break;
+                case "--fanout":
+                    corpusBuilder.setFanout(requirePositive(args, ++i, arg));
+                    break;
+                case "--sizes":
+                    List<int[]> sizes = new ArrayList<>();
+                    for (String size : requireValue(args, ++i, arg).split(",")) {
+                        try {
+                            int[] dimensions = SyntheticImages.parseSize(size);
+                            if (dimensions[0] < 1 || dimensions[1] < 1) {
+                                throw new IllegalArgumentException("Image sizes must be at least 1x1.");
+                            }
+                            sizes.add(dimensions);
+                        }
+                        catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            throw new IllegalArgumentException("Sizes must be given as WxH,WxH..., but got: " + size);
+                        }
+                    }
+                    corpusBuilder.setSizes(sizes);
+                    break;
+                case "--png-fraction":
+                    corpusBuilder.setPngFraction(requireFraction(args, ++i, arg));
+                    break;
+                case "--alpha-fraction":
+                    corpusBuilder.setAlphaFraction(requireFraction(args, ++i, arg));
+                    break;
+                case "--existing-fraction":
+                    corpusBuilder.setExistingTargetFraction(requireFraction(args, ++i, arg));
+                    break;
+                case "--seed":
+                    corpusBuilder.setSeed(requireInt(args, ++i, arg));
+                    break;
+                case "--corpus":
+                    corpusDir = new File(requireValue(args, ++i, arg));
+                    break;
+                case "--to":
+                    String format = requireValue(args, ++i, arg).toLowerCase();
+                    if ("png".equals(format)) {
+                        settingsBuilder.setOutputFormat(ConversionSettings.OutputFormat.PNG);
+                    }
+                    else if ("jpg".equals(format) || "jpeg".equals(format)) {
+                        settingsBuilder.setOutputFormat(ConversionSettings.OutputFormat.JPEG);
+                    }
+                    else {
+                        throw new IllegalArgumentException("Unknown output format: " + format);
+                    }
+                    break;
+                case "--threads":
+                    settingsBuilder.setThreadCount(requirePositive(args, ++i, arg));
+                    break;
+                case "--pipeline":
+                    settingsBuilder.setPipelined(true);
+                    break;
+                case "--runs":
+                    runs = requirePositive(args, ++i, arg);
+                    break;
+                case "--warmup":
+                    warmupRuns = requireInt(args, ++i, arg);
+                    if (warmupRuns < 0) {
+                        throw new IllegalArgumentException("Warmup runs must not be negative.");
+                    }
+                    break;
+                case "--baseline":
+                    baselineFile = new File(requireValue(args, ++i, arg));
+                    break;
+                case "--tolerance":
+                    int percent = requireInt(args, ++i, arg);
+                    if (percent < 0) {
+                        throw new IllegalArgumentException("Tolerance must not be negative.");
+                    }
+                    tolerance = percent / 100.0;
+                    break;
+                case "--heap-tolerance":
+                    int heapPercent = requireInt(args, ++i, arg);
+                    if (heapPercent < 0) {
+                        throw new IllegalArgumentException("Heap tolerance must not be negative.");
+                    }
+                    heapTolerance = heapPercent / 100.0;
+                    break;
+                case "--update-baseline":
+                    updateBaseline = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return true;
+    }
+
+    private static String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Option " + option + " requires a value.");
+        }
+        return args[index];
+    }
+
+    private static int requireInt(String[] args, int index, String option) {
+        String value = requireValue(args, index, option);
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option " + option + " requires a number, but got: " + value);
+        }
+    }
+
+    private static int requirePositive(String[] args, int index, String option) {
+        int value = requireInt(args, index, option);
+        if (value < 1) {
+            throw new IllegalArgumentException("Option " + option + " must be at least 1.");
+        }
+        return value;
+    }
+
+    private static double requireFraction(String[] args, int index, String option) {
+        String value = requireValue(args, index, option);
+        try {
+            double fraction = Double.parseDouble(value);
+            if (fraction >= 0 && fraction <= 1) {
+                return fraction;
+            }
+        }
+        catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Option " + option + " requires a number from 0 to 1, but got: " + value);
+    }
+
+    private void printUsage() {
+        out.println("Usage: LoadTest [options]");
+        out.println();
+        out.println("Generates a tree of synthetic images, converts it several times, and compares throughput,");
+        out.println("peak heap and GC time with a stored baseline. Exits with 1 if any of them regressed.");
+        out.println();
+        out.println("Corpus options:");
+        out.println("  --images N             How many source images to generate (default 200).");
+        out.println("  --depth N              Levels of subdirectories (default 2).");
+        out.println("  --fanout N             Subdirectories per directory (default 3).");
+        out.println("  --sizes WxH,...        Image sizes to pick from (default 640x480,1920x1080).");
+        out.println("  --png-fraction F       Share of images written as png, the rest jpeg (default 0.5).");
+        out.println("  --alpha-fraction F     Share of png images with alpha (default 0.25).");
+        out.println("  --existing-fraction F  Share of images already converted, to be skipped (default 0.1).");
+        out.println("  --seed N               Seed for the corpus; the same seed gives the same files (default 1).");
+        out.println("  --corpus DIR           Generate the corpus here and keep it, or reuse it if not empty.");
+        out.println("                         By default a temporary directory is used and deleted afterwards.");
+        out.println();
+        out.println("Conversion options:");
+        out.println("  --to png|jpg           Output format (default png).");
+        out.println("  --threads N            Worker threads (default: number of processors).");
+        out.println("  --pipeline             Overlap reading, decoding, encoding and writing.");
+        out.println();
+        out.println("Measurement options:");
+        out.println("  --warmup N             Runs to do before measuring (default 1).");
+        out.println("  --runs N               Runs to measure (default 3).");
+        out.println("  --baseline FILE        Baseline file (default " + DEFAULT_BASELINE_FILE + ").");
+        out.println("                         If it doesn't exist, this run's results are recorded in it.");
+        out.println("  --tolerance PCT        How much slower, or more time in GC, than the baseline is allowed");
+        out.println("                         (default 10).");
+        out.println("  --heap-tolerance PCT   How much more peak heap than the baseline is allowed (default 25).");
+        out.println("                         Peak heap depends on when collections happen, so it varies more.");
+        out.println("  --update-baseline      Record this run's results as the new baseline.");
+        out.println("  -h, --help             Show this help.");
+    }
+
+    /**
+     * The numbers from one run, or the combination of several.
+     */
+    private static final class Measurement {
+        private final int convertedCount;
+        private final int skippedCount;
+        private final long elapsedMillis;
+        private final double imagesPerSecond;
+        private final double megabytesPerSecond;
+        private final long peakHeapBytes;
+        private final long gcMillis;
+        private final long gcCount;
+
+        private Measurement(int convertedCount, int skippedCount, long elapsedMillis, double imagesPerSecond,
+                            double megabytesPerSecond, long peakHeapBytes, long gcMillis, long gcCount) {
+            this.convertedCount = convertedCount;
+            this.skippedCount = skippedCount;
+            this.elapsedMillis = elapsedMillis;
+            this.imagesPerSecond = imagesPerSecond;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.peakHeapBytes = peakHeapBytes;
+            this.gcMillis = gcMillis;
+            this.gcCount = gcCount;
+        }
+
+        /**
+         * Takes the median of each timing, which shrugs off one slow run, and the highest peak heap,
+         * since the heap a batch needs is the most it ever used.
+         */
+        private static Measurement combine(List<Measurement> measurements) {
+            Measurement first = measurements.get(0);
+            long peakHeap = 0;
+            for (Measurement measurement : measurements) {
+                peakHeap = Math.max(peakHeap, measurement.peakHeapBytes);
+            }
+            return new Measurement(first.convertedCount, first.skippedCount,
+                                   (long)median(measurements, m -> m.elapsedMillis),
+                                   median(measurements, m -> m.imagesPerSecond),
+                                   median(measurements, m -> m.megabytesPerSecond),
+                                   peakHeap,
+                                   (long)median(measurements, m -> m.gcMillis),
+                                   (long)median(measurements, m -> m.gcCount));
+        }
+
+        private static double median(List<Measurement> measurements,
+                                     ToDoubleFunction<Measurement> value) {
+            double[] values = measurements.stream().mapToDouble(value).toArray();
+            Arrays.sort(values);
+            int middle = values.length / 2;
+            return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d converted, %d skipped in %dms: %.1f images/s, %.1f MB/s, peak heap %dMB,"
+                                     + " GC %dms (%d collections)",
+                                 convertedCount, skippedCount, elapsedMillis, imagesPerSecond, megabytesPerSecond,
+                                 peakHeapBytes / (1024 * 1024), gcMillis, gcCount);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FileSource that makes each file take a fixed time to arrive, to stand in for the round
+ * trip to a network file system when benchmarking on a local disk. The delay is paid by the
+ * thread that asks for the file, outside of any lock, so several threads asking at once wait
+ * at the same time, just as several reads in flight to a real file server would.
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public final class SimulatedLatencyFileSource implements FileSource {
+
+    private final FileSource source;
+    private final long latencyNanos;
+
+    /**
+     * Creates a source that hands out the given files, in order, each after the given delay.
+     *
+     * @param fileList      The files to supply.
+     * @param latencyMillis How long each file takes to arrive, in milliseconds.
+     */
+    public SimulatedLatencyFileSource(List<File> fileList, long latencyMillis) {
+        this.source = FileSource.of(fileList);
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+    }
+
+    @Override
+    public File next() throws InterruptedException {
+        File file = source.next();
+        if (file != null && latencyNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(latencyNanos);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,315 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Generates a directory tree of synthetic source images for the load test, shaped like a real
+ * photo library: images spread over nested directories, in a mix of sizes, some of them png
+ * (with or without alpha) and some jpeg, and some already having a converted copy beside them
+ * from an earlier run. Everything is decided up front from a single seed, so the same settings
+ * always produce exactly the same tree, byte for byte. The images themselves come from
+ * SyntheticImages, and are written in parallel.
+ * <p>
+ * Create one with builder(), then call generate() with an empty directory.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public final class SyntheticCorpus {
+
+    private final int imageCount;
+    private final int depth;
+    private final int fanout;
+    private final List<int[]> sizes;
+    private final double pngFraction;
+    private final double alphaFraction;
+    private final double existingTargetFraction;
+    private final long seed;
+
+    private SyntheticCorpus(Builder builder) {
+        this.imageCount = builder.imageCount;
+        this.depth = builder.depth;
+        this.fanout = builder.fanout;
+        this.sizes = List.copyOf(builder.sizes);
+        this.pngFraction = builder.pngFraction;
+        this.alphaFraction = builder.alphaFraction;
+        this.existingTargetFraction = builder.existingTargetFraction;
+        this.seed = builder.seed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Describes this corpus in one line, for reports and for telling baselines apart.
+     */
+    public String getDescription() {
+        StringBuilder sizeList = new StringBuilder();
+        for (int[] size : sizes) {
+            sizeList.append(sizeList.length() == 0 ? "" : ",").append(size[0]).append('x').append(size[1]);
+        }
+        return imageCount + " images, depth " + depth + ", fanout " + fanout + ", sizes " + sizeList
+            + ", png " + pngFraction + ", alpha " + alphaFraction + ", existing " + existingTargetFraction
+            + ", seed " + seed;
+    }
+
+    /**
+     * Writes the corpus into the given directory, which is created if needed.
+     *
+     * @param root The top of the tree. It should be empty.
+     * @return A summary of what was written.
+     * @throws IOException If anything could not be written.
+     */
+    public Summary generate(File root) throws IOException {
+        List<File> dirs = new ArrayList<>();
+        addDirs(root, 0, dirs);
+        for (File dir : dirs) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create " + dir.getAbsolutePath());
+            }
+        }
+
+        // Every choice is made here, in order, so that writing in parallel can't change the outcome:
+        Random random = new Random(seed);
+        List<Spec> specs = new ArrayList<>(imageCount);
+        for (int i = 0; i < imageCount; i++) {
+            boolean png = random.nextDouble() < pngFraction;
+            boolean alpha = png && random.nextDouble() < alphaFraction;
+            int[] size = sizes.get(random.nextInt(sizes.size()));
+            boolean existingTarget = random.nextDouble() < existingTargetFraction;
+            specs.add(new Spec(new File(dirs.get(i % dirs.size()), "synthetic-" + i), png, alpha, size,
+                               existingTarget, seed * 31 + i));
+        }
+
+        try {
+            IntStream.range(0, specs.size()).parallel().forEach(i -> {
+                try {
+                    specs.get(i).write();
+                }
+                catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+
+        Summary summary = new Summary(dirs.size());
+        for (Spec spec : specs) {
+            summary.add(spec);
+        }
+        return summary;
+    }
+
+    private void addDirs(File dir, int level, List<File> dirs) {
+        dirs.add(dir);
+        if (level < depth) {
+            for (int i = 0; i < fanout; i++) {
+                addDirs(new File(dir, "dir-" + level + "-" + i), level + 1, dirs);
+            }
+        }
+    }
+
+    /**
+     * One image in the corpus.
+     */
+    private static final class Spec {
+        private final File baseName;
+        private final boolean png;
+        private final boolean alpha;
+        private final int[] size;
+        private final boolean existingTarget;
+        private final long imageSeed;
+        private long bytesWritten;
+
+        private Spec(File baseName, boolean png, boolean alpha, int[] size, boolean existingTarget, long imageSeed) {
+            this.baseName = baseName;
+            this.png = png;
+            this.alpha = alpha;
+            this.size = size;
+            this.existingTarget = existingTarget;
+            this.imageSeed = imageSeed;
+        }
+
+        private void write() throws IOException {
+            SyntheticImages.Kind kind = alpha ? SyntheticImages.Kind.ARGB : SyntheticImages.Kind.RGB;
+            BufferedImage image = SyntheticImages.generate(size[0], size[1], kind, imageSeed);
+            bytesWritten = write(image, png ? "png" : "jpg");
+            if (existingTarget) {
+                // The copy a previous conversion would have left, in the other format:
+                bytesWritten += write(image, png ? "jpg" : "png");
+            }
+        }
+
+        private long write(BufferedImage image, String formatName) throws IOException {
+            byte[] data = SyntheticImages.encode(image, formatName);
+            Files.write(new File(baseName.getPath() + "." + formatName).toPath(), data);
+            return data.length;
+        }
+    }
+
+    /**
+     * What generate() wrote.
+     */
+    public static final class Summary {
+        private final int directoryCount;
+        private int jpegCount;
+        private int pngCount;
+        private int alphaCount;
+        private int existingTargetCount;
+        private long totalBytes;
+
+        private Summary(int directoryCount) {
+            this.directoryCount = directoryCount;
+        }
+
+        private void add(Spec spec) {
+            if (spec.png) {
+                pngCount++;
+            }
+            else {
+                jpegCount++;
+            }
+            if (spec.alpha) {
+                alphaCount++;
+            }
+            if (spec.existingTarget) {
+                existingTargetCount++;
+            }
+            totalBytes += spec.bytesWritten;
+        }
+
+        public int getDirectoryCount() {
+            return directoryCount;
+        }
+
+        /**
+         * The number of jpeg source images, not counting jpegs written as existing targets.
+         */
+        public int getJpegCount() {
+            return jpegCount;
+        }
+
+        /**
+         * The number of png source images, not counting pngs written as existing targets.
+         */
+        public int getPngCount() {
+            return pngCount;
+        }
+
+        public int getAlphaCount() {
+            return alphaCount;
+        }
+
+        public int getExistingTargetCount() {
+            return existingTargetCount;
+        }
+
+        /**
+         * The size of every file written, existing targets included.
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return jpegCount + " jpeg and " + pngCount + " png images (" + alphaCount + " with alpha, "
+                + existingTargetCount + " already converted) in " + directoryCount + " directories, "
+                + totalBytes / (1024 * 1024) + "MB";
+        }
+    }
+
+    /**
+     * Builds SyntheticCorpus instances. The defaults make a small corpus that generates in a few seconds.
+     */
+    public static final class Builder {
+        private int imageCount = 200;
+        private int depth = 2;
+        private int fanout = 3;
+        private List<int[]> sizes = List.of(new int[]{640, 480}, new int[]{1920, 1080});
+        private double pngFraction = 0.5;
+        private double alphaFraction = 0.25;
+        private double existingTargetFraction = 0.1;
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        public Builder setImageCount(int imageCount) {
+            this.imageCount = Math.max(0, imageCount);
+            return this;
+        }
+
+        /**
+         * How many levels of subdirectories to create below the top. Zero puts every image in the top directory.
+         */
+        public Builder setDepth(int depth) {
+            this.depth = Math.max(0, depth);
+            return this;
+        }
+
+        /**
+         * How many subdirectories each directory above the bottom level gets.
+         */
+        public Builder setFanout(int fanout) {
+            this.fanout = Math.max(1, fanout);
+            return this;
+        }
+
+        /**
+         * The image sizes to choose from, as {width, height} pairs. Each image picks one at random.
+         */
+        public Builder setSizes(List<int[]> sizes) {
+            if (sizes.isEmpty()) {
+                throw new IllegalArgumentException("At least one size is needed.");
+            }
+            this.sizes = sizes;
+            return this;
+        }
+
+        /**
+         * The share of images written as png; the rest are jpeg.
+         */
+        public Builder setPngFraction(double pngFraction) {
+            this.pngFraction = Math.max(0, Math.min(1, pngFraction));
+            return this;
+        }
+
+        /**
+         * The share of png images that have an alpha channel. Jpegs never do.
+         */
+        public Builder setAlphaFraction(double alphaFraction) {
+            this.alphaFraction = Math.max(0, Math.min(1, alphaFraction));
+            return this;
+        }
+
+        /**
+         * The share of images that already have a converted copy in the other format beside them.
+         */
+        public Builder setExistingTargetFraction(double existingTargetFraction) {
+            this.existingTargetFraction = Math.max(0, Math.min(1, existingTargetFraction));
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public SyntheticCorpus build() {
+            return new SyntheticCorpus(this);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the test images used by the benchmarks, so that they can run anywhere without
+ * a corpus of real photos. The images are smooth gradients with a little noise and some
+ * hard edges, which compresses roughly like a photograph: flat noise would make every
+ * encoder look slow, and flat color would make every encoder look fast. The same seed
+ * always produces the same image.
+ *
+ * @author scorbo2
+ * @since 2024-01-11
+ */
+public final class SyntheticImages {
+
+    /**
+     * The color models we benchmark with, which between them cover every path through
+     * ConversionEngine.encodeImage().
+     */
+    public enum Kind {
+        RGB(BufferedImage.TYPE_INT_RGB),
+        ARGB(BufferedImage.TYPE_INT_ARGB),
+        GRAY(BufferedImage.TYPE_BYTE_GRAY);
+
+        private final int imageType;
+
+        Kind(int imageType) {
+            this.imageType = imageType;
+        }
+    }
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Parses a size of the form "640x480", as used in benchmark parameters.
+     */
+    public static int[] parseSize(String size) {
+        String[] parts = size.toLowerCase().split("x");
+        return new int[]{Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+    }
+
+    /**
+     * Generates an image of the given size and kind.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @param kind   The color model to use.
+     * @param seed   Seeds the noise and the placement of edges.
+     * @return A new image.
+     */
+    public static BufferedImage generate(int width, int height, Kind kind, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, kind.imageType);
+        int blockSize = Math.max(8, Math.min(width, height) / 6);
+        int phase = random.nextInt(256);
+        if (kind == Kind.GRAY) {
+            byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    pixels[y * width + x] = (byte)channel(x, y, width, height, blockSize, phase, random);
+                }
+            }
+            return image;
+        }
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = channel(x, y, width, height, blockSize, phase, random);
+                int green = channel(y, x, height, width, blockSize, phase + 85, random);
+                int blue = channel(x + y, y, width + height, height, blockSize, phase + 170, random);
+                // A soft vignette of transparency, so the jpeg flatten has real work to do:
+                int alpha = kind == Kind.ARGB ? Math.min(255, 128 + 255 * (x + y) / (width + height)) : 255;
+                pixels[y * width + x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+            }
+        }
+        return image;
+    }
+
+    private static int channel(int a, int b, int sizeA, int sizeB, int blockSize, int phase, Random random) {
+        int gradient = (a * 160 / sizeA + b * 64 / sizeB + phase) & 0xff;
+        int edge = ((a / blockSize + b / blockSize) & 1) * 24;
+        int noise = random.nextInt(9) - 4;
+        return Math.max(0, Math.min(255, gradient + edge + noise));
+    }
+
+    /**
+     * Encodes the given image in the given ImageIO format, for use as benchmark input.
+     */
+    public static byte[] encode(BufferedImage image, String formatName) throws IOException {
+        if ("jpg".equals(formatName) && image.getColorModel().hasAlpha()) {
+            // Jpeg sources never have alpha; benchmark the decoder on what it would really see:
+            BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(),
+                                                       BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = rgbImage.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            image = rgbImage;
+        }
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, formatName, outStream)) {
+            throw new IOException("No ImageWriter for " + formatName);
+        }
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Writes a batch of distinct source images of the given size and kind to the given
+     * directory, and returns the list of files.
+     *
+     * @param dir        The directory to write into. It will be created if needed.
+     * @param count      How many images to write.
+     * @param width      The image width.
+     * @param height     The image height.
+     * @param kind       The color model to use.
+     * @param formatName "png" or "jpg".
+     * @return The files written.
+     */
+    public static List<File> writeBatch(File dir, int count, int width, int height, Kind kind, String formatName)
+        throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(dir, "synthetic-" + i + "." + formatName);
+            Files.write(file.toPath(), encode(generate(width, height, kind, i), formatName));
+            files.add(file);
+        }
+        return files;
+    }
+}
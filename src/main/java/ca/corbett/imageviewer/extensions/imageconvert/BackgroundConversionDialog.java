@@ -0,0 +1,142 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import ca.corbett.imageviewer.ui.MainWindow;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.border.BevelBorder;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ * A small, non-modal window that shows the progress of a batch running in the background,
+ * and lets the user pause, resume or cancel it, while the rest of the application stays
+ * usable. This takes the place of the usual ProgressMonitor for background batches (see
+ * ImageConverterThread). Pausing goes through the batch's BatchThrottle, so files already
+ * in progress finish, and the batch carries on from where it was when resumed.
+ * <p>
+ * All methods other than isCanceled() must be invoked on the Swing event thread.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class BackgroundConversionDialog extends JDialog {
+
+    private final BatchThrottle throttle;
+    private final JLabel noteLabel;
+    private final JLabel progressLabel;
+    private final JProgressBar progressBar;
+    private final JButton pauseButton;
+    private volatile boolean canceled;
+
+    /**
+     * Creates the window. It is not shown until setVisible(true) is called.
+     *
+     * @param throttle The throttle of the batch being shown, for pausing and resuming it.
+     * @param maximum  The number of files in the batch, if known. See setMaximum().
+     */
+    public BackgroundConversionDialog(BatchThrottle throttle, int maximum) {
+        super(MainWindow.getInstance(), "Converting in the background");
+        this.throttle = throttle;
+        setSize(new Dimension(400, 160));
+        setResizable(false);
+        setModal(false);
+        setLocationRelativeTo(MainWindow.getInstance());
+        setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                cancel();
+            }
+        });
+
+        noteLabel = new JLabel("Please wait");
+        progressLabel = new JLabel(" ");
+        progressBar = new JProgressBar(0, Math.max(maximum, 1));
+        JPanel statusPanel = new JPanel(new GridLayout(3, 1, 0, 4));
+        statusPanel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        statusPanel.add(noteLabel);
+        statusPanel.add(progressBar);
+        statusPanel.add(progressLabel);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.setBorder(BorderFactory.createBevelBorder(BevelBorder.RAISED));
+        pauseButton = new JButton("Pause");
+        pauseButton.setPreferredSize(new Dimension(90, 23));
+        pauseButton.addActionListener(e -> togglePause());
+        buttonPanel.add(pauseButton);
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.setPreferredSize(new Dimension(90, 23));
+        cancelButton.addActionListener(e -> cancel());
+        buttonPanel.add(cancelButton);
+
+        setLayout(new BorderLayout());
+        add(statusPanel, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Sets the number of files in the batch, which may grow while a directory scan is in progress.
+     */
+    public void setMaximum(int maximum) {
+        progressBar.setMaximum(Math.max(maximum, 1));
+        updateProgressLabel();
+    }
+
+    public void setNote(String note) {
+        if (!canceled && !throttle.isPaused()) {
+            noteLabel.setText(note);
+        }
+    }
+
+    public void setProgress(int progress) {
+        progressBar.setValue(progress);
+        updateProgressLabel();
+    }
+
+    /**
+     * Reports whether the user has canceled the batch. May be invoked from any thread.
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Closes the window once the batch is done.
+     */
+    public void close() {
+        dispose();
+    }
+
+    private void togglePause() {
+        if (throttle.isPaused()) {
+            throttle.resume();
+            pauseButton.setText("Pause");
+            noteLabel.setText("Resuming");
+        }
+        else {
+            throttle.pause();
+            pauseButton.setText("Resume");
+            noteLabel.setText("Pausing (files in progress will finish)");
+        }
+    }
+
+    private void cancel() {
+        canceled = true;
+        pauseButton.setEnabled(false);
+        noteLabel.setText("Canceling (files in progress will finish)");
+    }
+
+    private void updateProgressLabel() {
+        progressLabel.setText(progressBar.getValue() + " of " + progressBar.getMaximum() + " images");
+    }
+}
@@ -0,0 +1,106 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Summarizes the outcome of a batch conversion. The counts are updated atomically by the
+ * ConversionEngine as each file completes, so they can be read at any time, including
+ * while the batch is still running.
+ *
+ * @author scorbo2
+ * @since 2024-01-03
+ */
+public class BatchResult {
+
+    private final ConversionMetrics metrics;
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private final AtomicInteger convertedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger problemCount = new AtomicInteger();
+    private final AtomicLong totalTimeSpent = new AtomicLong();
+    private volatile long elapsedTime;
+    private volatile boolean wasCanceled;
+
+    BatchResult(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The per-stage timings and throughput figures for this batch.
+     */
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Counts the number of files that have been dealt with in any way.
+     */
+    public int getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public int getConvertedCount() {
+        return convertedCount.get();
+    }
+
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public int getProblemCount() {
+        return problemCount.get();
+    }
+
+    /**
+     * The sum of time spent on each individual file, in milliseconds. With more than one
+     * thread, this will be larger than the elapsed time.
+     */
+    public long getTotalTimeSpent() {
+        return totalTimeSpent.get();
+    }
+
+    /**
+     * Wall clock time for the whole batch, in milliseconds.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    public boolean wasCanceled() {
+        return wasCanceled;
+    }
+
+    void record(ConversionEngine.OperationOutcome outcome, long timeSpent) {
+        totalTimeSpent.addAndGet(timeSpent);
+        switch (outcome) {
+            case SkippedBecauseExists:
+                skippedCount.incrementAndGet();
+                break;
+            case InternalError:
+                problemCount.incrementAndGet();
+                break;
+            case Success:
+                convertedCount.incrementAndGet();
+                break;
+        }
+        processedCount.incrementAndGet();
+    }
+
+    /**
+     * Moves a file that was recorded as converted over to the problems, as it turned out not to
+     * have been written after all. See ConversionListener.commitFailed().
+     */
+    void recordCommitFailure() {
+        convertedCount.decrementAndGet();
+        problemCount.incrementAndGet();
+    }
+
+    void setElapsedTime(long elapsedTime) {
+        this.elapsedTime = elapsedTime;
+    }
+
+    void setCanceled(boolean canceled) {
+        this.wasCanceled = canceled;
+    }
+}
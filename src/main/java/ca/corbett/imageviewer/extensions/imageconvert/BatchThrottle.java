@@ -0,0 +1,188 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Paces a batch conversion so that it can run in the background without taking over the
+ * machine, and lets it be paused and resumed. A batch checks with its throttle each time it
+ * takes the next file from its FileSource (see filter()), and waits there if it's going too
+ * fast or has been paused. Files already in progress are always allowed to finish, so pausing
+ * never leaves anything half-written, and a paused batch picks up exactly where it left off.
+ * <p>
+ * Two limits can be set, and changed at any time while a batch is running: how many images may
+ * be started per second, and how many bytes per second may be read and written, counted together.
+ * Bytes are counted from the batch's ConversionMetrics, so what is limited is the real disk
+ * traffic. Each file's bytes are only known once it has been read and written, so they are paid
+ * for by making the files after it wait; the average over any few seconds stays under the limit.
+ * Time spent waiting (including while paused) is recorded in the metrics as Stage.THROTTLE.
+ * </p>
+ * <p>
+ * A ConversionEngine whose settings have limits creates a throttle for each batch. To be able to
+ * pause a batch or change its limits while it runs, create the throttle yourself and give it to
+ * the engine with setThrottle(). One throttle may be shared by several batches, one after another.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class BatchThrottle {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private double maxImagesPerSecond;
+    private long maxBytesPerSecond;
+    private boolean paused;
+    private long nextImageNanos;
+    private long bytesPaidUntilNanos;
+    private long bytesCharged;
+
+    /**
+     * Creates a throttle with no limits, which doesn't slow anything down until it's paused or
+     * given limits.
+     */
+    public BatchThrottle() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a throttle with the limits from the given settings.
+     */
+    public BatchThrottle(ConversionSettings settings) {
+        this(settings.getMaxImagesPerSecond(), settings.getMaxBytesPerSecond());
+    }
+
+    /**
+     * Creates a throttle with the given limits.
+     *
+     * @param maxImagesPerSecond The most images to start per second, or 0 for no limit.
+     * @param maxBytesPerSecond  The most bytes to read and write per second, or 0 for no limit.
+     */
+    public BatchThrottle(double maxImagesPerSecond, long maxBytesPerSecond) {
+        this.maxImagesPerSecond = Math.max(0, maxImagesPerSecond);
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        this.nextImageNanos = System.nanoTime();
+        this.bytesPaidUntilNanos = nextImageNanos;
+    }
+
+    public synchronized double getMaxImagesPerSecond() {
+        return maxImagesPerSecond;
+    }
+
+    /**
+     * Changes the most images to start per second. Zero or less means no limit.
+     * Takes effect for the next file.
+     */
+    public synchronized void setMaxImagesPerSecond(double maxImagesPerSecond) {
+        this.maxImagesPerSecond = Math.max(0, maxImagesPerSecond);
+        nextImageNanos = Math.min(nextImageNanos, System.nanoTime());
+        notifyAll();
+    }
+
+    public synchronized long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Changes the most bytes to read and write per second. Zero or less means no limit.
+     * Takes effect for the next file.
+     */
+    public synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        bytesPaidUntilNanos = Math.min(bytesPaidUntilNanos, System.nanoTime());
+        notifyAll();
+    }
+
+    /**
+     * Stops any more files from being started until resume() is called. Files in progress finish.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Returns a FileSource that supplies the files from the given source, each one only once this
+     * throttle allows it. Canceling the returned source also releases any threads waiting on us.
+     *
+     * @param source  The batch's source.
+     * @param metrics The batch's metrics, for counting bytes and recording time spent waiting.
+     */
+    public FileSource filter(FileSource source, ConversionMetrics metrics) {
+        synchronized (this) {
+            // Whatever a previous batch still owed is forgiven:
+            bytesCharged = metrics.getBytesRead() + metrics.getBytesWritten();
+        }
+        return new FileSource() {
+            private volatile boolean canceled;
+
+            @Override
+            public File next() throws InterruptedException {
+                // The file is taken first, so that nobody waits just to find out the batch is over:
+                File file = source.next();
+                if (file == null) {
+                    return null;
+                }
+                long startTime = System.nanoTime();
+                if (!await(metrics, () -> canceled)) {
+                    return null;
+                }
+                metrics.record(ConversionMetrics.Stage.THROTTLE, startTime);
+                return file;
+            }
+
+            @Override
+            public void cancel() {
+                canceled = true;
+                synchronized (BatchThrottle.this) {
+                    BatchThrottle.this.notifyAll();
+                }
+                source.cancel();
+            }
+        };
+    }
+
+    /**
+     * Waits until the next file may start, then books its slot. Returns false if the source was
+     * canceled while we waited.
+     */
+    private synchronized boolean await(ConversionMetrics metrics, BooleanSupplier isCanceled)
+        throws InterruptedException {
+        while (true) {
+            if (isCanceled.getAsBoolean()) {
+                return false;
+            }
+            // Charge for whatever has been read or written since we last looked:
+            long bytes = metrics.getBytesRead() + metrics.getBytesWritten();
+            long now = System.nanoTime();
+            if (maxBytesPerSecond > 0 && bytes > bytesCharged) {
+                long cost = (long)((bytes - bytesCharged) * (double)NANOS_PER_SECOND / maxBytesPerSecond);
+                bytesPaidUntilNanos = Math.max(bytesPaidUntilNanos, now) + cost;
+            }
+            bytesCharged = bytes;
+
+            if (paused) {
+                wait();
+                continue;
+            }
+            long readyNanos = Math.max(maxImagesPerSecond > 0 ? nextImageNanos : now,
+                                       maxBytesPerSecond > 0 ? bytesPaidUntilNanos : now);
+            if (readyNanos <= now) {
+                if (maxImagesPerSecond > 0) {
+                    nextImageNanos = Math.max(nextImageNanos, now) + (long)(NANOS_PER_SECOND / maxImagesPerSecond);
+                }
+                return true;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, readyNanos - now);
+        }
+    }
+}
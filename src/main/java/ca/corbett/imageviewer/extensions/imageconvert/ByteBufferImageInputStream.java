@@ -0,0 +1,67 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * An ImageInputStream over the contents of a ByteBuffer, which may be a memory-mapped file.
+ * ImageIO's own in-memory stream, MemoryCacheImageInputStream, copies everything it reads
+ * into a cache of its own so that it can seek backwards, and FileImageInputStream goes back
+ * to the file for every small read. Since a ByteBuffer can already be read at any position,
+ * this stream does neither: each read is a single copy straight out of the buffer.
+ * <p>
+ * The buffer's contents from position to limit, as they were when this stream was created,
+ * are what the stream returns. The buffer itself is never modified, and must not be released
+ * (see CodecPool.releaseSource()) until this stream is closed.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer buffer;
+    private final int length;
+
+    /**
+     * Creates a stream over the remaining contents of the given buffer.
+     */
+    public ByteBufferImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        this.length = this.buffer.remaining();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return buffer.get((int)streamPos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        Objects.checkFromIndexSize(off, len, b.length);
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        int count = (int)Math.min(len, length - streamPos);
+        buffer.get((int)streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+}
@@ -0,0 +1,450 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches ImageReader and ImageWriter instances so that each worker thread in a batch can
+ * reuse the same ones from file to file, instead of looking them up in the IIORegistry
+ * and building fresh write parameters for every image. For batches of small images, that
+ * per-file setup is a noticeable part of the total time.
+ * <p>
+ * Each thread that uses a CodecPool gets its own codecs, as ImageIO readers and writers
+ * are not thread safe. Readers are chosen by file extension, and are only used if they
+ * recognize the file's contents; anything else (such as a png file named .jpg) falls back
+ * to a normal ImageIO lookup. A CodecPool is meant to live for the length of one batch,
+ * and must be closed at the end of it to dispose all the codecs it created.
+ * </p>
+ * <p>
+ * Each thread also gets a reusable pixel buffer for converting images to RGB before jpeg
+ * encoding (see getRgbImage()), for the same reason: a long png to jpeg batch would
+ * otherwise allocate and throw away a full-size image for every file. Likewise, images are
+ * encoded into OutputBuffers borrowed from this pool (see acquireBuffer()), which can be
+ * passed between threads and are returned once the encoded image has been written.
+ * </p>
+ * <p>
+ * When the settings ask for memory-mapped input, source files are decoded straight out of
+ * memory instead of through ImageIO's stream classes (see readSource()). Files of at least
+ * MAPPED_READ_THRESHOLD bytes are mapped, and smaller ones, for which setting up a mapping
+ * costs more than it saves, are read with a single call into a pooled direct buffer.
+ * </p>
+ * <p>
+ * Png output is written with a single PngEncoder shared by all threads, which compresses
+ * each image on its own set of threads. By default it gets whatever cores the batch's
+ * worker threads leave free, so a single-threaded batch still uses the whole machine.
+ * Jpeg output with a target size is written the same way, with a shared SizedJpegEncoder
+ * that runs its trial encodes on those cores, and keeps its size curves for the whole batch.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-09
+ */
+public class CodecPool implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(CodecPool.class.getName());
+
+    private final ConversionEngine engine;
+    private final int encoderThreads;
+    private PngEncoder pngEncoder;
+    private SizedJpegEncoder sizedJpegEncoder;
+    private final ThreadLocal<Codecs> threadCodecs = ThreadLocal.withInitial(this::createCodecs);
+    private final Queue<Codecs> allCodecs = new ConcurrentLinkedQueue<>();
+    private final Queue<OutputBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> readBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * With memory-mapped input, source files at least this big are mapped. Smaller ones are read
+     * into a pooled buffer of this size.
+     */
+    public static final int MAPPED_READ_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The size new OutputBuffers start out at. They grow as needed.
+     */
+    private static final int INITIAL_BUFFER_BYTES = 1024 * 1024;
+
+    /**
+     * Buffers that have grown bigger than this are let go instead of being pooled, so that one huge
+     * image doesn't pin its buffer for the rest of the batch.
+     */
+    private static final int MAX_POOLED_BUFFER_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The largest RGB pixel buffer (see getRgbImage()) a thread keeps between images, which is the
+     * same number of bytes as MAX_POOLED_BUFFER_BYTES. Only the image being converted is charged to
+     * the MemoryBudget, so a bigger buffer kept for the rest of the batch would go unaccounted for.
+     */
+    private static final int MAX_POOLED_RGB_PIXELS = MAX_POOLED_BUFFER_BYTES / 4;
+
+    /**
+     * The most idle buffers we keep. Any more than this were only needed at a peak.
+     */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /**
+     * The codecs belonging to a single thread.
+     */
+    private static final class Codecs {
+        ImageWriter writer;
+        ImageWriteParam writeParam;
+        final Map<String, ImageReader> readers = new HashMap<>();
+        int[] rgbPixels;
+    }
+
+    /**
+     * Creates an empty pool. Codecs are created as each thread first needs them. Png images are
+     * compressed using the cores left over by the batch's worker threads, if any.
+     *
+     * @param engine Supplies the output format and jpeg quality for writers.
+     */
+    public CodecPool(ConversionEngine engine) {
+        this(engine, Runtime.getRuntime().availableProcessors() / engine.getSettings().getThreadCount());
+    }
+
+    /**
+     * Creates an empty pool whose png encoder compresses each image on the given number of threads.
+     *
+     * @param engine         Supplies the output format, jpeg quality and png compression for writers.
+     * @param encoderThreads The number of threads to compress each png image on.
+     */
+    public CodecPool(ConversionEngine engine, int encoderThreads) {
+        this.engine = engine;
+        this.encoderThreads = Math.max(1, encoderThreads);
+    }
+
+    private Codecs createCodecs() {
+        Codecs codecs = new Codecs();
+        allCodecs.add(codecs);
+        return codecs;
+    }
+
+    /**
+     * Decodes the given image file using this thread's pooled reader for its extension.
+     * With memory-mapped input, the file is loaded with readSource() first.
+     *
+     * @param srcFile The image file to read.
+     * @return The decoded image.
+     * @throws IOException If the image can't be read or decoded.
+     */
+    public BufferedImage read(File srcFile) throws IOException {
+        if (engine.getSettings().isMemoryMapped()) {
+            ByteBuffer source = readSource(srcFile);
+            try {
+                return read(srcFile, source);
+            }
+            finally {
+                releaseSource(source);
+            }
+        }
+        try (ImageInputStream inStream = new FileImageInputStream(srcFile)) {
+            return read(srcFile, inStream);
+        }
+    }
+
+    /**
+     * Decodes an image that has already been read into memory from the given file.
+     *
+     * @param srcFile The file the bytes came from. Only its extension is used.
+     * @param bytes   The raw contents of that file.
+     * @return The decoded image.
+     * @throws IOException If the image can't be decoded.
+     */
+    public BufferedImage read(File srcFile, byte[] bytes) throws IOException {
+        return read(srcFile, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes an image that has already been loaded into memory from the given file, as by readSource().
+     *
+     * @param srcFile The file the contents came from. Only its extension is used.
+     * @param source  The raw contents of that file, from position to limit. The buffer is not modified.
+     * @return The decoded image.
+     * @throws IOException If the image can't be decoded.
+     */
+    public BufferedImage read(File srcFile, ByteBuffer source) throws IOException {
+        try (ImageInputStream inStream = new ByteBufferImageInputStream(source)) {
+            return read(srcFile, inStream);
+        }
+    }
+
+    /**
+     * Loads the raw contents of the given source file into memory, ready to be decoded with
+     * read(File, ByteBuffer), so that all of its disk I/O happens here. Without memory-mapped
+     * input, the file is simply read into a new array. With it, a big file is mapped, and its
+     * pages are touched so that they are in the page cache before decoding starts, and a small
+     * file is read into a pooled buffer. Big files are not mapped if sources are to be removed
+     * after conversion, since a file can't be removed on Windows while it is mapped, and the
+     * mapping lasts until the garbage collector gets to it; they are read into a new array instead. Either way, the returned buffer should be given back
+     * with releaseSource() once it has been decoded, by whichever thread does that.
+     *
+     * @param srcFile The image file to read.
+     * @return The file's contents, from position to limit.
+     * @throws IOException If the file can't be read.
+     */
+    public ByteBuffer readSource(File srcFile) throws IOException {
+        if (!engine.getSettings().isMemoryMapped()) {
+            return ByteBuffer.wrap(Files.readAllBytes(srcFile.toPath()));
+        }
+        try (FileChannel channel = FileChannel.open(srcFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAPPED_READ_THRESHOLD) {
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("File is too big to map: " + srcFile.getAbsolutePath());
+                }
+                if (engine.getSettings().isDeleteOriginal()) {
+                    // A mapping lasts until it is garbage collected, and Windows won't delete a file
+                    // that is still mapped, so a source that is about to be removed is read instead:
+                    return readFully(channel, ByteBuffer.allocate((int)size));
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped.load();
+                return mapped;
+            }
+            ByteBuffer buffer = readBuffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(MAPPED_READ_THRESHOLD);
+            }
+            try {
+                buffer.clear().limit((int)size);
+                return readFully(channel, buffer);
+            }
+            catch (IOException | RuntimeException e) {
+                releaseSource(buffer);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Fills the given buffer, up to its limit, from the given channel, and flips it ready to be read.
+     */
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Usually done in one read; keep going if the OS hands it over in pieces.
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Gives back a buffer returned by readSource() once its contents have been decoded. The
+     * buffer must not be used again by the caller. Mapped files are unmapped by the garbage
+     * collector once nothing refers to them; only pooled read buffers are kept. Null is ignored.
+     */
+    public void releaseSource(ByteBuffer source) {
+        // Mapped files are read-only; our own read buffers are the only writable direct ones we hand out:
+        if (source == null || !source.isDirect() || source.isReadOnly()
+            || source.capacity() != MAPPED_READ_THRESHOLD || readBuffers.size() >= MAX_POOLED_BUFFERS) {
+            return;
+        }
+        readBuffers.offer(source);
+    }
+
+    private BufferedImage read(File srcFile, ImageInputStream inStream) throws IOException {
+        ImageReader reader = getReader(srcFile);
+        if (reader == null || !reader.getOriginatingProvider().canDecodeInput(inStream)) {
+            // Unknown extension, or the contents don't match it. Do it the slow way:
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(inStream);
+            if (!readers.hasNext()) {
+                throw new IOException("No ImageReader was able to decode this file.");
+            }
+            reader = readers.next();
+            try {
+                return read(reader, inStream);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        try {
+            return read(reader, inStream);
+        }
+        finally {
+            reader.reset();
+        }
+    }
+
+    /**
+     * Decodes the first image from the given stream. If our settings have a maximum output
+     * dimension, the reader is told to skip pixels so that we never decode more than we need.
+     */
+    private BufferedImage read(ImageReader reader, ImageInputStream inStream) throws IOException {
+        reader.setInput(inStream, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        int maxDimension = engine.getSettings().getMaxDimension();
+        if (maxDimension > 0) {
+            int subsampling = ImageScaler.getSubsampling(reader.getWidth(0), reader.getHeight(0), maxDimension);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+        }
+        return reader.read(0, param);
+    }
+
+    private ImageReader getReader(File srcFile) {
+        String name = srcFile.getName().toLowerCase();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        return threadCodecs.get().readers.computeIfAbsent(name.substring(dot + 1), suffix -> {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersBySuffix(suffix);
+            return readers.hasNext() ? readers.next() : null;
+        });
+    }
+
+    /**
+     * Returns this thread's writer for our output format. The caller should reset() it when done
+     * with it, but must not dispose() it.
+     *
+     * @throws IOException If no writer exists for our output format.
+     */
+    public ImageWriter getWriter() throws IOException {
+        Codecs codecs = threadCodecs.get();
+        if (codecs.writer == null) {
+            codecs.writer = engine.createImageWriter();
+            codecs.writeParam = engine.createWriteParam(codecs.writer);
+        }
+        return codecs.writer;
+    }
+
+    /**
+     * Returns the write parameters for this thread's writer, with the jpeg quality already applied.
+     * Callers must not modify them.
+     *
+     * @throws IOException If no writer exists for our output format.
+     */
+    public ImageWriteParam getWriteParam() throws IOException {
+        getWriter();
+        return threadCodecs.get().writeParam;
+    }
+
+    /**
+     * Returns an empty OutputBuffer to encode an image into. It should be given back with
+     * releaseBuffer() once its contents have been written, by whichever thread does that.
+     */
+    public OutputBuffer acquireBuffer() {
+        OutputBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : new OutputBuffer(INITIAL_BUFFER_BYTES);
+    }
+
+    /**
+     * Returns the given buffer to the pool, to be reused by a later acquireBuffer().
+     * The buffer must not be used again by the caller. Null is ignored.
+     */
+    public void releaseBuffer(OutputBuffer buffer) {
+        if (buffer == null || buffer.capacity() > MAX_POOLED_BUFFER_BYTES || buffers.size() >= MAX_POOLED_BUFFERS) {
+            return;
+        }
+        buffer.reset();
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Returns the png encoder shared by all threads using this pool, creating it if needed.
+     */
+    public synchronized PngEncoder getPngEncoder() {
+        if (pngEncoder == null) {
+            ConversionSettings settings = engine.getSettings();
+            pngEncoder = new PngEncoder(settings.getPngCompression(), encoderThreads, settings.isLowPriority());
+        }
+        return pngEncoder;
+    }
+
+    /**
+     * Returns the size-targeted jpeg encoder shared by all threads using this pool, creating it if needed.
+     */
+    public synchronized SizedJpegEncoder getSizedJpegEncoder() {
+        if (sizedJpegEncoder == null) {
+            sizedJpegEncoder = new SizedJpegEncoder(engine, this, encoderThreads);
+        }
+        return sizedJpegEncoder;
+    }
+
+    /**
+     * Returns a TYPE_INT_RGB image of the given size for this thread to convert into. All such
+     * images on a thread share one pixel buffer, which grows as needed and is kept until the
+     * pool is closed, so the image returned is only good until the next call on the same thread.
+     * Images over MAX_POOLED_RGB_PIXELS get a buffer of their own instead, which is let go along
+     * with the image. Its contents are undefined.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @return An image backed by this thread's pooled buffer.
+     */
+    public BufferedImage getRgbImage(int width, int height) {
+        Codecs codecs = threadCodecs.get();
+        int size = Math.multiplyExact(width, height);
+        int[] pixels;
+        if (size > MAX_POOLED_RGB_PIXELS) {
+            pixels = new int[size];
+        }
+        else {
+            if (codecs.rgbPixels == null || codecs.rgbPixels.length < size) {
+                codecs.rgbPixels = null; // let the old buffer go before allocating the new one
+                codecs.rgbPixels = new int[size];
+            }
+            pixels = codecs.rgbPixels;
+        }
+        DirectColorModel colorModel = new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, size), width, height,
+                                                          width, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Disposes every codec created by this pool, on all threads. This must only be called once
+     * the threads using the pool are done with it.
+     */
+    @Override
+    public void close() {
+        Codecs codecs;
+        while ((codecs = allCodecs.poll()) != null) {
+            if (codecs.writer != null) {
+                codecs.writer.dispose();
+            }
+            for (ImageReader reader : codecs.readers.values()) {
+                reader.dispose();
+            }
+            codecs.rgbPixels = null;
+        }
+        threadCodecs.remove();
+        buffers.clear();
+        readBuffers.clear();
+        synchronized (this) {
+            if (pngEncoder != null) {
+                pngEncoder.close();
+                pngEncoder = null;
+            }
+            if (sizedJpegEncoder != null) {
+                logger.log(Level.FINE, "Jpeg target size: {0} trial encodes for {1} images",
+                           new Object[]{sizedJpegEncoder.getTrialCount(), sizedJpegEncoder.getImageCount()});
+                sizedJpegEncoder.close();
+                sizedJpegEncoder = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,895 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Does the actual work of converting images, with no dependency on Swing or on the
+ * ImageViewer application. Everything this class needs to know comes from an immutable
+ * ConversionSettings, so a single engine can be shared by any number of worker threads.
+ * <p>
+ * The ImageConverterDialog and ImageConverterThread are thin clients of this class, and
+ * so is ImageConverterCli, which allows bulk conversions to run on a headless machine.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-03
+ */
+public class ConversionEngine {
+
+    public enum OperationOutcome {
+        SkippedBecauseExists, InternalError, Success
+    }
+
+    private static final Logger logger = Logger.getLogger(ConversionEngine.class.getName());
+
+    private final ConversionSettings settings;
+    private volatile BatchThrottle throttle;
+
+    public ConversionEngine(ConversionSettings settings) {
+        this.settings = settings;
+    }
+
+    public ConversionSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the throttle given to setThrottle(), or null if there isn't one.
+     */
+    public BatchThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Paces batches started from now on with the given throttle, which can be used to pause them
+     * or to change their limits while they run. With no throttle (null, the default), each batch
+     * gets its own throttle if our settings have limits, or runs flat out if they don't.
+     */
+    public void setThrottle(BatchThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Loads and converts the given source file. If the target file exists and overwriting
+     * is not enabled, this returns SkippedBecauseExists without decoding the source at all.
+     * Images that are estimated to be over the streaming threshold are converted strip by
+     * strip with a StreamingConverter instead of being decoded in one piece.
+     *
+     * @param srcFile The file containing the image to be converted.
+     * @return An OperationOutcome that describes what happened.
+     */
+    public OperationOutcome convertFile(File srcFile) {
+        // Only one image, so its png compression can have every core:
+        try (CodecPool codecs = new CodecPool(this, Runtime.getRuntime().availableProcessors())) {
+            return convertFile(srcFile, codecs, createSingleFileWriter(), new ConversionMetrics());
+        }
+    }
+
+    /**
+     * Loads and converts the given source file as described in convertFile(File), using
+     * the given CodecPool for this thread's reader and writer, writing the result through
+     * the given OutputWriter, and recording the time spent in each stage in the given metrics.
+     */
+    OperationOutcome convertFile(File srcFile, CodecPool codecs, OutputWriter output, ConversionMetrics metrics) {
+        File targetFile = getTargetFile(srcFile);
+        if (shouldSkip(srcFile, targetFile)) {
+            return OperationOutcome.SkippedBecauseExists;
+        }
+        if (shouldStream(MemoryBudget.estimateFootprint(srcFile, settings))) {
+            return convertStreamed(srcFile, targetFile, output, metrics);
+        }
+        BufferedImage image;
+        try {
+            long startTime = System.nanoTime();
+            image = codecs.read(srcFile);
+            metrics.record(ConversionMetrics.Stage.DECODE, startTime);
+            metrics.addBytesRead(srcFile.length());
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Unable to load " + srcFile.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
+            return OperationOutcome.InternalError;
+        }
+        try {
+            return convertImage(srcFile, image, codecs, output, metrics);
+        }
+        finally {
+            image.flush();
+        }
+    }
+
+    /**
+     * Converts the given image, which was loaded from the given source file.
+     *
+     * @param srcFile The file containing the image to be converted.
+     * @param image   The image data.
+     * @return An OperationOutcome that describes what happened.
+     */
+    public OperationOutcome convertImage(File srcFile, BufferedImage image) {
+        // Only one image, so its png compression can have every core:
+        try (CodecPool codecs = new CodecPool(this, Runtime.getRuntime().availableProcessors())) {
+            return convertImage(srcFile, image, codecs, createSingleFileWriter(), new ConversionMetrics());
+        }
+    }
+
+    /**
+     * Returns an OutputWriter for converting a single file outside of a batch. It commits each
+     * file straight away, instead of holding any back to sync in groups, so it needs no flush.
+     */
+    private OutputWriter createSingleFileWriter() {
+        // No syncing stays no syncing; any sync interval at all means this one file is synced:
+        int syncInterval = settings.getSyncInterval() == 0 ? 0 : 1;
+        return new OutputWriter(syncInterval);
+    }
+
+    private OperationOutcome convertImage(File srcFile, BufferedImage image, CodecPool codecs, OutputWriter output,
+                                          ConversionMetrics metrics) {
+        File targetFile = getTargetFile(srcFile);
+
+        // Check if the output file already exists:
+        if (shouldSkip(srcFile, targetFile)) {
+            return OperationOutcome.SkippedBecauseExists;
+        }
+
+        OutputBuffer encoded = codecs.acquireBuffer();
+        try {
+            FileTime targetTime = getTargetTime(srcFile, metrics);
+
+            long startTime = System.nanoTime();
+            encodeImage(image, codecs, encoded);
+            metrics.record(ConversionMetrics.Stage.ENCODE, startTime);
+
+            writeTarget(srcFile, targetFile, encoded, targetTime, output, metrics);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Image conversion error: " + ioe.getMessage(), ioe);
+            return OperationOutcome.InternalError;
+        }
+        finally {
+            codecs.releaseBuffer(encoded);
+        }
+        return OperationOutcome.Success;
+    }
+
+    /**
+     * Converts the given source file strip by strip, so that the whole image is never in
+     * memory at once. See StreamingConverter.
+     *
+     * The image is streamed into a temp file, which the given OutputWriter then moves into place.
+     *
+     * @param srcFile    The file containing the image to be converted.
+     * @param targetFile The file to write.
+     * @param output     Commits the finished file.
+     * @param metrics    Records the time spent, as a single STREAMED stage.
+     * @return An OperationOutcome that describes what happened.
+     */
+    OperationOutcome convertStreamed(File srcFile, File targetFile, OutputWriter output, ConversionMetrics metrics) {
+        logger.log(Level.INFO, "Converting {0} in strips, as it is too large to convert in one piece.",
+                   srcFile.getAbsolutePath());
+        try {
+            FileTime targetTime = getTargetTime(srcFile, metrics);
+
+            long startTime = System.nanoTime();
+            File tempFile = output.getTempFile(targetFile);
+            new StreamingConverter(this).convert(srcFile, tempFile);
+            metrics.addBytesRead(srcFile.length());
+            metrics.addBytesWritten(tempFile.length());
+            output.commit(srcFile, tempFile, targetFile, targetTime, getSourceCleanup(srcFile, metrics));
+            metrics.record(ConversionMetrics.Stage.STREAMED, startTime);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Image conversion error: " + ioe.getMessage(), ioe);
+            return OperationOutcome.InternalError;
+        }
+        return OperationOutcome.Success;
+    }
+
+    /**
+     * Gives the given source file a target that is a hard link to, or a copy of, the already
+     * converted target of an identical source file, according to our deduplication setting.
+     * Hard links share their date/time, so if the two source files' dates differ and dates
+     * are being preserved, a copy is made instead. A copy is also made if the file system
+     * can't link the two files.
+     *
+     * @param srcFile       The duplicate source file.
+     * @param convertedFile The converted target of the file it duplicates.
+     * @param output        Commits the new target.
+     * @param metrics       Records the time spent, as a WRITE stage.
+     * @return An OperationOutcome that describes what happened.
+     */
+    OperationOutcome convertDuplicate(File srcFile, File convertedFile, OutputWriter output,
+                                      ConversionMetrics metrics) {
+        File targetFile = getTargetFile(srcFile);
+        if (shouldSkip(srcFile, targetFile)) {
+            return OperationOutcome.SkippedBecauseExists;
+        }
+        File tempFile = output.getTempFile(targetFile);
+        try {
+            FileTime targetTime = getTargetTime(srcFile, metrics);
+
+            long startTime = System.nanoTime();
+            boolean linked = false;
+            if (settings.getDeduplication() == ConversionSettings.Deduplication.LINK
+                && (targetTime == null || targetTime.equals(Files.getLastModifiedTime(convertedFile.toPath())))) {
+                try {
+                    Files.createLink(tempFile.toPath(), convertedFile.toPath());
+                    linked = true;
+                }
+                catch (IOException | UnsupportedOperationException e) {
+                    logger.log(Level.FINE, "Unable to link to " + convertedFile.getAbsolutePath()
+                        + ", copying it instead: " + e.getMessage());
+                }
+            }
+            if (!linked) {
+                Files.copy(convertedFile.toPath(), tempFile.toPath());
+                metrics.addBytesWritten(tempFile.length());
+            }
+            metrics.record(ConversionMetrics.Stage.WRITE, startTime);
+            output.commit(srcFile, tempFile, targetFile, linked ? null : targetTime,
+                          getSourceCleanup(srcFile, metrics));
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Unable to copy " + convertedFile.getAbsolutePath() + " to "
+                + targetFile.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
+            try {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+            catch (IOException ignored) {
+                // It's only a hidden temp file.
+            }
+            return OperationOutcome.InternalError;
+        }
+        return OperationOutcome.Success;
+    }
+
+    /**
+     * Reports whether an image with the given estimated footprint should be converted strip
+     * by strip, according to the streaming threshold in our settings. Images are never
+     * streamed when downscaling, as they are decoded at reduced resolution instead.
+     */
+    boolean shouldStream(long footprint) {
+        return settings.getMaxDimension() == 0
+            && settings.getStreamingThreshold() > 0
+            && footprint > settings.getStreamingThreshold();
+    }
+
+    /**
+     * Returns how much of a MemoryBudget should be acquired before converting the given file.
+     * This is its estimated footprint, or for images that will be streamed, the footprint
+     * of a streamed conversion.
+     */
+    long getAdmissionFootprint(File srcFile) {
+        long footprint = MemoryBudget.estimateFootprint(srcFile, settings);
+        return shouldStream(footprint) ? StreamingConverter.getFootprint(settings) : footprint;
+    }
+
+    /**
+     * Builds a ConversionPlan for the given files based on our settings. This only looks at
+     * filesystem metadata, so it is cheap to do before committing to a batch, or as a dry run.
+     *
+     * @param fileList The source files in the batch.
+     * @return A ConversionPlan describing what would happen to each file.
+     */
+    public ConversionPlan plan(List<File> fileList) {
+        return ConversionPlan.create(fileList, settings);
+    }
+
+    /**
+     * Builds a ConversionPlan for the given files, consulting the given journal so that
+     * files already converted by an earlier run can be skipped.
+     *
+     * @param fileList The source files in the batch.
+     * @param journal  The journal for this batch, or null.
+     * @return A ConversionPlan describing what would happen to each file.
+     */
+    public ConversionPlan plan(List<File> fileList, ConversionJournal journal) {
+        return ConversionPlan.create(fileList, settings, journal);
+    }
+
+    /**
+     * Plans and converts every file in the given list. See runBatch(ConversionPlan, ...).
+     *
+     * @param fileList   The files to convert.
+     * @param listener   Notified as each file starts and completes. May be null.
+     * @param isCanceled Polled periodically to see if the batch should stop early.
+     * @return A BatchResult summarizing what happened.
+     */
+    public BatchResult runBatch(List<File> fileList, ConversionListener listener, BooleanSupplier isCanceled) {
+        return runBatch(plan(fileList), listener, isCanceled);
+    }
+
+    /**
+     * Carries out the given plan, using either a worker pool or a ConversionPipeline
+     * depending on our settings, and blocks until the batch is done. Files the plan says
+     * to skip are reported as skipped right away, without being decoded. If the given cancel
+     * check returns true, files that haven't started yet are abandoned, but files already in
+     * progress are allowed to finish so we don't leave half-written output behind.
+     *
+     * @param plan       A plan created by plan() with these same settings.
+     * @param listener   Notified as each file starts and completes. May be null.
+     * @param isCanceled Polled periodically to see if the batch should stop early.
+     * @return A BatchResult summarizing what happened.
+     */
+    public BatchResult runBatch(ConversionPlan plan, ConversionListener listener, BooleanSupplier isCanceled) {
+        return runBatch(plan, null, listener, isCanceled);
+    }
+
+    /**
+     * Carries out the given plan as described in runBatch(ConversionPlan, ...), recording
+     * progress in the given journal as we go. Files to be converted are marked PENDING before
+     * any work starts, and each one is marked DONE or FAILED as it completes, so that if the
+     * batch is canceled or the process dies, the next run can pick up where this one left off.
+     * The journal is not closed here; that's up to the caller.
+     *
+     * @param plan       A plan created by plan() with these same settings and journal.
+     * @param journal    The journal for this batch, or null to run without one.
+     * @param listener   Notified as each file starts and completes. May be null.
+     * @param isCanceled Polled periodically to see if the batch should stop early.
+     * @return A BatchResult summarizing what happened.
+     */
+    public BatchResult runBatch(ConversionPlan plan, ConversionJournal journal, ConversionListener listener,
+                                BooleanSupplier isCanceled) {
+        return runBatch(listener, isCanceled, batchListener -> {
+            if (journal != null) {
+                journalPending(journal, plan);
+            }
+            for (ConversionPlan.Entry entry : plan.getEntries()) {
+                if (!entry.isConversion()) {
+                    batchListener.fileCompleted(entry.getSrcFile(), entry.getTargetFile(),
+                                                OperationOutcome.SkippedBecauseExists, 0);
+                }
+            }
+            return FileSource.of(plan.getFilesToConvert());
+        }, journal);
+    }
+
+    /**
+     * Converts files as they are found by the given scanner, starting it if necessary, and
+     * blocks until the scan is finished and every file found has been dealt with. Each file
+     * is planned as it arrives, so files that would be skipped are never decoded, but no
+     * file list is ever built up front. The listener's totalChanged() method is notified as
+     * the scan finds more files.
+     *
+     * @param scanner    The scanner supplying source files.
+     * @param journal    The journal for this batch, or null to run without one.
+     * @param listener   Notified as the total grows, and as each file starts and completes. May be null.
+     * @param isCanceled Polled periodically to see if the batch should stop early.
+     * @return A BatchResult summarizing what happened.
+     */
+    public BatchResult runBatch(SourceFileScanner scanner, ConversionJournal journal, ConversionListener listener,
+                                BooleanSupplier isCanceled) {
+        return runBatch(listener, isCanceled, batchListener -> {
+            if (listener != null) {
+                scanner.setTotalListener(listener::totalChanged);
+            }
+            scanner.start();
+            return new FileSource() {
+                @Override
+                public File next() throws InterruptedException {
+                    File srcFile;
+                    while ((srcFile = scanner.next()) != null) {
+                        ConversionPlan.Entry entry = ConversionPlan.plan(srcFile, settings, journal);
+                        if (entry.isConversion()) {
+                            if (journal != null && entry.getSrcSize() >= 0) {
+                                journalPending(journal, entry);
+                            }
+                            return srcFile;
+                        }
+                        batchListener.fileCompleted(srcFile, entry.getTargetFile(),
+                                                    OperationOutcome.SkippedBecauseExists, 0);
+                    }
+                    return null;
+                }
+
+                @Override
+                public void cancel() {
+                    scanner.cancel();
+                }
+            };
+        }, journal);
+    }
+
+    /**
+     * Converts every file supplied by the given source, and blocks until it runs dry and every
+     * file has been dealt with. Unlike the other runBatch() methods, nothing is planned: each
+     * file is simply converted, or skipped if its target exists and we aren't overwriting.
+     *
+     * @param source     Supplies the files to convert. It is called from several threads at once.
+     * @param listener   Notified as each file starts and completes. May be null.
+     * @param isCanceled Polled periodically to see if the batch should stop early.
+     * @return A BatchResult summarizing what happened.
+     */
+    public BatchResult runBatch(FileSource source, ConversionListener listener, BooleanSupplier isCanceled) {
+        return runBatch(listener, isCanceled, batchListener -> source, null);
+    }
+
+    /**
+     * Prepares the FileSource for a batch. Given the batch's internal listener, so that it
+     * can report files that are planned to be skipped.
+     */
+    private interface BatchSetup {
+        FileSource prepare(ConversionListener batchListener);
+    }
+
+    /**
+     * The common part of every batch: wraps the caller's listener and cancel check so that
+     * the BatchResult and journal are kept up to date, then runs the FileSource from the
+     * given setup through either a worker pool or a ConversionPipeline.
+     */
+    private BatchResult runBatch(ConversionListener listener, BooleanSupplier isCanceled, BatchSetup setup,
+                                 ConversionJournal journal) {
+        ConversionMetrics metrics = new ConversionMetrics();
+        BatchResult result = new BatchResult(metrics);
+        DuplicateFinder duplicates = settings.getDeduplication() == ConversionSettings.Deduplication.OFF
+            ? null
+            : new DuplicateFinder(this, metrics);
+        ConversionListener batchListener = new ConversionListener() {
+            private final Set<File> commitFailures = new HashSet<>();
+
+            @Override
+            public void fileStarted(File srcFile) {
+                if (listener != null) {
+                    listener.fileStarted(srcFile);
+                }
+            }
+
+            @Override
+            public void fileCompleted(File srcFile, File targetFile, OperationOutcome outcome, long timeSpent) {
+                result.record(outcome, timeSpent);
+                metrics.recordOutcome(outcome);
+                synchronized (commitFailures) {
+                    // Another thread's commit can fail this file before its own thread gets here:
+                    if (!commitFailures.contains(srcFile)) {
+                        if (duplicates != null) {
+                            duplicates.fileCompleted(srcFile, outcome);
+                        }
+                        if (journal != null) {
+                            journalOutcome(journal, srcFile, outcome);
+                        }
+                    }
+                }
+                if (listener != null) {
+                    listener.fileCompleted(srcFile, targetFile, outcome, timeSpent);
+                }
+            }
+
+            @Override
+            public void fileCommitted(File srcFile, File targetFile) {
+                // Only now is the target really there, which with batched syncing can be well after
+                // the file was reported as a Success:
+                if (journal != null) {
+                    journalDone(journal, srcFile);
+                }
+                if (listener != null) {
+                    listener.fileCommitted(srcFile, targetFile);
+                }
+            }
+
+            @Override
+            public void commitFailed(File srcFile, File targetFile) {
+                result.recordCommitFailure();
+                metrics.recordCommitFailure();
+                synchronized (commitFailures) {
+                    commitFailures.add(srcFile);
+                    if (duplicates != null) {
+                        duplicates.fileCompleted(srcFile, OperationOutcome.InternalError);
+                    }
+                    if (journal != null) {
+                        journalOutcome(journal, srcFile, OperationOutcome.InternalError);
+                    }
+                }
+                if (listener != null) {
+                    listener.commitFailed(srcFile, targetFile);
+                }
+            }
+        };
+        BooleanSupplier cancelCheck = () -> {
+            if (isCanceled.getAsBoolean()) {
+                result.setCanceled(true);
+            }
+            return result.wasCanceled();
+        };
+
+        long startTime = System.currentTimeMillis();
+        FileSource source = setup.prepare(batchListener);
+        if (duplicates != null) {
+            source = duplicates.filter(source);
+        }
+        BatchThrottle batchThrottle = throttle;
+        if (batchThrottle == null && settings.isThrottled()) {
+            batchThrottle = new BatchThrottle(settings);
+        }
+        if (batchThrottle != null) {
+            source = batchThrottle.filter(source, metrics);
+        }
+        MemoryBudget memoryBudget = new MemoryBudget(settings.getMemoryBudget());
+        OutputWriter output = new OutputWriter(settings.getSyncInterval(), batchListener);
+        metrics.register();
+        try {
+            if (settings.isPipelined()) {
+                int threads = settings.getThreadCount();
+                int readers = settings.getPrefetchCount() > 0 ? settings.getPrefetchCount() : 2;
+                new ConversionPipeline(this, readers, threads, threads * 2, memoryBudget, output, metrics,
+                                       batchListener)
+                    .run(source, cancelCheck);
+            }
+            else {
+                runWorkerPool(source, memoryBudget, output, metrics, batchListener, cancelCheck);
+            }
+            if (duplicates != null) {
+                // The originals have to be in place before anything can be linked to them:
+                flush(output);
+                duplicates.finish(output, batchListener, cancelCheck);
+            }
+        }
+        catch (InterruptedException ie) {
+            result.setCanceled(true);
+            source.cancel();
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            // Files converted before a cancel are finished too; any that fail are reported as commit failures:
+            flush(output);
+            metrics.finish();
+            metrics.unregister();
+        }
+        result.setElapsedTime(System.currentTimeMillis() - startTime);
+        return result;
+    }
+
+    /**
+     * Commits every file the given OutputWriter is still holding back. A file that can't be
+     * committed has already been counted as a failure through the batch listener's
+     * commitFailed(), so all that's left to do here is log that it happened.
+     */
+    private static void flush(OutputWriter output) {
+        try {
+            output.flush();
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Some converted files could not be written: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Marks everything the plan is going to convert as PENDING in the given journal. A journal
+     * problem is logged but doesn't stop the batch; we just lose the ability to resume it.
+     */
+    private static void journalPending(ConversionJournal journal, ConversionPlan plan) {
+        for (ConversionPlan.Entry entry : plan.getEntries()) {
+            if (entry.isConversion() && entry.getSrcSize() >= 0) {
+                journalPending(journal, entry);
+            }
+        }
+        try {
+            journal.flush();
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to write to conversion journal: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private static void journalPending(ConversionJournal journal, ConversionPlan.Entry entry) {
+        try {
+            journal.markPending(entry.getSrcFile(), entry.getSrcSize(), entry.getSrcLastModified());
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to write to conversion journal: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private static void journalOutcome(ConversionJournal journal, File srcFile, OperationOutcome outcome) {
+        // A Success is journaled as DONE by journalDone() once its target has been committed. A file
+        // skipped because its target exists keeps whatever record it had, so a target we didn't
+        // write is looked at again next time.
+        if (outcome == OperationOutcome.Success || outcome == OperationOutcome.SkippedBecauseExists) {
+            return;
+        }
+        try {
+            journal.record(srcFile, ConversionJournal.State.FAILED);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to write to conversion journal: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private static void journalDone(ConversionJournal journal, File srcFile) {
+        try {
+            journal.record(srcFile, ConversionJournal.State.DONE);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to write to conversion journal: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Runs a fixed number of worker threads, each of which takes the next file from the
+     * given source and converts it, until the source runs dry or the batch is canceled.
+     * Each worker must acquire enough of the memory budget for its file before decoding it,
+     * and reuses the same reader and writer from a CodecPool for the whole batch.
+     */
+    private void runWorkerPool(FileSource source, MemoryBudget memoryBudget, OutputWriter output,
+                               ConversionMetrics metrics, ConversionListener listener, BooleanSupplier isCanceled)
+        throws InterruptedException {
+        try (CodecPool codecs = new CodecPool(this)) {
+            runWorkerPool(source, memoryBudget, codecs, output, metrics, listener, isCanceled);
+        }
+    }
+
+    private void runWorkerPool(FileSource source, MemoryBudget memoryBudget, CodecPool codecs, OutputWriter output,
+                               ConversionMetrics metrics, ConversionListener listener, BooleanSupplier isCanceled)
+        throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < settings.getThreadCount(); i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    File file;
+                    while (!isCanceled.getAsBoolean() && (file = source.next()) != null) {
+                        long footprint = getAdmissionFootprint(file);
+                        memoryBudget.acquire(footprint);
+                        try {
+                            convertFile(file, codecs, output, metrics, listener);
+                        }
+                        finally {
+                            memoryBudget.release(footprint);
+                        }
+                    }
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "ImageConverter-" + (i + 1));
+            thread.setDaemon(true);
+            if (settings.isLowPriority()) {
+                thread.setPriority(Thread.MIN_PRIORITY);
+            }
+            workers.add(thread);
+            thread.start();
+        }
+        awaitWorkers(workers, source, isCanceled);
+    }
+
+    /**
+     * Converts a single file on behalf of a batch, reporting its progress to the given listener.
+     */
+    private void convertFile(File file, CodecPool codecs, OutputWriter output, ConversionMetrics metrics,
+                             ConversionListener listener) {
+        listener.fileStarted(file);
+        long fileStartTime = System.currentTimeMillis();
+        OperationOutcome outcome;
+        try {
+            outcome = convertFile(file, codecs, output, metrics);
+        }
+        catch (RuntimeException e) {
+            // Otherwise it would kill the worker thread and our counts would be off.
+            logger.log(Level.SEVERE, "Unexpected error converting " + file.getAbsolutePath(), e);
+            outcome = OperationOutcome.InternalError;
+        }
+        listener.fileCompleted(file, getTargetFile(file), outcome, System.currentTimeMillis() - fileStartTime);
+    }
+
+    /**
+     * Waits for all of the given threads to finish, keeping an eye on the cancel check as we go.
+     * If the batch is canceled, the source is told to stop so that nobody stays blocked on it.
+     */
+    static void awaitWorkers(List<Thread> workers, FileSource source, BooleanSupplier isCanceled)
+        throws InterruptedException {
+        boolean sourceCanceled = false;
+        try {
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.join(100);
+                    if (!sourceCanceled && isCanceled.getAsBoolean()) {
+                        source.cancel();
+                        sourceCanceled = true;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            source.cancel();
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            throw ie;
+        }
+    }
+
+    /**
+     * Returns the file that the given source file would be converted to. The target file
+     * may or may not exist.
+     */
+    File getTargetFile(File srcFile) {
+        return settings.getTargetFile(srcFile);
+    }
+
+    /**
+     * Reports whether conversion of the given source file should be skipped because its
+     * target file already exists and "overwrite if exists" is not selected.
+     */
+    boolean shouldSkip(File srcFile, File targetFile) {
+        if (targetFile.exists() && !settings.isOverwriteIfExists()) {
+            logger.log(Level.INFO,
+                       "Skipping conversion of \"{0}\" because the output file exists and \"overwrite if exists\" is not selected.",
+                       srcFile.getAbsolutePath());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the given image in memory using our output format and jpeg quality. If our
+     * settings have a maximum output dimension, the image is first scaled down to fit. For
+     * jpeg output, the image is converted to RGB on the matte color first, in this thread's
+     * pooled buffer. Png output is written with the pool's PngEncoder where possible, and
+     * with ImageIO otherwise. Jpeg output with a target size is written with the pool's
+     * SizedJpegEncoder.
+     *
+     * @param image   The decoded source image.
+     * @param codecs  Supplies this thread's writer and its prebuilt parameters.
+     * @param encoded Receives the encoded output image.
+     * @throws IOException If encoding fails.
+     */
+    void encodeImage(BufferedImage image, CodecPool codecs, OutputBuffer encoded) throws IOException {
+        image = ImageScaler.scaleToFit(image, settings.getMaxDimension());
+        if (settings.getOutputFormat() == ConversionSettings.OutputFormat.PNG && PngEncoder.canEncode(image)) {
+            codecs.getPngEncoder().encode(image, encoded);
+            return;
+        }
+        if (settings.getOutputFormat() == ConversionSettings.OutputFormat.JPEG && !RgbConverter.isRgb(image)) {
+            // Jpeg has no alpha channel, so flatten anything that isn't plain RGB first:
+            BufferedImage rgbImage = codecs.getRgbImage(image.getWidth(), image.getHeight());
+            RgbConverter.convert(image, rgbImage, settings.getMatteColor());
+            image = rgbImage;
+        }
+        if (settings.isJpegSizeTargeted()) {
+            codecs.getSizedJpegEncoder().encode(image, encoded);
+            return;
+        }
+
+        ImageWriter imageWriter = codecs.getWriter();
+        ImageWriteParam param = codecs.getWriteParam();
+        try (ImageOutputStream imageOutStream = new MemoryCacheImageOutputStream(encoded)) {
+            imageWriter.setOutput(imageOutStream);
+            imageWriter.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            imageWriter.reset();
+        }
+    }
+
+    /**
+     * Returns a new ImageWriter for our output format. The caller must dispose() it when done.
+     *
+     * @throws IOException If no writer exists for our output format.
+     */
+    ImageWriter createImageWriter() throws IOException {
+        ConversionSettings.OutputFormat format = settings.getOutputFormat();
+        Iterator<ImageWriter> iter = ImageIO.getImageWritersByFormatName(format.getFormatName());
+        if (!iter.hasNext()) {
+            throw new IOException("No " + format.getFormatName()
+                                      + " ImageWriter exists on this system; unable to convert.");
+        }
+        return iter.next();
+    }
+
+    /**
+     * Returns write parameters for the given writer, with the jpeg quality from our settings if applicable.
+     */
+    ImageWriteParam createWriteParam(ImageWriter imageWriter) {
+        ImageWriteParam param = imageWriter.getDefaultWriteParam();
+        if (settings.getOutputFormat() == ConversionSettings.OutputFormat.JPEG) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(settings.getJpegQuality());
+        }
+        return param;
+    }
+
+    /**
+     * Reads the creation time of the given source file, so it can later be applied to
+     * the converted file if "preserve date/time" is selected.
+     */
+    FileTime getCreationTime(File srcFile) throws IOException {
+        BasicFileAttributes view = Files.getFileAttributeView(srcFile.toPath(), BasicFileAttributeView.class)
+                                        .readAttributes();
+        return view.creationTime();
+    }
+
+    /**
+     * Returns the date/time the target file for the given source file should be given: the
+     * source file's creation time if "preserve date/time" is selected, or null otherwise.
+     * The source file's attributes are only read if they are needed.
+     */
+    FileTime getTargetTime(File srcFile, ConversionMetrics metrics) throws IOException {
+        if (!settings.isPreserveDate()) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        FileTime creationTime = getCreationTime(srcFile);
+        metrics.record(ConversionMetrics.Stage.METADATA, startTime);
+        return creationTime;
+    }
+
+    /**
+     * Writes an encoded image to its target file through the given OutputWriter. The target gets
+     * the given date/time, and the source file is removed once the target is safely in place,
+     * if so directed.
+     *
+     * @param srcFile    The source image file.
+     * @param targetFile The file to write.
+     * @param encoded    The encoded image.
+     * @param targetTime The date/time for the target file, from getTargetTime().
+     * @param output     Writes and commits the file.
+     * @param metrics    Records the time spent writing, and later deleting.
+     * @throws IOException If the target file can't be written.
+     */
+    void writeTarget(File srcFile, File targetFile, OutputBuffer encoded, FileTime targetTime, OutputWriter output,
+                     ConversionMetrics metrics) throws IOException {
+        long startTime = System.nanoTime();
+        output.write(srcFile, targetFile, encoded, targetTime, getSourceCleanup(srcFile, metrics));
+        metrics.record(ConversionMetrics.Stage.WRITE, startTime);
+        metrics.addBytesWritten(encoded.size());
+    }
+
+    /**
+     * Returns the action that removes the given source file once its target is in place,
+     * or null if we aren't removing source files.
+     */
+    private Runnable getSourceCleanup(File srcFile, ConversionMetrics metrics) {
+        if (!settings.isDeleteOriginal()) {
+            return null;
+        }
+        return () -> {
+            long startTime = System.nanoTime();
+            if (!srcFile.delete()) {
+                logger.log(Level.WARNING, "Unable to remove source file {0} after converting it.",
+                           srcFile.getAbsolutePath());
+            }
+            metrics.record(ConversionMetrics.Stage.DELETE, startTime);
+        };
+    }
+
+    /**
+     * Finds all files in the given directory that can be converted with the given settings.
+     * This is a plain java.nio equivalent of FileSystemUtil.findFiles(), for use where the
+     * ImageViewer libraries aren't available.
+     *
+     * @param dir       The directory to search.
+     * @param recursive Whether to also search all subdirectories.
+     * @param settings  Determines which file extensions are of interest.
+     * @return A sorted list of matching files. Might be empty but never null.
+     * @throws IOException If the directory can't be read.
+     */
+    public static List<File> findSourceFiles(File dir, boolean recursive, ConversionSettings settings)
+        throws IOException {
+        try (Stream<Path> stream = recursive ? Files.walk(dir.toPath()) : Files.list(dir.toPath())) {
+            return stream.filter(Files::isRegularFile)
+                         .map(Path::toFile)
+                         .filter(settings::isSourceFile)
+                         .sorted()
+                         .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent record of the progress of a batch conversion, so that a batch that was
+ * canceled (or that died along with its JVM) can be resumed later without starting over.
+ * <p>
+ * Each source file in the batch is recorded as PENDING when the batch starts, and then as
+ * DONE once we have converted it ourselves, or FAILED, along with the size and last modified
+ * time the source had when it was planned, and the output fingerprint of the settings it was
+ * converted with (see ConversionSettings.getOutputFingerprint()). On the next run, a source that
+ * is recorded as DONE, whose size and modified time haven't changed, and that was converted with
+ * settings that would write the same output, can be skipped without converting it again.
+ * Files that were skipped because their target already existed are never recorded as DONE,
+ * since we can't vouch for a target we didn't write. Files recorded as FAILED can be retried
+ * on their own with getFailedFiles().
+ * </p>
+ * <p>
+ * The journal is a plain text file that is only ever appended to while a batch is running,
+ * one line per state change, and flushed as each file completes. If the process dies part
+ * way through, at worst the last line is incomplete, and it's ignored on the next load.
+ * When the journal is closed, it is compacted down to one line per source file.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-05
+ */
+public class ConversionJournal implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ConversionJournal.class.getName());
+
+    public enum State {
+        PENDING, DONE, FAILED
+    }
+
+    /**
+     * The last known state of a single source file.
+     */
+    private static final class Record {
+        final State state;
+        final long size;
+        final long lastModified;
+        final String fingerprint;
+
+        Record(State state, long size, long lastModified, String fingerprint) {
+            this.state = state;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final File journalFile;
+    private final String fingerprint;
+    private final Map<String, Record> records = new LinkedHashMap<>();
+    private BufferedWriter writer;
+
+    private ConversionJournal(File journalFile, String fingerprint) {
+        this.journalFile = journalFile;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the journal file we use by default for a batch rooted at the given directory.
+     * There is one journal per output format, so that converting a directory to png doesn't
+     * interfere with a later conversion of the same directory to jpeg.
+     *
+     * @param rootDir  The directory the batch was started from.
+     * @param settings The settings for the batch.
+     * @return A (possibly non-existent) journal file inside that directory.
+     */
+    public static File getDefaultJournalFile(File rootDir, ConversionSettings settings) {
+        return new File(rootDir, ".imageconverter-" + settings.getOutputFormat().getFormatName() + ".journal");
+    }
+
+    /**
+     * Opens the given journal file, loading whatever it already contains. If the file
+     * doesn't exist yet, it will be created as soon as something is recorded.
+     *
+     * @param journalFile The journal file.
+     * @param settings    The settings of the batch that will use the journal. Everything recorded
+     *                    is taken to have been done with these settings.
+     * @return A ConversionJournal ready for use.
+     * @throws IOException If the existing journal can't be read.
+     */
+    public static ConversionJournal open(File journalFile, ConversionSettings settings) throws IOException {
+        ConversionJournal journal = new ConversionJournal(journalFile, settings.getOutputFingerprint());
+        if (journalFile.exists()) {
+            journal.load();
+        }
+        return journal;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Reports whether the given source file was converted by an earlier run, with settings
+     * that write the same output as ours, and hasn't been modified since.
+     *
+     * @param srcFile      The source file.
+     * @param size         Its current size in bytes.
+     * @param lastModified Its current last modified time, in milliseconds.
+     * @return true if there's no need to convert this file again.
+     */
+    public synchronized boolean isDoneAndUnchanged(File srcFile, long size, long lastModified) {
+        Record record = records.get(srcFile.getAbsolutePath());
+        return record != null
+            && record.state == State.DONE
+            && record.size == size
+            && record.lastModified == lastModified
+            && record.fingerprint.equals(fingerprint);
+    }
+
+    /**
+     * Returns the last recorded state of the given file, or null if we know nothing about it.
+     */
+    public synchronized State getState(File srcFile) {
+        Record record = records.get(srcFile.getAbsolutePath());
+        return record == null ? null : record.state;
+    }
+
+    /**
+     * Returns all files whose last recorded state is FAILED.
+     */
+    public synchronized List<File> getFailedFiles() {
+        return getFiles(State.FAILED);
+    }
+
+    /**
+     * Returns all files whose last recorded state is PENDING. These are files that were
+     * planned by an earlier batch but never completed.
+     */
+    public synchronized List<File> getPendingFiles() {
+        return getFiles(State.PENDING);
+    }
+
+    /**
+     * Records the given source file as PENDING, with the given source attributes. Nothing is
+     * flushed to disk until the next call to flush() or record().
+     */
+    public synchronized void markPending(File srcFile, long size, long lastModified) throws IOException {
+        append(srcFile, new Record(State.PENDING, size, lastModified, fingerprint));
+    }
+
+    /**
+     * Records a new state for the given source file, and flushes the journal. The source
+     * attributes recorded when the file was marked pending are kept; if the file was never
+     * marked pending, they are read from the file now.
+     */
+    public synchronized void record(File srcFile, State state) throws IOException {
+        record(srcFile, state, -1, -1);
+    }
+
+    /**
+     * Records a new state for the given source file with the given source attributes, and
+     * flushes the journal. If size or lastModified is negative, they are looked up as
+     * described in record(File, State).
+     */
+    public synchronized void record(File srcFile, State state, long size, long lastModified) throws IOException {
+        if (size >= 0 && lastModified >= 0) {
+            append(srcFile, new Record(state, size, lastModified, fingerprint));
+            writer.flush();
+            return;
+        }
+        Record previous = records.get(srcFile.getAbsolutePath());
+        if (previous != null) {
+            size = previous.size;
+            lastModified = previous.lastModified;
+        }
+        else {
+            BasicFileAttributes attributes = Files.readAttributes(srcFile.toPath(), BasicFileAttributes.class);
+            size = attributes.size();
+            lastModified = attributes.lastModifiedTime().toMillis();
+        }
+        append(srcFile, new Record(state, size, lastModified, fingerprint));
+        writer.flush();
+    }
+
+    public synchronized void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Closes the journal, compacting it down to the last known state of each file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        Path tempFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp").toPath();
+        try (BufferedWriter compactWriter = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                compactWriter.write(formatLine(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(tempFile, journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<File> getFiles(State state) {
+        List<File> list = new ArrayList<>();
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            if (entry.getValue().state == state) {
+                list.add(new File(entry.getKey()));
+            }
+        }
+        return list;
+    }
+
+    private void append(File srcFile, Record record) throws IOException {
+        if (writer == null) {
+            writer = Files.newBufferedWriter(journalFile.toPath(), StandardCharsets.UTF_8,
+                                             StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        String path = srcFile.getAbsolutePath();
+        records.put(path, record);
+        writer.write(formatLine(path, record));
+    }
+
+    /**
+     * Lines are: state, size, lastModified, fingerprint, path - separated by tabs. The path goes
+     * last so that it doesn't matter if it contains a tab.
+     */
+    private static String formatLine(String path, Record record) {
+        return record.state + "\t" + record.size + "\t" + record.lastModified + "\t" + record.fingerprint
+            + "\t" + path + "\n";
+    }
+
+    private void load() throws IOException {
+        int badLines = 0;
+        for (String line : Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t", 5);
+            if (parts.length < 5) {
+                badLines++;
+                continue;
+            }
+            try {
+                records.put(parts[4], new Record(State.valueOf(parts[0]), Long.parseLong(parts[1]),
+                                                 Long.parseLong(parts[2]), parts[3]));
+            }
+            catch (IllegalArgumentException iae) {
+                badLines++;
+            }
+        }
+        if (badLines > 0) {
+            // Expected if we were killed part way through a write; not worth more than a warning.
+            logger.log(Level.WARNING, "Ignored {0} unreadable line(s) in journal {1}",
+                       new Object[]{badLines, journalFile.getAbsolutePath()});
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+
+/**
+ * Receives progress notifications from a ConversionEngine batch. Batches run on worker
+ * threads, so these methods will be invoked from those threads, possibly several at once.
+ * Implementations must be thread safe, and must not assume they are on the Swing EDT.
+ *
+ * @author scorbo2
+ * @since 2024-01-03
+ */
+public interface ConversionListener {
+
+    /**
+     * Invoked as the total number of files in the batch grows, for batches fed by a
+     * SourceFileScanner whose total isn't known up front. The default implementation does nothing.
+     *
+     * @param total The number of files discovered so far.
+     */
+    default void totalChanged(int total) {
+    }
+
+    /**
+     * Invoked when work on the given file begins. The default implementation does nothing.
+     *
+     * @param srcFile The source file about to be converted.
+     */
+    default void fileStarted(File srcFile) {
+    }
+
+    /**
+     * Invoked when the given file has been dealt with, one way or another.
+     *
+     * @param srcFile    The source file.
+     * @param targetFile The target file (which only exists if the outcome was Success or SkippedBecauseExists).
+     * @param outcome    What happened.
+     * @param timeSpent  Time spent on this file, in milliseconds.
+     */
+    void fileCompleted(File srcFile, File targetFile, ConversionEngine.OperationOutcome outcome, long timeSpent);
+
+    /**
+     * Invoked once the target file written for the given source file is in place (and, if
+     * files are being synced, safely on disk). With files synced in groups (see OutputWriter),
+     * this can come some time after the file was reported as a Success, and in the worst case
+     * only at the end of the batch. Without that, it comes just before. The default
+     * implementation does nothing.
+     *
+     * @param srcFile    The source file.
+     * @param targetFile The target file, which now exists.
+     */
+    default void fileCommitted(File srcFile, File targetFile) {
+    }
+
+    /**
+     * Invoked when a file that was already reported as a Success couldn't be put in place after
+     * all. This only happens when files are synced to disk in groups (see OutputWriter), as the
+     * rename comes some time after the file is reported. The file should now be counted as an
+     * InternalError; the batch's own BatchResult and journal already are. The default
+     * implementation does nothing.
+     *
+     * @param srcFile    The source file, which is left where it was.
+     * @param targetFile The target file that couldn't be written.
+     */
+    default void commitFailed(File srcFile, File targetFile) {
+    }
+}
@@ -0,0 +1,339 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects per-stage timings and throughput figures for a batch conversion. Every worker
+ * thread records into the same instance, so everything in here is built on LongAdder and
+ * LatencyHistogram, which stay cheap when many threads record at once.
+ * <p>
+ * While a batch is running, its metrics are registered with the platform MBeanServer
+ * (see ConversionMetricsMXBean), and once it's done, they can be written out as a JSON or
+ * CSV report with writeReport(). The BatchResult of each batch carries its metrics.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+
+    private static final Logger logger = Logger.getLogger(ConversionMetrics.class.getName());
+
+    private static final AtomicInteger batchCounter = new AtomicInteger();
+
+    /**
+     * The steps that we time separately. Not every conversion goes through every stage:
+     * the worker pool reads and decodes in one step (recorded as DECODE), and images that
+     * are converted in strips are recorded as STREAMED instead of decode/encode/write.
+     */
+    public enum Stage {
+        /** Reading the raw source bytes into memory (pipelined batches only). */
+        READ,
+        /** Decoding the source image. */
+        DECODE,
+        /** Scaling, flattening and encoding the output image in memory. */
+        ENCODE,
+        /** Writing the encoded output image to disk. */
+        WRITE,
+        /** Reading and setting file attributes such as the creation and modified times. */
+        METADATA,
+        /** Deleting the source file, when that option is on. */
+        DELETE,
+        /** The whole strip by strip conversion of a very large image. */
+        STREAMED,
+        /** Hashing source files to find duplicates (deduplicated batches only). */
+        HASH,
+        /** Waiting to start the next file, while paused or held back by a BatchThrottle (throttled batches only). */
+        THROTTLE
+    }
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder imagesConverted = new LongAdder();
+    private final LongAdder imagesSkipped = new LongAdder();
+    private final LongAdder imagesFailed = new LongAdder();
+    private final Instant startTime = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private ObjectName objectName;
+
+    public ConversionMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records the time taken by one pass through the given stage.
+     *
+     * @param stage      The stage.
+     * @param startNanos The System.nanoTime() at which the stage started; the end is now.
+     */
+    public void record(Stage stage, long startNanos) {
+        stages.get(stage).record(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void recordOutcome(ConversionEngine.OperationOutcome outcome) {
+        switch (outcome) {
+            case SkippedBecauseExists:
+                imagesSkipped.increment();
+                break;
+            case InternalError:
+                imagesFailed.increment();
+                break;
+            case Success:
+                imagesConverted.increment();
+                break;
+        }
+    }
+
+    /**
+     * Counts an image that was recorded as converted as a failure instead. See BatchResult.recordCommitFailure().
+     */
+    void recordCommitFailure() {
+        imagesConverted.decrement();
+        imagesFailed.increment();
+    }
+
+    /**
+     * Stops the clock for images per second and throughput figures. Until this is called,
+     * they are calculated against the current time.
+     */
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Publishes these metrics over JMX, under a name that is unique to this batch. Failure to
+     * do so is logged, but is otherwise harmless.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(getClass().getPackageName() + ":type=ConversionMetrics,batch="
+                                            + batchCounter.incrementAndGet());
+            server.registerMBean(this, objectName);
+        }
+        catch (JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to publish conversion metrics over JMX: " + e.getMessage(), e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Removes these metrics from JMX, if they were published.
+     */
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to remove conversion metrics from JMX: " + e.getMessage(), e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getImagesConverted() {
+        return imagesConverted.sum();
+    }
+
+    @Override
+    public long getImagesSkipped() {
+        return imagesSkipped.sum();
+    }
+
+    @Override
+    public long getImagesFailed() {
+        return imagesFailed.sum();
+    }
+
+    @Override
+    public double getImagesPerSecond() {
+        double seconds = getElapsedMillis() / 1000.0;
+        return seconds <= 0 ? 0 : getImagesConverted() / seconds;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return (end - startNanos) / 1_000_000;
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        stages.forEach((stage, histogram) -> map.put(stageName(stage), histogram.getCount()));
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        Map<String, Double> map = new LinkedHashMap<>();
+        stages.forEach((stage, histogram) -> map.put(stageName(stage), histogram.getMeanMillis()));
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getStageP95Millis() {
+        Map<String, Double> map = new LinkedHashMap<>();
+        stages.forEach((stage, histogram) -> map.put(stageName(stage), histogram.getPercentileMillis(95)));
+        return map;
+    }
+
+    /**
+     * Returns a short human readable summary of the stages that were used, one per line,
+     * suitable for logging.
+     */
+    public String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "%d images in %dms (%.1f/s), %s read, %s written%n",
+                                     getImagesConverted(), getElapsedMillis(), getImagesPerSecond(),
+                                     formatBytes(getBytesRead()), formatBytes(getBytesWritten())));
+        for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
+                builder.append(String.format(Locale.ROOT, "  %-8s %6d x  mean %8.2fms  p95 %8.2fms  max %8.2fms%n",
+                                             stageName(entry.getKey()), histogram.getCount(),
+                                             histogram.getMeanMillis(), histogram.getPercentileMillis(95),
+                                             histogram.getMaxMillis()));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes a machine readable report of these metrics to the given file. If the file name
+     * ends in ".csv", a CSV report is written, with one row per stage followed by the batch
+     * totals; otherwise, the report is JSON.
+     *
+     * @param file     The file to write. It will be overwritten if it exists.
+     * @param settings The settings the batch was run with, which are included in the report.
+     * @throws IOException If the file can't be written.
+     */
+    public void writeReport(File file, ConversionSettings settings) throws IOException {
+        boolean isCsv = file.getName().toLowerCase(Locale.ROOT).endsWith(".csv");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            if (isCsv) {
+                writeCsv(writer, settings);
+            }
+            else {
+                writeJson(writer, settings);
+            }
+        }
+    }
+
+    private void writeJson(PrintWriter writer, ConversionSettings settings) {
+        writer.println("{");
+        writer.printf(Locale.ROOT, "  \"startTime\": \"%s\",%n", startTime);
+        writer.printf(Locale.ROOT, "  \"outputFormat\": \"%s\",%n", settings.getOutputFormat().getFormatName());
+        writer.printf(Locale.ROOT, "  \"threads\": %d,%n", settings.getThreadCount());
+        writer.printf(Locale.ROOT, "  \"pipelined\": %b,%n", settings.isPipelined());
+        writer.printf(Locale.ROOT, "  \"prefetch\": %d,%n", settings.getPrefetchCount());
+        writer.printf(Locale.ROOT, "  \"maxImagesPerSecond\": %.3f,%n", settings.getMaxImagesPerSecond());
+        writer.printf(Locale.ROOT, "  \"maxBytesPerSecond\": %d,%n", settings.getMaxBytesPerSecond());
+        writer.printf(Locale.ROOT, "  \"elapsedMillis\": %d,%n", getElapsedMillis());
+        writer.printf(Locale.ROOT, "  \"imagesConverted\": %d,%n", getImagesConverted());
+        writer.printf(Locale.ROOT, "  \"imagesSkipped\": %d,%n", getImagesSkipped());
+        writer.printf(Locale.ROOT, "  \"imagesFailed\": %d,%n", getImagesFailed());
+        writer.printf(Locale.ROOT, "  \"imagesPerSecond\": %.3f,%n", getImagesPerSecond());
+        writer.printf(Locale.ROOT, "  \"bytesRead\": %d,%n", getBytesRead());
+        writer.printf(Locale.ROOT, "  \"bytesWritten\": %d,%n", getBytesWritten());
+        writer.println("  \"stages\": {");
+        int remaining = stages.size();
+        for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            writer.printf(Locale.ROOT, "    \"%s\": {\"count\": %d, \"totalMillis\": %.3f, \"meanMillis\": %.3f, "
+                              + "\"p50Millis\": %.3f, \"p95Millis\": %.3f, \"p99Millis\": %.3f, "
+                              + "\"maxMillis\": %.3f}%s%n",
+                          stageName(entry.getKey()), histogram.getCount(), histogram.getTotalMillis(),
+                          histogram.getMeanMillis(), histogram.getPercentileMillis(50),
+                          histogram.getPercentileMillis(95), histogram.getPercentileMillis(99),
+                          histogram.getMaxMillis(), --remaining > 0 ? "," : "");
+        }
+        writer.println("  }");
+        writer.println("}");
+    }
+
+    private void writeCsv(PrintWriter writer, ConversionSettings settings) {
+        writer.println("stage,count,totalMillis,meanMillis,p50Millis,p95Millis,p99Millis,maxMillis");
+        for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            writer.printf(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+                          stageName(entry.getKey()), histogram.getCount(), histogram.getTotalMillis(),
+                          histogram.getMeanMillis(), histogram.getPercentileMillis(50),
+                          histogram.getPercentileMillis(95), histogram.getPercentileMillis(99),
+                          histogram.getMaxMillis());
+        }
+        writer.println();
+        writer.println("metric,value");
+        writer.printf(Locale.ROOT, "startTime,%s%n", startTime);
+        writer.printf(Locale.ROOT, "outputFormat,%s%n", settings.getOutputFormat().getFormatName());
+        writer.printf(Locale.ROOT, "threads,%d%n", settings.getThreadCount());
+        writer.printf(Locale.ROOT, "pipelined,%b%n", settings.isPipelined());
+        writer.printf(Locale.ROOT, "prefetch,%d%n", settings.getPrefetchCount());
+        writer.printf(Locale.ROOT, "maxImagesPerSecond,%.3f%n", settings.getMaxImagesPerSecond());
+        writer.printf(Locale.ROOT, "maxBytesPerSecond,%d%n", settings.getMaxBytesPerSecond());
+        writer.printf(Locale.ROOT, "elapsedMillis,%d%n", getElapsedMillis());
+        writer.printf(Locale.ROOT, "imagesConverted,%d%n", getImagesConverted());
+        writer.printf(Locale.ROOT, "imagesSkipped,%d%n", getImagesSkipped());
+        writer.printf(Locale.ROOT, "imagesFailed,%d%n", getImagesFailed());
+        writer.printf(Locale.ROOT, "imagesPerSecond,%.3f%n", getImagesPerSecond());
+        writer.printf(Locale.ROOT, "bytesRead,%d%n", getBytesRead());
+        writer.printf(Locale.ROOT, "bytesWritten,%d%n", getBytesWritten());
+    }
+
+    private static String stageName(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return (bytes / 1024) + "KB";
+        }
+        return String.format(Locale.ROOT, "%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+}
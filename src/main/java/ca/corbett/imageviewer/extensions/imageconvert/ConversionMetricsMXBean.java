@@ -0,0 +1,34 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.util.Map;
+
+/**
+ * The live view of a running batch that ConversionMetrics publishes over JMX, so that it
+ * can be watched in JConsole or VisualVM while the batch is in progress. Stage maps are keyed
+ * by the lower case stage name (decode, encode, and so on).
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public interface ConversionMetricsMXBean {
+
+    long getImagesConverted();
+
+    long getImagesSkipped();
+
+    long getImagesFailed();
+
+    double getImagesPerSecond();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getElapsedMillis();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanMillis();
+
+    Map<String, Double> getStageP95Millis();
+}
@@ -0,0 +1,391 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A staged alternative to converting each file in one blocking step. Each file moves
+ * through four stages, each with its own threads:
+ * <ol>
+ *     <li><b>read</b> - I/O threads check whether the file needs converting at all, and if so,
+ *     prefetch its raw bytes into memory (or into the page cache, if they are memory-mapped).</li>
+ *     <li><b>decode</b> - CPU threads decode those bytes into a BufferedImage.</li>
+ *     <li><b>encode</b> - CPU threads encode that image into the target format, into a
+ *     pooled in-memory buffer.</li>
+ *     <li><b>write</b> - a single I/O thread hands the encoded bytes to an OutputWriter, which
+ *     writes them to disk atomically and removes the source file once the target is in place.</li>
+ * </ol>
+ * <p>
+ * Files are pulled from a FileSource, which may be a fixed list or a directory scan that is
+ * still in progress. Before a file is read, the read stage acquires enough of the batch's
+ * MemoryBudget to hold it, as estimated from its header, and that is released again when
+ * the file leaves the pipeline. The stages are linked by small bounded queues. When a
+ * downstream stage falls behind, the queue feeding it fills up and the upstream stage blocks, so the number of files
+ * held in memory at any one time stays flat no matter how big the batch is. The benefit
+ * is that disk and CPU are busy at the same time, which matters most on slow spinning
+ * disks and network mounts.
+ * </p>
+ * <p>
+ * On network file systems, where each file takes a long round trip to open and read, the
+ * read stage can be given many threads (see ConversionSettings.getPrefetchCount()), so that
+ * many files are being fetched at once while earlier ones are decoded. Reader threads spend
+ * nearly all their time waiting on the network, so having a lot of them is cheap, and the
+ * memory budget still caps how much they can pull in ahead of the CPU threads.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-02
+ */
+public class ConversionPipeline {
+
+    private static final Logger logger = Logger.getLogger(ConversionPipeline.class.getName());
+
+    /**
+     * The unit of work that moves through the stages. Each stage fills in the next field.
+     */
+    private static final class WorkItem {
+        private static final WorkItem POISON = new WorkItem(null);
+
+        final File srcFile;
+        File targetFile;
+        FileTime targetTime;
+        ByteBuffer source;
+        BufferedImage image;
+        OutputBuffer encoded;
+        long startTime;
+        long footprint;
+
+        WorkItem(File srcFile) {
+            this.srcFile = srcFile;
+        }
+    }
+
+    private final ConversionEngine engine;
+    private final int readerCount;
+    private final int cpuThreadCount;
+    private final int queueCapacity;
+    private final MemoryBudget memoryBudget;
+    private final OutputWriter output;
+    private final ConversionMetrics metrics;
+    private final ConversionListener listener;
+
+    /**
+     * Creates a pipeline with the given number of decode and encode threads. Two reader
+     * threads and one writer thread are used, and each queue holds twice as many items as
+     * there are CPU threads.
+     *
+     * @param engine         The engine that does the actual conversion work.
+     * @param cpuThreadCount The number of decode threads, and also of encode threads.
+     * @param listener       Notified as each file starts and completes.
+     */
+    public ConversionPipeline(ConversionEngine engine, int cpuThreadCount, ConversionListener listener) {
+        this(engine, 2, cpuThreadCount, cpuThreadCount * 2,
+             new MemoryBudget(engine.getSettings().getMemoryBudget()),
+             new OutputWriter(engine.getSettings().getSyncInterval(), listener), new ConversionMetrics(), listener);
+    }
+
+    /**
+     * Creates a pipeline with full control over the stage sizes.
+     *
+     * @param engine         The engine that does the actual conversion work.
+     * @param readerCount    The number of threads prefetching source files.
+     * @param cpuThreadCount The number of decode threads, and also of encode threads.
+     * @param queueCapacity  The maximum number of items waiting between any two stages.
+     * @param memoryBudget   Limits the total estimated footprint of all files in the pipeline.
+     * @param output         Writes the converted files. It is flushed at the end of each run.
+     * @param metrics        Records the time spent in each stage.
+     * @param listener       Notified as each file starts and completes.
+     */
+    public ConversionPipeline(ConversionEngine engine, int readerCount, int cpuThreadCount, int queueCapacity,
+                              MemoryBudget memoryBudget, OutputWriter output, ConversionMetrics metrics,
+                              ConversionListener listener) {
+        this.engine = engine;
+        this.readerCount = Math.max(1, readerCount);
+        this.cpuThreadCount = Math.max(1, cpuThreadCount);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.memoryBudget = memoryBudget;
+        this.output = output;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    /**
+     * Pushes every file in the given list through the pipeline, and blocks until all of
+     * them have come out the other end. If the given cancel check returns true, no further
+     * files are read, but files already inside the pipeline are allowed to finish.
+     *
+     * @param fileList   The files to convert.
+     * @param isCanceled Polled by the reader stage before each file.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public void run(List<File> fileList, BooleanSupplier isCanceled) throws InterruptedException {
+        run(FileSource.of(fileList), isCanceled);
+    }
+
+    /**
+     * Pushes every file supplied by the given source through the pipeline, and blocks until
+     * the source runs dry and all of its files have come out the other end. If the given
+     * cancel check returns true, the source is canceled and no further files are read, but
+     * files already inside the pipeline are allowed to finish. The decode and encode threads
+     * each reuse the same reader and writer for the whole run, from a CodecPool.
+     *
+     * @param source     Supplies the files to convert.
+     * @param isCanceled Polled by the reader stage before each file, and periodically while waiting.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public void run(FileSource source, BooleanSupplier isCanceled) throws InterruptedException {
+        try (CodecPool codecs = new CodecPool(engine)) {
+            run(source, codecs, isCanceled);
+        }
+        finally {
+            try {
+                output.flush();
+            }
+            catch (IOException ioe) {
+                logger.log(Level.SEVERE, "ConversionPipeline: some converted files could not be written: "
+                    + ioe.getMessage(), ioe);
+            }
+        }
+    }
+
+    private void run(FileSource source, CodecPool codecs, BooleanSupplier isCanceled) throws InterruptedException {
+        BlockingQueue<WorkItem> readQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<WorkItem> decodedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<WorkItem> encodedQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger readersLeft = new AtomicInteger(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            threads.add(createThread("read-" + (i + 1), () -> {
+                readStage(source, codecs, isCanceled, readQueue);
+                if (readersLeft.decrementAndGet() == 0) {
+                    poison(readQueue, cpuThreadCount);
+                }
+            }));
+        }
+        AtomicInteger decodersLeft = new AtomicInteger(cpuThreadCount);
+        for (int i = 0; i < cpuThreadCount; i++) {
+            threads.add(createThread("decode-" + (i + 1), () -> {
+                decodeStage(codecs, readQueue, decodedQueue);
+                if (decodersLeft.decrementAndGet() == 0) {
+                    poison(decodedQueue, cpuThreadCount);
+                }
+            }));
+        }
+        AtomicInteger encodersLeft = new AtomicInteger(cpuThreadCount);
+        for (int i = 0; i < cpuThreadCount; i++) {
+            threads.add(createThread("encode-" + (i + 1), () -> {
+                encodeStage(codecs, decodedQueue, encodedQueue);
+                if (encodersLeft.decrementAndGet() == 0) {
+                    poison(encodedQueue, 1);
+                }
+            }));
+        }
+        threads.add(createThread("write", () -> writeStage(codecs, encodedQueue)));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        ConversionEngine.awaitWorkers(threads, source, isCanceled);
+    }
+
+    private void readStage(FileSource source, CodecPool codecs, BooleanSupplier isCanceled,
+                           BlockingQueue<WorkItem> out) {
+        File srcFile;
+        while (!isCanceled.getAsBoolean() && (srcFile = nextFile(source)) != null) {
+            WorkItem item = new WorkItem(srcFile);
+            listener.fileStarted(item.srcFile);
+            item.startTime = System.currentTimeMillis();
+            item.targetFile = engine.getTargetFile(item.srcFile);
+            try {
+                // No point reading the file if we're not going to convert it:
+                if (engine.shouldSkip(item.srcFile, item.targetFile)) {
+                    complete(item, ConversionEngine.OperationOutcome.SkippedBecauseExists);
+                    continue;
+                }
+                item.targetTime = engine.getTargetTime(item.srcFile, metrics);
+
+                // Wait for room in the memory budget before pulling anything into memory.
+                // The footprint is released when the item leaves the pipeline, one way or another:
+                long footprint = MemoryBudget.estimateFootprint(item.srcFile, engine.getSettings());
+                if (engine.shouldStream(footprint)) {
+                    // Too big to prefetch; convert it strip by strip right here instead:
+                    item.footprint = StreamingConverter.getFootprint(engine.getSettings());
+                    memoryBudget.acquire(item.footprint);
+                    complete(item, engine.convertStreamed(item.srcFile, item.targetFile, output, metrics));
+                    continue;
+                }
+                footprint += item.srcFile.length();
+                memoryBudget.acquire(footprint);
+                item.footprint = footprint;
+                long startTime = System.nanoTime();
+                item.source = codecs.readSource(item.srcFile);
+                metrics.record(ConversionMetrics.Stage.READ, startTime);
+                metrics.addBytesRead(item.source.remaining());
+            }
+            catch (IOException ioe) {
+                fail(item, "read", ioe);
+                continue;
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!put(out, item)) {
+                return;
+            }
+        }
+    }
+
+    private void decodeStage(CodecPool codecs, BlockingQueue<WorkItem> in, BlockingQueue<WorkItem> out) {
+        WorkItem item;
+        while ((item = take(in)) != null) {
+            try {
+                long startTime = System.nanoTime();
+                item.image = codecs.read(item.srcFile, item.source);
+                metrics.record(ConversionMetrics.Stage.DECODE, startTime);
+            }
+            catch (IOException | RuntimeException e) {
+                fail(item, "decode", e);
+                continue;
+            }
+            finally {
+                codecs.releaseSource(item.source);
+                item.source = null;
+            }
+            if (!put(out, item)) {
+                return;
+            }
+        }
+    }
+
+    private void encodeStage(CodecPool codecs, BlockingQueue<WorkItem> in, BlockingQueue<WorkItem> out) {
+        WorkItem item;
+        while ((item = take(in)) != null) {
+            try {
+                long startTime = System.nanoTime();
+                item.encoded = codecs.acquireBuffer();
+                engine.encodeImage(item.image, codecs, item.encoded);
+                metrics.record(ConversionMetrics.Stage.ENCODE, startTime);
+            }
+            catch (IOException | RuntimeException e) {
+                codecs.releaseBuffer(item.encoded);
+                item.encoded = null;
+                fail(item, "encode", e);
+                continue;
+            }
+            finally {
+                item.image.flush();
+                item.image = null;
+            }
+            if (!put(out, item)) {
+                return;
+            }
+        }
+    }
+
+    private void writeStage(CodecPool codecs, BlockingQueue<WorkItem> in) {
+        WorkItem item;
+        while ((item = take(in)) != null) {
+            try {
+                engine.writeTarget(item.srcFile, item.targetFile, item.encoded, item.targetTime, output, metrics);
+            }
+            catch (IOException | RuntimeException e) {
+                fail(item, "write", e);
+                continue;
+            }
+            finally {
+                codecs.releaseBuffer(item.encoded);
+                item.encoded = null;
+            }
+            complete(item, ConversionEngine.OperationOutcome.Success);
+        }
+    }
+
+    private void complete(WorkItem item, ConversionEngine.OperationOutcome outcome) {
+        memoryBudget.release(item.footprint);
+        item.footprint = 0;
+        listener.fileCompleted(item.srcFile, item.targetFile, outcome, System.currentTimeMillis() - item.startTime);
+    }
+
+    private void fail(WorkItem item, String stage, Exception e) {
+        logger.log(Level.SEVERE,
+                   "ConversionPipeline: " + stage + " stage failed for " + item.srcFile.getAbsolutePath()
+                       + ": " + e.getMessage(), e);
+        complete(item, ConversionEngine.OperationOutcome.InternalError);
+    }
+
+    /**
+     * Blocks until the source supplies another file. Returns null if it has run dry or if we were interrupted.
+     */
+    private static File nextFile(FileSource source) {
+        try {
+            return source.next();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Blocks until the given item fits in the given queue. Returns false if we were interrupted.
+     */
+    private static boolean put(BlockingQueue<WorkItem> queue, WorkItem item) {
+        try {
+            queue.put(item);
+            return true;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Blocks until an item is available. Returns null if the upstream stage is finished
+     * or if we were interrupted.
+     */
+    private static WorkItem take(BlockingQueue<WorkItem> queue) {
+        try {
+            WorkItem item = queue.take();
+            return item == WorkItem.POISON ? null : item;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Tells each of the given number of downstream consumers that no more items are coming.
+     */
+    private static void poison(BlockingQueue<WorkItem> queue, int consumerCount) {
+        for (int i = 0; i < consumerCount; i++) {
+            if (!put(queue, WorkItem.POISON)) {
+                return;
+            }
+        }
+    }
+
+    private Thread createThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, "ConversionPipeline-" + name);
+        thread.setDaemon(true);
+        if (engine.getSettings().isLowPriority()) {
+            thread.setPriority(Thread.MIN_PRIORITY);
+        }
+        return thread;
+    }
+
+}
@@ -0,0 +1,289 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes what a batch conversion is going to do with each of its files, before any
+ * image data is read. Each source file is classified as CONVERT (the target doesn't exist
+ * yet), OVERWRITE (the target exists and will be replaced), or SKIP (the target exists and
+ * overwriting is not enabled). Building a plan only looks at filesystem metadata, so it is
+ * cheap even for very large batches, and it means the engine never has to decode a file
+ * that it was only going to skip anyway.
+ * <p>
+ * A plan can also be used on its own as a dry run: getReport() describes what would happen
+ * without anything being converted.
+ * </p>
+ * <p>
+ * If a ConversionJournal is supplied, sources that the journal says were already converted
+ * with the same output settings, and which haven't changed since, are classified as UNCHANGED
+ * without looking at their targets. With "overwrite if exists", the journal is not consulted, since
+ * the user has asked for every target to be written again.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-04
+ */
+public class ConversionPlan {
+
+    private static final Logger logger = Logger.getLogger(ConversionPlan.class.getName());
+
+    public enum Action {
+        CONVERT, OVERWRITE, SKIP, UNCHANGED
+    }
+
+    /**
+     * A single planned action on a single source file.
+     */
+    public static final class Entry {
+        private final File srcFile;
+        private final File targetFile;
+        private final Action action;
+        private final long srcSize;
+        private final long srcLastModified;
+
+        Entry(File srcFile, File targetFile, Action action) {
+            this(srcFile, targetFile, action, -1, -1);
+        }
+
+        Entry(File srcFile, File targetFile, Action action, long srcSize, long srcLastModified) {
+            this.srcFile = srcFile;
+            this.targetFile = targetFile;
+            this.action = action;
+            this.srcSize = srcSize;
+            this.srcLastModified = srcLastModified;
+        }
+
+        public File getSrcFile() {
+            return srcFile;
+        }
+
+        public File getTargetFile() {
+            return targetFile;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * The size of the source file when it was planned, or -1 if it wasn't looked at.
+         */
+        public long getSrcSize() {
+            return srcSize;
+        }
+
+        /**
+         * The last modified time of the source file when it was planned, or -1 if it wasn't looked at.
+         */
+        public long getSrcLastModified() {
+            return srcLastModified;
+        }
+
+        /**
+         * Reports whether this entry's source file will be decoded and converted.
+         */
+        public boolean isConversion() {
+            return action == Action.CONVERT || action == Action.OVERWRITE;
+        }
+    }
+
+    private final List<Entry> entries;
+    private final int convertCount;
+    private final int overwriteCount;
+    private final int skipCount;
+    private final int unchangedCount;
+
+    private ConversionPlan(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        int convert = 0;
+        int overwrite = 0;
+        int skip = 0;
+        int unchanged = 0;
+        for (Entry entry : entries) {
+            switch (entry.getAction()) {
+                case CONVERT:
+                    convert++;
+                    break;
+                case OVERWRITE:
+                    overwrite++;
+                    break;
+                case SKIP:
+                    skip++;
+                    break;
+                case UNCHANGED:
+                    unchanged++;
+                    break;
+            }
+        }
+        this.convertCount = convert;
+        this.overwriteCount = overwrite;
+        this.skipCount = skip;
+        this.unchangedCount = unchanged;
+    }
+
+    /**
+     * Classifies each of the given source files according to the given settings. No image
+     * data is read here; only the existence of each target file is checked.
+     *
+     * @param fileList The source files in the batch.
+     * @param settings The settings the batch will be run with.
+     * @return A ConversionPlan with one entry per source file, in the same order.
+     */
+    public static ConversionPlan create(List<File> fileList, ConversionSettings settings) {
+        return create(fileList, settings, null);
+    }
+
+    /**
+     * Classifies each of the given source files according to the given settings, consulting
+     * the given journal first. Each source file's size and modified time are read so that
+     * they can be compared against (and later recorded in) the journal.
+     *
+     * @param fileList The source files in the batch.
+     * @param settings The settings the batch will be run with.
+     * @param journal  The journal for this batch, or null to plan without one.
+     * @return A ConversionPlan with one entry per source file, in the same order.
+     */
+    public static ConversionPlan create(List<File> fileList, ConversionSettings settings, ConversionJournal journal) {
+        List<Entry> entries = new ArrayList<>(fileList.size());
+        for (File srcFile : fileList) {
+            entries.add(plan(srcFile, settings, journal));
+        }
+        return new ConversionPlan(entries);
+    }
+
+    /**
+     * Classifies a single source file according to the given settings.
+     *
+     * @param srcFile  The source file.
+     * @param settings The settings the conversion will be run with.
+     * @return A plan entry for that file.
+     */
+    public static Entry plan(File srcFile, ConversionSettings settings) {
+        File targetFile = settings.getTargetFile(srcFile);
+        if (!Files.exists(targetFile.toPath())) {
+            return new Entry(srcFile, targetFile, Action.CONVERT);
+        }
+        if (settings.isOverwriteIfExists()) {
+            return new Entry(srcFile, targetFile, Action.OVERWRITE);
+        }
+        logger.log(Level.FINE,
+                   "Planning to skip \"{0}\" because the output file exists and \"overwrite if exists\" is not selected.",
+                   srcFile.getAbsolutePath());
+        return new Entry(srcFile, targetFile, Action.SKIP);
+    }
+
+    /**
+     * Classifies a single source file according to the given settings, consulting the given
+     * journal first if there is one.
+     *
+     * @param srcFile  The source file.
+     * @param settings The settings the conversion will be run with.
+     * @param journal  The journal for this batch, or null.
+     * @return A plan entry for that file.
+     */
+    public static Entry plan(File srcFile, ConversionSettings settings, ConversionJournal journal) {
+        if (journal == null) {
+            return plan(srcFile, settings);
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(srcFile.toPath(), BasicFileAttributes.class);
+        }
+        catch (IOException ioe) {
+            // Leave it to the conversion itself to report the problem:
+            return plan(srcFile, settings);
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        // Files are only journaled as done once their target is committed, so there's no need to look for it:
+        if (!settings.isOverwriteIfExists() && journal.isDoneAndUnchanged(srcFile, size, lastModified)) {
+            return new Entry(srcFile, settings.getTargetFile(srcFile), Action.UNCHANGED, size, lastModified);
+        }
+        Entry entry = plan(srcFile, settings);
+        return new Entry(srcFile, entry.getTargetFile(), entry.getAction(), size, lastModified);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the source files that will actually be decoded and converted (that is,
+     * everything that isn't going to be skipped), in plan order.
+     */
+    public List<File> getFilesToConvert() {
+        List<File> list = new ArrayList<>(convertCount + overwriteCount);
+        for (Entry entry : entries) {
+            if (entry.isConversion()) {
+                list.add(entry.getSrcFile());
+            }
+        }
+        return list;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getConvertCount() {
+        return convertCount;
+    }
+
+    public int getOverwriteCount() {
+        return overwriteCount;
+    }
+
+    public int getSkipCount() {
+        return skipCount;
+    }
+
+    /**
+     * The number of files skipped because the journal says they were already converted.
+     */
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * Returns a one-line summary of the plan, suitable for a confirmation prompt.
+     */
+    public String getSummary() {
+        String summary = convertCount + " to convert, " + overwriteCount + " to overwrite, " + skipCount + " to skip";
+        if (unchangedCount > 0) {
+            summary += ", " + unchangedCount + " already done";
+        }
+        return summary;
+    }
+
+    /**
+     * Returns a dry-run report listing the planned action for every file, followed by a summary.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            sb.append(String.format("%-10s %s -> %s%n", entry.getAction(), entry.getSrcFile().getPath(),
+                                    entry.getTargetFile().getName()));
+        }
+        sb.append(entries.size()).append(" files: ").append(getSummary()).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    /**
+     * Writes the dry-run report to the given file.
+     *
+     * @param reportFile The file to write. Will be overwritten if it exists.
+     * @throws IOException If the file can't be written.
+     */
+    public void writeReport(File reportFile) throws IOException {
+        Files.writeString(reportFile.toPath(), getReport());
+    }
+}
@@ -0,0 +1,555 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.Color;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An immutable snapshot of all the options that control a conversion. The ImageConverterDialog
+ * builds one of these from its form fields when the user hits OK, and the command line
+ * interface builds one from its arguments. Once built, a ConversionSettings can be shared
+ * freely between worker threads, as nothing in it ever changes.
+ * <p>
+ * Use ConversionSettings.builder() to create a new instance.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-03
+ */
+public final class ConversionSettings {
+
+    /**
+     * The output formats we know how to write. Each one knows its own file extension,
+     * and which source file extensions should be converted into it.
+     */
+    public enum OutputFormat {
+        PNG("png", ".png", List.of("jpg", "jpeg")),
+        JPEG("jpg", ".jpg", List.of("png"));
+
+        private final String formatName;
+        private final String extension;
+        private final List<String> sourceExtensions;
+
+        OutputFormat(String formatName, String extension, List<String> sourceExtensions) {
+            this.formatName = formatName;
+            this.extension = extension;
+            this.sourceExtensions = sourceExtensions;
+        }
+
+        /**
+         * The format name as understood by ImageIO.getImageWritersByFormatName().
+         */
+        public String getFormatName() {
+            return formatName;
+        }
+
+        /**
+         * The extension given to output files, including the leading dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * The extensions (without the leading dot, in lower case) of files that can be converted to this format.
+         */
+        public List<String> getSourceExtensions() {
+            return sourceExtensions;
+        }
+    }
+
+    /**
+     * How hard to work at making png output small. Each step trades encoding speed for
+     * file size; see PngEncoder for what each one does. All of them produce standard png files.
+     */
+    public enum PngCompression {
+        FAST,
+        BALANCED,
+        SMALL
+    }
+
+    /**
+     * What a batch does with source files that are byte-for-byte identical to one it has
+     * already seen. See DuplicateFinder.
+     */
+    public enum Deduplication {
+        /** Every file is converted, duplicate or not. */
+        OFF,
+        /** Each distinct image is converted once, and the other targets are hard links to that result. */
+        LINK,
+        /** Each distinct image is converted once, and the result is copied to the other targets. */
+        COPY
+    }
+
+    private final OutputFormat outputFormat;
+    private final float jpegQuality;
+    private final long jpegTargetBytes;
+    private final double jpegTargetBytesPerPixel;
+    private final boolean deleteOriginal;
+    private final boolean overwriteIfExists;
+    private final boolean preserveDate;
+    private final int threadCount;
+    private final boolean pipelined;
+    private final long memoryBudget;
+    private final long streamingThreshold;
+    private final int maxDimension;
+    private final Color matteColor;
+    private final PngCompression pngCompression;
+    private final int syncInterval;
+    private final boolean memoryMapped;
+    private final Deduplication deduplication;
+    private final int prefetchCount;
+    private final double maxImagesPerSecond;
+    private final long maxBytesPerSecond;
+    private final boolean lowPriority;
+
+    private ConversionSettings(Builder builder) {
+        this.outputFormat = builder.outputFormat;
+        this.jpegQuality = builder.jpegQuality;
+        this.jpegTargetBytes = builder.jpegTargetBytes;
+        this.jpegTargetBytesPerPixel = builder.jpegTargetBytesPerPixel;
+        this.deleteOriginal = builder.deleteOriginal;
+        this.overwriteIfExists = builder.overwriteIfExists;
+        this.preserveDate = builder.preserveDate;
+        this.threadCount = builder.threadCount;
+        this.pipelined = builder.pipelined;
+        this.memoryBudget = builder.memoryBudget;
+        this.streamingThreshold = builder.streamingThreshold;
+        this.maxDimension = builder.maxDimension;
+        this.matteColor = builder.matteColor;
+        this.pngCompression = builder.pngCompression;
+        this.syncInterval = builder.syncInterval;
+        this.memoryMapped = builder.memoryMapped;
+        this.deduplication = builder.deduplication;
+        this.prefetchCount = builder.prefetchCount;
+        this.maxImagesPerSecond = builder.maxImagesPerSecond;
+        this.maxBytesPerSecond = builder.maxBytesPerSecond;
+        this.lowPriority = builder.lowPriority;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Jpeg quality, from 0 to 1. Only used when the output format is JPEG. When a target size is
+     * set, this is the highest quality that will be used.
+     */
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * The size in bytes that each jpeg output file should come as close to as it can without going
+     * over, or 0 if not set. See SizedJpegEncoder.
+     */
+    public long getJpegTargetBytes() {
+        return jpegTargetBytes;
+    }
+
+    /**
+     * The size in bytes per pixel that jpeg output files should come as close to as they can
+     * without going over, or 0 if not set. Ignored if a target size in bytes is set.
+     */
+    public double getJpegTargetBytesPerPixel() {
+        return jpegTargetBytesPerPixel;
+    }
+
+    /**
+     * Whether jpeg output has a target size, so that its quality is chosen image by image.
+     */
+    public boolean isJpegSizeTargeted() {
+        return outputFormat == OutputFormat.JPEG && (jpegTargetBytes > 0 || jpegTargetBytesPerPixel > 0);
+    }
+
+    /**
+     * Returns the target size in bytes for a jpeg image of the given dimensions, or 0 if there is no target.
+     */
+    public long getJpegTargetBytes(int width, int height) {
+        if (jpegTargetBytes > 0) {
+            return jpegTargetBytes;
+        }
+        return (long)(jpegTargetBytesPerPixel * width * height);
+    }
+
+    public boolean isDeleteOriginal() {
+        return deleteOriginal;
+    }
+
+    public boolean isOverwriteIfExists() {
+        return overwriteIfExists;
+    }
+
+    public boolean isPreserveDate() {
+        return preserveDate;
+    }
+
+    /**
+     * How many files to convert at once in a batch. Always at least 1.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Whether batches should run through a staged ConversionPipeline instead of a plain worker pool.
+     * Always true if a prefetch count is set.
+     */
+    public boolean isPipelined() {
+        return pipelined || prefetchCount > 0;
+    }
+
+    /**
+     * How many source files a pipelined batch reads ahead at once, or 0 for the pipeline's usual
+     * two readers. Raising this keeps many reads in flight at a time, which hides the per-file
+     * latency of network file systems. The memory budget still limits how much is held at once.
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * The most images a batch may start per second, or 0 for no limit. See BatchThrottle.
+     */
+    public double getMaxImagesPerSecond() {
+        return maxImagesPerSecond;
+    }
+
+    /**
+     * The most bytes a batch may read and write per second, counted together, or 0 for no limit.
+     * See BatchThrottle.
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Whether either of the limits above is set.
+     */
+    public boolean isThrottled() {
+        return maxImagesPerSecond > 0 || maxBytesPerSecond > 0;
+    }
+
+    /**
+     * Whether batch threads run at the lowest thread priority, so that they only get the CPU time
+     * that the rest of the application isn't using.
+     */
+    public boolean isLowPriority() {
+        return lowPriority;
+    }
+
+    /**
+     * The maximum number of bytes of decoded image data a batch may hold in memory at once,
+     * or 0 to use MemoryBudget's default, which is based on the maximum heap size.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Images whose estimated decoded size in bytes is over this are converted strip by strip
+     * with a StreamingConverter, instead of being decoded in one piece. Zero means never.
+     */
+    public long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * The maximum width or height of converted images, or 0 to convert at full size. Bigger
+     * images are decoded at reduced resolution and then resampled to fit (see ImageScaler).
+     * Since that keeps their decoded size down, images are never streamed when this is set.
+     */
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * The background color that transparent areas are flattened onto for jpeg output,
+     * which has no alpha channel. Defaults to white.
+     */
+    public Color getMatteColor() {
+        return matteColor;
+    }
+
+    /**
+     * The compression level for png output. Only used when the output format is PNG.
+     */
+    public PngCompression getPngCompression() {
+        return pngCompression;
+    }
+
+    /**
+     * How often converted files are flushed to disk: 0 for never (leave it to the OS), 1 for
+     * after every file, or N to flush N files at a time. See OutputWriter.
+     */
+    public int getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Whether source files are memory-mapped for decoding, instead of read through the
+     * usual stream classes. See CodecPool.readSource().
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * What batches do with duplicate source files. Defaults to OFF.
+     */
+    public Deduplication getDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * Reports whether the given file has one of the extensions that can be converted
+     * to our output format.
+     *
+     * @param file Any file.
+     * @return true if this file would be picked up by a batch conversion with these settings.
+     */
+    public boolean isSourceFile(File file) {
+        String name = file.getName().toLowerCase();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && outputFormat.getSourceExtensions().contains(name.substring(dot + 1));
+    }
+
+    /**
+     * Returns the file that the given source file will be converted to. This is a file with
+     * the same base name in the same directory, with our output format's extension.
+     * The target file may or may not exist.
+     *
+     * @param srcFile The source image file.
+     * @return The target file.
+     */
+    public File getTargetFile(File srcFile) {
+        String name = srcFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot >= 0 ? name.substring(0, dot) : name;
+        return new File(srcFile.getParentFile(), baseName + outputFormat.getExtension());
+    }
+
+    /**
+     * Returns a short string that is the same for any two settings that would write the same
+     * output from the same source, and (almost certainly) different otherwise. Settings that only
+     * affect how a batch runs, such as the thread count, are left out. ConversionJournal records
+     * this with each file, so that a file converted with different settings isn't taken as done.
+     */
+    public String getOutputFingerprint() {
+        StringBuilder description = new StringBuilder(outputFormat.name());
+        if (outputFormat == OutputFormat.JPEG) {
+            description.append(",quality=").append(jpegQuality)
+                       .append(",targetBytes=").append(jpegTargetBytes)
+                       .append(",targetBytesPerPixel=").append(jpegTargetBytesPerPixel)
+                       .append(",matte=").append(Integer.toHexString(matteColor.getRGB()));
+        }
+        else {
+            description.append(",compression=").append(pngCompression);
+        }
+        description.append(",maxDimension=").append(maxDimension);
+
+        // 64-bit FNV-1a, which is plenty to tell a handful of setting combinations apart:
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : description.toString().getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * Builds ConversionSettings instances. All options have sensible defaults, so only
+     * the ones that matter to you need to be set.
+     */
+    public static final class Builder {
+        /**
+         * The default streaming threshold: 256MB of decoded pixels, or a roughly 8000x8000 image.
+         */
+        public static final long DEFAULT_STREAMING_THRESHOLD = 256L * 1024 * 1024;
+
+
+        private OutputFormat outputFormat = OutputFormat.PNG;
+        private float jpegQuality = 0.95f;
+        private long jpegTargetBytes = 0;
+        private double jpegTargetBytesPerPixel = 0;
+        private boolean deleteOriginal = false;
+        private boolean overwriteIfExists = false;
+        private boolean preserveDate = true;
+        private int threadCount = Runtime.getRuntime().availableProcessors();
+        private boolean pipelined = false;
+        private long memoryBudget = 0;
+        private long streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+        private int maxDimension = 0;
+        private Color matteColor = Color.WHITE;
+        private PngCompression pngCompression = PngCompression.BALANCED;
+        private int syncInterval = 0;
+        private boolean memoryMapped = false;
+        private Deduplication deduplication = Deduplication.OFF;
+        private int prefetchCount = 0;
+        private double maxImagesPerSecond = 0;
+        private long maxBytesPerSecond = 0;
+        private boolean lowPriority = false;
+
+        private Builder() {
+        }
+
+        public Builder setOutputFormat(OutputFormat outputFormat) {
+            if (outputFormat == null) {
+                throw new IllegalArgumentException("Output format must not be null.");
+            }
+            this.outputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * Sets the jpeg quality, from 0 to 1.
+         */
+        public Builder setJpegQuality(float jpegQuality) {
+            if (jpegQuality < 0f || jpegQuality > 1f) {
+                throw new IllegalArgumentException("Jpeg quality must be between 0 and 1.");
+            }
+            this.jpegQuality = jpegQuality;
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes to aim for with each jpeg output file. Zero or less means no target.
+         */
+        public Builder setJpegTargetBytes(long jpegTargetBytes) {
+            this.jpegTargetBytes = Math.max(0, jpegTargetBytes);
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes per pixel to aim for with jpeg output files. Zero or less means no target.
+         */
+        public Builder setJpegTargetBytesPerPixel(double jpegTargetBytesPerPixel) {
+            this.jpegTargetBytesPerPixel = Math.max(0, jpegTargetBytesPerPixel);
+            return this;
+        }
+
+        public Builder setDeleteOriginal(boolean deleteOriginal) {
+            this.deleteOriginal = deleteOriginal;
+            return this;
+        }
+
+        public Builder setOverwriteIfExists(boolean overwriteIfExists) {
+            this.overwriteIfExists = overwriteIfExists;
+            return this;
+        }
+
+        public Builder setPreserveDate(boolean preserveDate) {
+            this.preserveDate = preserveDate;
+            return this;
+        }
+
+        /**
+         * Sets the number of files to convert at once. Values less than 1 are treated as 1.
+         * The default is the number of available processors.
+         */
+        public Builder setThreadCount(int threadCount) {
+            this.threadCount = Math.max(1, threadCount);
+            return this;
+        }
+
+        public Builder setPipelined(boolean pipelined) {
+            this.pipelined = pipelined;
+            return this;
+        }
+
+        /**
+         * Sets the memory budget in bytes for decoded image data. Zero or less means use the default.
+         */
+        public Builder setMemoryBudget(long memoryBudget) {
+            this.memoryBudget = Math.max(0, memoryBudget);
+            return this;
+        }
+
+        /**
+         * Sets the decoded size in bytes above which images are converted strip by strip.
+         * Zero or less means images are never streamed.
+         */
+        public Builder setStreamingThreshold(long streamingThreshold) {
+            this.streamingThreshold = Math.max(0, streamingThreshold);
+            return this;
+        }
+
+        /**
+         * Sets the maximum width or height of converted images. Zero or less means no limit.
+         */
+        public Builder setMaxDimension(int maxDimension) {
+            this.maxDimension = Math.max(0, maxDimension);
+            return this;
+        }
+
+        /**
+         * Sets the background color for transparent areas in jpeg output. Any alpha in the
+         * given color itself is ignored.
+         */
+        public Builder setMatteColor(Color matteColor) {
+            this.matteColor = new Color(matteColor.getRGB() & 0xffffff);
+            return this;
+        }
+
+        public Builder setPngCompression(PngCompression pngCompression) {
+            this.pngCompression = pngCompression;
+            return this;
+        }
+
+        /**
+         * Sets how often converted files are flushed to disk. Zero or less means never.
+         */
+        public Builder setSyncInterval(int syncInterval) {
+            this.syncInterval = Math.max(0, syncInterval);
+            return this;
+        }
+
+        public Builder setMemoryMapped(boolean memoryMapped) {
+            this.memoryMapped = memoryMapped;
+            return this;
+        }
+
+        public Builder setDeduplication(Deduplication deduplication) {
+            this.deduplication = deduplication;
+            return this;
+        }
+
+        /**
+         * Sets how many source files to read ahead at once. Zero or less means the default.
+         */
+        public Builder setPrefetchCount(int prefetchCount) {
+            this.prefetchCount = Math.max(0, prefetchCount);
+            return this;
+        }
+
+        /**
+         * Sets the most images a batch may start per second. Zero or less means no limit.
+         */
+        public Builder setMaxImagesPerSecond(double maxImagesPerSecond) {
+            this.maxImagesPerSecond = Math.max(0, maxImagesPerSecond);
+            return this;
+        }
+
+        /**
+         * Sets the most bytes a batch may read and write per second. Zero or less means no limit.
+         */
+        public Builder setMaxBytesPerSecond(long maxBytesPerSecond) {
+            this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+            return this;
+        }
+
+        public Builder setLowPriority(boolean lowPriority) {
+            this.lowPriority = lowPriority;
+            return this;
+        }
+
+        public ConversionSettings build() {
+            return new ConversionSettings(this);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds source files in a batch that are byte-for-byte identical, so that each distinct image
+ * only has to be decoded and encoded once. Archives that have been copied around over the years
+ * tend to have many such copies in different directories.
+ * <p>
+ * The finder sits between a batch's FileSource and its workers (see filter()). The first file
+ * with a given content is passed through to be converted as usual. Any later file with the same
+ * content is held back, and once the rest of the batch is done, finish() gives it a hard link to
+ * (or a copy of) the first file's converted result. If the first file didn't convert successfully,
+ * its duplicates are converted normally instead.
+ * </p>
+ * <p>
+ * Files are compared by size first, and only hashed (with SHA-256) once a second file of the
+ * same size turns up, so a batch with no duplicates costs almost nothing extra: most files never
+ * have to be read twice. The exception is when source files are removed after conversion: then
+ * every file is hashed up front, as the first one may be gone by the time it's needed.
+ * </p>
+ * <p>
+ * Originals are looked up by content hash alone, not by the settings they were converted with.
+ * That is only safe because a DuplicateFinder lives for a single batch, and a batch's settings
+ * can't change part way through (a ConversionEngine's settings never change). It must not be
+ * shared between batches or engines.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class DuplicateFinder {
+
+    private static final Logger logger = Logger.getLogger(DuplicateFinder.class.getName());
+
+    private static final int HASH_BUFFER_BYTES = 64 * 1024;
+
+    private final ConversionEngine engine;
+    private final ConversionMetrics metrics;
+    private final Map<Long, SizeGroup> sizeGroups = new HashMap<>();
+    private final Map<File, Original> originals = new ConcurrentHashMap<>();
+    private final List<Original> withDuplicates = new ArrayList<>();
+
+    /**
+     * The first file seen with a given content, and the files held back as copies of it.
+     */
+    private static final class Original {
+        final File srcFile;
+        final File targetFile;
+        final List<File> duplicates = new ArrayList<>();
+        volatile ConversionEngine.OperationOutcome outcome;
+
+        Original(File srcFile, File targetFile) {
+            this.srcFile = srcFile;
+            this.targetFile = targetFile;
+        }
+    }
+
+    /**
+     * The originals that share a file size. The first of them isn't hashed until another file of
+     * the same size shows up, which for most sizes never happens.
+     */
+    private static final class SizeGroup {
+        Original unhashed;
+        final Map<String, Original> byHash = new HashMap<>();
+
+        SizeGroup(Original first) {
+            this.unhashed = first;
+        }
+    }
+
+    /**
+     * Creates a finder for one batch.
+     *
+     * @param engine  The engine running the batch.
+     * @param metrics Records the time spent hashing, and later linking or copying.
+     */
+    public DuplicateFinder(ConversionEngine engine, ConversionMetrics metrics) {
+        this.engine = engine;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns a FileSource that supplies the files from the given source, minus any that are
+     * duplicates of one already supplied. Files that will be skipped anyway, because their
+     * target exists, are passed straight through without being looked at.
+     */
+    public FileSource filter(FileSource source) {
+        return new FileSource() {
+            @Override
+            public File next() throws InterruptedException {
+                File srcFile;
+                while ((srcFile = source.next()) != null) {
+                    if (!holdBack(srcFile)) {
+                        return srcFile;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void cancel() {
+                source.cancel();
+            }
+        };
+    }
+
+    /**
+     * Must be told the outcome of every file converted by the batch, so that we know which
+     * results can be shared.
+     */
+    public void fileCompleted(File srcFile, ConversionEngine.OperationOutcome outcome) {
+        Original original = originals.get(srcFile);
+        if (original != null) {
+            original.outcome = outcome;
+        }
+    }
+
+    /**
+     * Deals with every file that was held back, reporting each one to the given listener as it
+     * would have been reported had it been converted. This must only be called once the rest of
+     * the batch is done and the given OutputWriter has been flushed, so that every original's
+     * target is in place. If the cancel check returns true, the remaining files are left alone.
+     *
+     * @param output     Writes the links or copies, as for any other converted file.
+     * @param listener   Notified as each held back file starts and completes.
+     * @param isCanceled Polled before each file.
+     */
+    public void finish(OutputWriter output, ConversionListener listener, BooleanSupplier isCanceled) {
+        List<Original> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(withDuplicates);
+            withDuplicates.clear();
+        }
+        CodecPool codecs = null;
+        try {
+            for (Original original : pending) {
+                for (File srcFile : original.duplicates) {
+                    if (isCanceled.getAsBoolean()) {
+                        return;
+                    }
+                    listener.fileStarted(srcFile);
+                    long startTime = System.currentTimeMillis();
+                    ConversionEngine.OperationOutcome outcome;
+                    if (original.outcome == ConversionEngine.OperationOutcome.Success) {
+                        outcome = engine.convertDuplicate(srcFile, original.targetFile, output, metrics);
+                    }
+                    else {
+                        // Nothing to share, so convert it as though it had no duplicate:
+                        if (codecs == null) {
+                            codecs = new CodecPool(engine);
+                        }
+                        outcome = engine.convertFile(srcFile, codecs, output, metrics);
+                    }
+                    listener.fileCompleted(srcFile, engine.getTargetFile(srcFile), outcome,
+                                           System.currentTimeMillis() - startTime);
+                }
+            }
+        }
+        finally {
+            if (codecs != null) {
+                codecs.close();
+            }
+        }
+    }
+
+    /**
+     * Decides whether the given file is a duplicate of one we have already let through, and if so,
+     * records it to be dealt with by finish().
+     */
+    private boolean holdBack(File srcFile) {
+        // Planned quietly, as the worker that gets this file will log the skip itself:
+        ConversionPlan.Entry entry = ConversionPlan.plan(srcFile, engine.getSettings());
+        if (entry.getAction() == ConversionPlan.Action.SKIP) {
+            return false;
+        }
+        File targetFile = entry.getTargetFile();
+        long size = srcFile.length();
+        SizeGroup group;
+        synchronized (sizeGroups) {
+            group = sizeGroups.get(size);
+            if (group == null) {
+                // If source files are being removed, this one may be gone by the time we want to hash it:
+                if (engine.getSettings().isDeleteOriginal()) {
+                    group = new SizeGroup(null);
+                    sizeGroups.put(size, group);
+                }
+                else {
+                    sizeGroups.put(size, new SizeGroup(addOriginal(srcFile, targetFile)));
+                    return false;
+                }
+            }
+        }
+
+        String hash;
+        try {
+            hash = hash(srcFile);
+        }
+        catch (IOException ioe) {
+            // We'll find out soon enough if it can't be read at all:
+            logger.log(Level.WARNING, "Unable to check " + srcFile.getAbsolutePath() + " for duplicates: "
+                + ioe.getMessage(), ioe);
+            return false;
+        }
+        synchronized (group) {
+            if (group.unhashed != null) {
+                try {
+                    group.byHash.putIfAbsent(hash(group.unhashed.srcFile), group.unhashed);
+                }
+                catch (IOException ioe) {
+                    // Probably already converted and removed; either way, nothing can be matched with it.
+                    logger.log(Level.FINE, "Unable to hash " + group.unhashed.srcFile.getAbsolutePath() + ": "
+                        + ioe.getMessage());
+                }
+                group.unhashed = null;
+            }
+            Original original = group.byHash.get(hash);
+            if (original == null) {
+                group.byHash.put(hash, addOriginal(srcFile, targetFile));
+                return false;
+            }
+            synchronized (this) {
+                if (original.duplicates.isEmpty()) {
+                    withDuplicates.add(original);
+                }
+                original.duplicates.add(srcFile);
+            }
+            return true;
+        }
+    }
+
+    private Original addOriginal(File srcFile, File targetFile) {
+        Original original = new Original(srcFile, targetFile);
+        originals.put(srcFile, original);
+        return original;
+    }
+
+    private String hash(File file) throws IOException {
+        long startTime = System.nanoTime();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to have it:
+            throw new IllegalStateException(nsae);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_BYTES);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        metrics.record(ConversionMetrics.Stage.HASH, startTime);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
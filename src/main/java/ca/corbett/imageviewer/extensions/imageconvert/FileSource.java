@@ -0,0 +1,46 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Supplies source files to the workers of a batch conversion, one at a time. This lets the
+ * ConversionEngine treat a fixed list of files and a directory scan that is still in
+ * progress the same way. Implementations must be safe to call from several worker
+ * threads at once.
+ *
+ * @author scorbo2
+ * @since 2024-01-06
+ */
+public interface FileSource {
+
+    /**
+     * Returns the next file to be converted, blocking if necessary until one is available.
+     *
+     * @return The next file, or null if there are no more files.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    File next() throws InterruptedException;
+
+    /**
+     * Asks this source to stop supplying files. Any threads blocked in next() should return
+     * null promptly. The default implementation does nothing.
+     */
+    default void cancel() {
+    }
+
+    /**
+     * Returns a FileSource that hands out the files in the given list, in order.
+     *
+     * @param fileList The files to supply.
+     * @return A thread safe FileSource over that list.
+     */
+    static FileSource of(List<File> fileList) {
+        AtomicInteger nextIndex = new AtomicInteger();
+        return () -> {
+            int index = nextIndex.getAndIncrement();
+            return index < fileList.size() ? fileList.get(index) : null;
+        };
+    }
+}
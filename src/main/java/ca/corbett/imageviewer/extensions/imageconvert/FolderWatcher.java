@@ -0,0 +1,311 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Watches one or more directories, and converts matching source files as they arrive or
+ * are modified, for as long as it is left running. This uses the file system's own change
+ * notifications (through java.nio's WatchService), so new files are picked up within
+ * seconds, without the directories ever being scanned again.
+ * <p>
+ * A file that is still being copied or written into a watched directory keeps generating
+ * events. Each file is only converted once it has gone a "quiet period" without any, its
+ * size and modification time have stopped changing, and it ends the way a complete jpeg or
+ * png file does, in case whatever is writing it has just stalled for a while. Files that become ready at about
+ * the same time are converted together as one batch, with all the usual batch machinery
+ * (worker threads, memory budget, and so on) from the engine's settings. Batches run on
+ * the thread that called run(), one at a time; anything arriving during a batch is picked
+ * up afterwards.
+ * </p>
+ * <p>
+ * Files already in the directories when watching starts are left alone; convert them with
+ * a normal batch first. As with any batch, a file whose target already exists is skipped
+ * unless the settings say to overwrite, so modified files are only converted again when
+ * overwriting is on. If the system drops events because too many arrived at once, the
+ * affected directory (only) is listed again to catch up.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class FolderWatcher implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(FolderWatcher.class.getName());
+
+    /**
+     * How long, in milliseconds, a file must go without changing before it is converted, by default.
+     */
+    public static final long DEFAULT_QUIET_MILLIS = 2000;
+
+    /**
+     * How often the cancel check is polled while there is nothing to do.
+     */
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    /**
+     * How many quiet periods we wait for a file that doesn't look complete, before deciding that
+     * it's as complete as it will ever be (some cameras add data after the end of the image).
+     */
+    private static final int MAX_INCOMPLETE_WAITS = 10;
+
+    private static final byte[] PNG_END_CHUNK = {'I', 'E', 'N', 'D'};
+
+    private final ConversionEngine engine;
+    private final List<File> roots;
+    private final boolean recursive;
+    private final long quietMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Map<Path, PendingFile> pending = new LinkedHashMap<>();
+
+    /**
+     * A file we've had events for, but haven't converted yet.
+     */
+    private static final class PendingFile {
+        long lastChangeNanos;
+        long size;
+        long lastModified;
+        int incompleteWaits;
+    }
+
+    /**
+     * Creates a watcher for the given directories. Nothing is watched until run() is called.
+     *
+     * @param engine      Converts the files, with its settings.
+     * @param roots       The directories to watch.
+     * @param recursive   Whether to watch subdirectories too, including ones created later.
+     * @param quietMillis How long a file must go without changing before it is converted.
+     * @throws IOException If the file system doesn't support watching.
+     */
+    public FolderWatcher(ConversionEngine engine, List<File> roots, boolean recursive, long quietMillis)
+        throws IOException {
+        this.engine = engine;
+        this.roots = List.copyOf(roots);
+        this.recursive = recursive;
+        this.quietMillis = Math.max(0, quietMillis);
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watches our directories and converts files as they become ready, until the given cancel
+     * check returns true or this watcher is closed. A batch in progress when that happens is
+     * canceled like any other, and files still waiting for their quiet period are dropped.
+     *
+     * @param listener       Notified as each file starts and completes. May be null.
+     * @param batchCompleted Given the result of each batch as it finishes. May be null.
+     * @param isCanceled     Polled regularly to see if we should stop.
+     * @throws IOException          If a directory can't be watched.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public void run(ConversionListener listener, Consumer<BatchResult> batchCompleted, BooleanSupplier isCanceled)
+        throws IOException, InterruptedException {
+        for (File root : roots) {
+            register(root.toPath());
+        }
+        try {
+            while (!isCanceled.getAsBoolean()) {
+                WatchKey key = watchService.poll(getPollMillis(), TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    processEvents(key);
+                    key = watchService.poll();
+                }
+                List<File> ready = collectReadyFiles();
+                if (!ready.isEmpty() && !isCanceled.getAsBoolean()) {
+                    BatchResult result = engine.runBatch(ready, listener, isCanceled);
+                    if (batchCompleted != null) {
+                        batchCompleted.accept(result);
+                    }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException cwse) {
+            // We were closed from another thread; that's a normal way to stop.
+        }
+    }
+
+    /**
+     * Stops watching. A run() in progress returns once any batch it is running has finished.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Returns how long to wait for the next event: until the earliest pending file's quiet period
+     * is up, or a while if nothing is pending.
+     */
+    private long getPollMillis() {
+        long wait = IDLE_POLL_MILLIS;
+        long now = System.nanoTime();
+        for (PendingFile file : pending.values()) {
+            long remaining = quietMillis - TimeUnit.NANOSECONDS.toMillis(now - file.lastChangeNanos);
+            wait = Math.min(wait, remaining);
+        }
+        return Math.max(1, wait);
+    }
+
+    private void processEvents(WatchKey key) {
+        Path dir = watchedDirs.get(key);
+        if (dir != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    logger.log(Level.INFO, "FolderWatcher: missed some events in {0}, listing it again.", dir);
+                    addExistingFiles(dir, false);
+                    continue;
+                }
+                Path child = dir.resolve((Path)event.context());
+                if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                    // Files may have landed in it before we could start watching it:
+                    try {
+                        register(child);
+                    }
+                    catch (IOException ioe) {
+                        logger.log(Level.WARNING, "FolderWatcher: unable to watch " + child + ": "
+                            + ioe.getMessage(), ioe);
+                    }
+                    addExistingFiles(child, true);
+                }
+                else {
+                    addPending(child);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // The directory is gone:
+            watchedDirs.remove(key);
+        }
+    }
+
+    /**
+     * Notes a change to the given file, if it's one we'd convert, restarting its quiet period.
+     */
+    private void addPending(Path file) {
+        File srcFile = file.toFile();
+        if (!engine.getSettings().isSourceFile(srcFile)) {
+            return;
+        }
+        PendingFile pendingFile = pending.computeIfAbsent(file, path -> new PendingFile());
+        pendingFile.lastChangeNanos = System.nanoTime();
+        pendingFile.size = srcFile.length();
+        pendingFile.lastModified = srcFile.lastModified();
+    }
+
+    private void addExistingFiles(Path dir, boolean includeSubdirs) {
+        try (Stream<Path> paths = includeSubdirs ? Files.walk(dir) : Files.list(dir)) {
+            paths.filter(Files::isRegularFile).forEach(this::addPending);
+        }
+        catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "FolderWatcher: unable to list " + dir + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes and returns every pending file whose quiet period is up, and whose size and date
+     * haven't changed since we last looked. Some file systems (network mounts in particular)
+     * don't report every write, so a file that has changed without telling us waits another
+     * quiet period. Files that have disappeared are dropped.
+     */
+    private List<File> collectReadyFiles() {
+        List<File> ready = new ArrayList<>();
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, PendingFile>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, PendingFile> entry = iterator.next();
+            PendingFile file = entry.getValue();
+            if (TimeUnit.NANOSECONDS.toMillis(now - file.lastChangeNanos) < quietMillis) {
+                continue;
+            }
+            File srcFile = entry.getKey().toFile();
+            long size = srcFile.length();
+            long lastModified = srcFile.lastModified();
+            if (lastModified == 0) {
+                iterator.remove();
+            }
+            else if (size != file.size || lastModified != file.lastModified) {
+                file.size = size;
+                file.lastModified = lastModified;
+                file.lastChangeNanos = now;
+            }
+            else if (!looksComplete(srcFile) && file.incompleteWaits++ < MAX_INCOMPLETE_WAITS) {
+                file.lastChangeNanos = now;
+            }
+            else {
+                iterator.remove();
+                ready.add(srcFile);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Reports whether the given file ends the way a complete image should: with an end of image
+     * marker for jpeg, or an IEND chunk for png. Anything else is assumed to be complete.
+     */
+    static boolean looksComplete(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < 12) {
+                return false;
+            }
+            byte[] start = new byte[2];
+            raf.readFully(start);
+            byte[] end = new byte[12];
+            raf.seek(length - end.length);
+            raf.readFully(end);
+            if ((start[0] & 0xff) == 0xff && (start[1] & 0xff) == 0xd8) {
+                return (end[10] & 0xff) == 0xff && (end[11] & 0xff) == 0xd9;
+            }
+            if ((start[0] & 0xff) == 0x89 && start[1] == 'P') {
+                return Arrays.equals(end, 4, 8, PNG_END_CHUNK, 0, PNG_END_CHUNK.length);
+            }
+            return true;
+        }
+        catch (IOException ioe) {
+            // Most likely still locked by whatever is writing it:
+            return false;
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        if (!recursive) {
+            registerOne(dir);
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            Iterator<Path> iterator = paths.filter(Files::isDirectory).iterator();
+            while (iterator.hasNext()) {
+                registerOne(iterator.next());
+            }
+        }
+    }
+
+    private void registerOne(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirs.put(key, dir);
+    }
+}
@@ -0,0 +1,574 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A command line entry point for batch conversions, so that they can be run on a headless
+ * machine without starting ImageViewer. This uses the same ConversionEngine as the
+ * ImageConverterDialog, and has no dependency on Swing or on the ImageViewer libraries,
+ * so the extension jar can be run directly:
+ * <pre>
+ *     java -jar ext-iv-image-converter-2.3.0.jar --to png --recursive /path/to/images
+ * </pre>
+ * Run with --help for the full list of options.
+ *
+ * @author scorbo2
+ * @since 2024-01-03
+ */
+public class ImageConverterCli {
+
+    /**
+     * How long, when stopped while watching, we wait for the files in progress to be finished.
+     */
+    private static final long SHUTDOWN_WAIT_MILLIS = 30000;
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private ConversionSettings.Builder settingsBuilder;
+    private boolean recursive;
+    private boolean verbose;
+    private boolean dryRun;
+    private boolean useJournal;
+    private boolean retryFailed;
+    private File reportFile;
+    private boolean watch;
+    private long watchQuietMillis = FolderWatcher.DEFAULT_QUIET_MILLIS;
+    private File shardDir;
+    private int shardUnitSize = ShardedBatch.DEFAULT_UNIT_SIZE;
+    private long leaseMillis = ShardedBatch.DEFAULT_LEASE_MILLIS;
+    private final List<File> inputs = new ArrayList<>();
+
+    ImageConverterCli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(new ImageConverterCli(System.out, System.err).run(args));
+    }
+
+    /**
+     * Parses the given arguments and runs the conversion they describe.
+     *
+     * @param args Command line arguments.
+     * @return A process exit code: 0 for success, 1 if any file failed, 2 for bad arguments.
+     */
+    int run(String[] args) {
+        try {
+            if (!parseArgs(args)) {
+                return 0;
+            }
+        }
+        catch (IllegalArgumentException iae) {
+            err.println("Error: " + iae.getMessage());
+            err.println("Use --help for usage information.");
+            return 2;
+        }
+
+        ConversionSettings settings = settingsBuilder.build();
+        for (File input : inputs) {
+            if (!input.exists()) {
+                err.println("Error: no such file or directory: " + input.getAbsolutePath());
+                return 2;
+            }
+        }
+
+        if (shardDir != null) {
+            return runShardedBatch(settings);
+        }
+
+        ConversionJournal journal = null;
+        if (useJournal) {
+            File journalDir = inputs.get(0).isDirectory() ? inputs.get(0) : inputs.get(0).getAbsoluteFile().getParentFile();
+            File journalFile = ConversionJournal.getDefaultJournalFile(journalDir, settings);
+            try {
+                journal = ConversionJournal.open(journalFile, settings);
+            }
+            catch (IOException ioe) {
+                err.println("Error: unable to read journal " + journalFile.getAbsolutePath() + ": " + ioe.getMessage());
+                return 1;
+            }
+        }
+
+        try {
+            if (dryRun || retryFailed) {
+                List<File> fileList = retryFailed ? journal.getFailedFiles() : findFiles(settings);
+                return runPlannedBatch(settings, fileList, journal);
+            }
+            int exitCode = runStreamingBatch(settings, journal);
+            return watch ? runWatcher(settings) : exitCode;
+        }
+        catch (IOException ioe) {
+            err.println("Error: unable to scan input directories: " + ioe.getMessage());
+            return 1;
+        }
+        finally {
+            if (journal != null) {
+                try {
+                    journal.close();
+                }
+                catch (IOException ioe) {
+                    err.println("Warning: unable to compact journal: " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans all of our inputs up front. Only needed for a dry run, where we need the full plan.
+     */
+    private List<File> findFiles(ConversionSettings settings) throws IOException {
+        List<File> fileList = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                fileList.addAll(ConversionEngine.findSourceFiles(input, recursive, settings));
+            }
+            else {
+                fileList.add(input);
+            }
+        }
+        return fileList;
+    }
+
+    private int runPlannedBatch(ConversionSettings settings, List<File> fileList, ConversionJournal journal) {
+        ConversionEngine engine = new ConversionEngine(settings);
+        ConversionPlan plan = engine.plan(fileList, journal);
+        if (dryRun) {
+            out.print(plan.getReport());
+            return 0;
+        }
+
+        out.println("Converting " + fileList.size() + " images to " + settings.getOutputFormat()
+                        + " using " + settings.getThreadCount() + " threads (" + plan.getSummary() + ")...");
+        return report(engine.runBatch(plan, journal, new VerboseListener(), () -> false), settings);
+    }
+
+    /**
+     * Converts files as they are found, without scanning the inputs up front.
+     */
+    private int runStreamingBatch(ConversionSettings settings, ConversionJournal journal) {
+        out.println("Converting images to " + settings.getOutputFormat()
+                        + " using " + settings.getThreadCount() + " threads...");
+        SourceFileScanner scanner = new SourceFileScanner(inputs, recursive, settings);
+        ConversionEngine engine = new ConversionEngine(settings);
+        return report(engine.runBatch(scanner, journal, new VerboseListener(), () -> false), settings);
+    }
+
+    /**
+     * Watches our input directories and converts new files as they arrive, until the process is
+     * told to stop (with Ctrl-C, for example). Stopping cancels the batch in progress, if any, and
+     * waits a little for the files already being converted to be finished.
+     */
+    private int runWatcher(ConversionSettings settings) throws IOException {
+        List<File> dirs = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                dirs.add(input);
+            }
+        }
+        if (dirs.isEmpty()) {
+            err.println("Error: --watch needs at least one directory to watch.");
+            return 2;
+        }
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopped.set(true);
+            try {
+                finished.await(SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ignored) {
+                // We're exiting anyway.
+            }
+        }));
+
+        out.println("Watching " + dirs.size() + " director" + (dirs.size() == 1 ? "y" : "ies")
+                        + " for new images. Press Ctrl-C to stop.");
+        ConversionEngine engine = new ConversionEngine(settings);
+        try (FolderWatcher watcher = new FolderWatcher(engine, dirs, recursive, watchQuietMillis)) {
+            watcher.run(new VerboseListener(), result -> report(result, settings), stopped::get);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            finished.countDown();
+        }
+        return 0;
+    }
+
+    /**
+     * Works on a batch shared with other processes through a coordination directory, until every
+     * part of it has been done by somebody. See ShardedBatch.
+     */
+    private int runShardedBatch(ConversionSettings settings) {
+        File root = inputs.get(0);
+        if (inputs.size() > 1 || !root.isDirectory()) {
+            err.println("Error: --shard needs exactly one directory to convert.");
+            return 2;
+        }
+        ShardedBatch batch = new ShardedBatch(new ConversionEngine(settings), root, recursive, shardDir);
+        batch.setUnitSize(shardUnitSize);
+        batch.setLeaseMillis(leaseMillis);
+        out.println("Converting images to " + settings.getOutputFormat() + " using " + settings.getThreadCount()
+                        + " threads, as worker " + batch.getWorkerId() + " of a sharded batch...");
+        ShardSummary summary;
+        try {
+            summary = batch.run(new VerboseListener(), () -> false);
+        }
+        catch (IOException ioe) {
+            err.println("Error: unable to use coordination directory " + shardDir.getPath() + ": " + ioe.getMessage());
+            return 1;
+        }
+        out.print(summary.getReport());
+        return summary.isComplete() && summary.getProblemCount() == 0 ? 0 : 1;
+    }
+
+    private int report(BatchResult result, ConversionSettings settings) {
+        out.println(result.getProcessedCount() + " images processed: " + result.getConvertedCount() + " converted, "
+                        + result.getSkippedCount() + " skipped, " + result.getProblemCount() + " problems.");
+        out.println("Elapsed time: " + result.getElapsedTime() + "ms");
+        if (verbose) {
+            out.print(result.getMetrics().getSummary());
+        }
+        if (reportFile != null) {
+            try {
+                result.getMetrics().writeReport(reportFile, settings);
+                out.println("Timing report written to " + reportFile.getPath());
+            }
+            catch (IOException ioe) {
+                err.println("Unable to write timing report: " + ioe.getMessage());
+                return 1;
+            }
+        }
+        return result.getProblemCount() > 0 ? 1 : 0;
+    }
+
+    private class VerboseListener implements ConversionListener {
+        @Override
+        public void fileCompleted(File srcFile, File targetFile, ConversionEngine.OperationOutcome outcome,
+                                  long timeSpent) {
+            if (verbose) {
+                out.println(outcome + ": " + srcFile.getPath() + " (" + timeSpent + "ms)");
+            }
+        }
+        @Override
+        public void commitFailed(File srcFile, File targetFile) {
+            if (verbose) {
+                out.println(ConversionEngine.OperationOutcome.InternalError + ": " + srcFile.getPath()
+                                + " (unable to write " + targetFile.getName() + ")");
+            }
+        }
+    }
+
+    /**
+     * Parses our arguments into a settings builder and a list of inputs.
+     *
+     * @return false if the caller only asked for help, true otherwise.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    private boolean parseArgs(String[] args) {
+        settingsBuilder = ConversionSettings.builder();
+        boolean formatGiven = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    printUsage();
+                    return false;
+                case "--to":
+                    String format = requireValue(args, ++i, arg).toLowerCase();
+                    if ("png".equals(format)) {
+                        settingsBuilder.setOutputFormat(ConversionSettings.OutputFormat.PNG);
+                    }
+                    else if ("jpg".equals(format) || "jpeg".equals(format)) {
+                        settingsBuilder.setOutputFormat(ConversionSettings.OutputFormat.JPEG);
+                    }
+                    else {
+                        throw new IllegalArgumentException("Unknown output format: " + format);
+                    }
+                    formatGiven = true;
+                    break;
+                case "--quality":
+                    int quality = requireInt(args, ++i, arg);
+                    if (quality < 1 || quality > 100) {
+                        throw new IllegalArgumentException("Jpeg quality must be between 1 and 100.");
+                    }
+                    settingsBuilder.setJpegQuality(quality / 100f);
+                    break;
+                case "--target-size":
+                    int targetKilobytes = requireInt(args, ++i, arg);
+                    if (targetKilobytes < 1) {
+                        throw new IllegalArgumentException("Target size must be at least 1KB.");
+                    }
+                    settingsBuilder.setJpegTargetBytes(targetKilobytes * 1024L);
+                    break;
+                case "--target-bpp":
+                    double targetBytesPerPixel = requireDouble(args, ++i, arg);
+                    if (!(targetBytesPerPixel > 0)) {
+                        throw new IllegalArgumentException("Target bytes per pixel must be more than 0.");
+                    }
+                    settingsBuilder.setJpegTargetBytesPerPixel(targetBytesPerPixel);
+                    break;
+                case "-r":
+                case "--recursive":
+                    recursive = true;
+                    break;
+                case "--overwrite":
+                    settingsBuilder.setOverwriteIfExists(true);
+                    break;
+                case "--delete-originals":
+                    settingsBuilder.setDeleteOriginal(true);
+                    break;
+                case "--no-preserve-date":
+                    settingsBuilder.setPreserveDate(false);
+                    break;
+                case "--threads":
+                    settingsBuilder.setThreadCount(requireInt(args, ++i, arg));
+                    break;
+                case "--pipeline":
+                    settingsBuilder.setPipelined(true);
+                    break;
+                case "--dedup":
+                    String deduplication = requireValue(args, ++i, arg);
+                    if ("link".equals(deduplication)) {
+                        settingsBuilder.setDeduplication(ConversionSettings.Deduplication.LINK);
+                    }
+                    else if ("copy".equals(deduplication)) {
+                        settingsBuilder.setDeduplication(ConversionSettings.Deduplication.COPY);
+                    }
+                    else {
+                        throw new IllegalArgumentException("Dedup must be link or copy.");
+                    }
+                    break;
+                case "--prefetch":
+                    int prefetchCount = requireInt(args, ++i, arg);
+                    if (prefetchCount < 0) {
+                        throw new IllegalArgumentException("Prefetch count must not be negative.");
+                    }
+                    settingsBuilder.setPrefetchCount(prefetchCount);
+                    break;
+                case "--mmap":
+                    settingsBuilder.setMemoryMapped(true);
+                    break;
+                case "--max-rate":
+                    int imagesPerSecond = requireInt(args, ++i, arg);
+                    if (imagesPerSecond < 0) {
+                        throw new IllegalArgumentException("Max rate must not be negative.");
+                    }
+                    settingsBuilder.setMaxImagesPerSecond(imagesPerSecond);
+                    break;
+                case "--max-io":
+                    int ioMegabytes = requireInt(args, ++i, arg);
+                    if (ioMegabytes < 0) {
+                        throw new IllegalArgumentException("Max disk rate must not be negative.");
+                    }
+                    settingsBuilder.setMaxBytesPerSecond(ioMegabytes * 1024L * 1024L);
+                    break;
+                case "--low-priority":
+                    settingsBuilder.setLowPriority(true);
+                    break;
+                case "--memory-budget":
+                    int megabytes = requireInt(args, ++i, arg);
+                    if (megabytes < 1) {
+                        throw new IllegalArgumentException("Memory budget must be at least 1MB.");
+                    }
+                    settingsBuilder.setMemoryBudget(megabytes * 1024L * 1024L);
+                    break;
+                case "--png-compression":
+                    String compression = requireValue(args, ++i, arg);
+                    try {
+                        settingsBuilder.setPngCompression(
+                            ConversionSettings.PngCompression.valueOf(compression.toUpperCase()));
+                    }
+                    catch (IllegalArgumentException iae) {
+                        throw new IllegalArgumentException("Png compression must be fast, balanced or small.");
+                    }
+                    break;
+                case "--matte":
+                    settingsBuilder.setMatteColor(parseColor(requireValue(args, ++i, arg)));
+                    break;
+                case "--max-size":
+                    int maxSize = requireInt(args, ++i, arg);
+                    if (maxSize < 0) {
+                        throw new IllegalArgumentException("Maximum size must not be negative.");
+                    }
+                    settingsBuilder.setMaxDimension(maxSize);
+                    break;
+                case "--stream-above":
+                    int streamMegabytes = requireInt(args, ++i, arg);
+                    if (streamMegabytes < 0) {
+                        throw new IllegalArgumentException("Streaming threshold must not be negative.");
+                    }
+                    settingsBuilder.setStreamingThreshold(streamMegabytes * 1024L * 1024L);
+                    break;
+                case "--sync":
+                    int syncInterval = requireInt(args, ++i, arg);
+                    if (syncInterval < 0) {
+                        throw new IllegalArgumentException("Sync interval must not be negative.");
+                    }
+                    settingsBuilder.setSyncInterval(syncInterval);
+                    break;
+                case "--watch":
+                    watch = true;
+                    break;
+                case "--watch-quiet":
+                    int quietMillis = requireInt(args, ++i, arg);
+                    if (quietMillis < 0) {
+                        throw new IllegalArgumentException("Watch quiet period must not be negative.");
+                    }
+                    watchQuietMillis = quietMillis;
+                    break;
+                case "--shard":
+                    shardDir = new File(requireValue(args, ++i, arg));
+                    break;
+                case "--shard-size":
+                    shardUnitSize = requireInt(args, ++i, arg);
+                    if (shardUnitSize < 1) {
+                        throw new IllegalArgumentException("Shard size must be at least 1.");
+                    }
+                    break;
+                case "--lease-time":
+                    int leaseSeconds = requireInt(args, ++i, arg);
+                    if (leaseSeconds < 1) {
+                        throw new IllegalArgumentException("Lease time must be at least 1 second.");
+                    }
+                    leaseMillis = leaseSeconds * 1000L;
+                    break;
+                case "--report":
+                    reportFile = new File(requireValue(args, ++i, arg));
+                    break;
+                case "--journal":
+                    useJournal = true;
+                    break;
+                case "--retry-failed":
+                    useJournal = true;
+                    retryFailed = true;
+                    break;
+                case "-n":
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                case "-v":
+                case "--verbose":
+                    verbose = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    inputs.add(new File(arg));
+            }
+        }
+        if (!formatGiven) {
+            throw new IllegalArgumentException("An output format must be specified with --to.");
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("At least one file or directory must be specified.");
+        }
+        if (shardDir != null && (useJournal || dryRun || watch)) {
+            throw new IllegalArgumentException("--shard can't be combined with --journal, --dry-run or --watch.");
+        }
+        return true;
+    }
+
+    private static String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Option " + option + " requires a value.");
+        }
+        return args[index];
+    }
+
+    private static double requireDouble(String[] args, int index, String option) {
+        String value = requireValue(args, index, option);
+        try {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option " + option + " requires a number, but got: " + value);
+        }
+    }
+
+    private static int requireInt(String[] args, int index, String option) {
+        String value = requireValue(args, index, option);
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option " + option + " requires a number, but got: " + value);
+        }
+    }
+
+    private static Color parseColor(String value) {
+        String hex = value.startsWith("#") ? value.substring(1) : value;
+        if (hex.length() != 6) {
+            throw new IllegalArgumentException("Matte color must be given as RRGGBB, but got: " + value);
+        }
+        try {
+            return new Color(Integer.parseInt(hex, 16));
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Matte color must be given as RRGGBB, but got: " + value);
+        }
+    }
+
+    private void printUsage() {
+        out.println("Usage: java -jar ext-iv-image-converter.jar --to png|jpeg [options] <file or directory>...");
+        out.println();
+        out.println("Options:");
+        out.println("  --to png|jpeg        Output format (required). Jpeg files are converted to png, or vice versa.");
+        out.println("  --quality N          Jpeg quality, from 1 to 100 (default 95).");
+        out.println("  --target-size KB     Choose each jpeg's quality to make it as close to KB kilobytes as it can");
+        out.println("                       be without going over. --quality becomes the highest quality used.");
+        out.println("  --target-bpp N       As --target-size, but aiming for N bytes per pixel (0.25 is typical).");
+        out.println("  --png-compression L  Png compression: fast, balanced (default) or small.");
+        out.println("  --matte RRGGBB       Background color for transparent areas in jpeg output (default ffffff).");
+        out.println("  -r, --recursive      Also convert images in all subdirectories.");
+        out.println("  --overwrite          Overwrite target files if they exist.");
+        out.println("  --delete-originals   Remove source files after successful conversion.");
+        out.println("  --no-preserve-date   Don't copy the source file date/time to the target file.");
+        out.println("  --threads N          Number of images to convert at once (default: number of cores).");
+        out.println("  --pipeline           Overlap disk reads/writes with conversion.");
+        out.println("  --dedup link|copy    Convert identical source files once, and hard-link or copy the result.");
+        out.println("  --prefetch N         Read N files ahead at once, for network drives (implies --pipeline).");
+        out.println("  --mmap               Memory-map source files instead of reading them (fast local disks).");
+        out.println("  --max-rate N         Start at most N images per second (default 0=no limit).");
+        out.println("  --max-io MB          Read and write at most MB megabytes per second (default 0=no limit).");
+        out.println("  --low-priority       Run conversion threads at the lowest priority, to leave the CPU to others.");
+        out.println("  --max-size N         Scale images down so neither side is more than N pixels (default 0=off).");
+        out.println("  --memory-budget MB   Limit decoded image data held in memory at once (default: 60% of heap).");
+        out.println("  --stream-above MB    Convert images bigger than this decoded in strips (default 256, 0=never).");
+        out.println("  --sync N             Flush converted files to disk N at a time (0=leave it to the OS, the");
+        out.println("                       default; 1=flush each file).");
+        out.println("  --report FILE        Write per-stage timings to FILE when done (as CSV if FILE ends in .csv,");
+        out.println("                       or as JSON otherwise).");
+        out.println("  --journal            Record progress in a journal in the first input directory, so that");
+        out.println("                       an interrupted batch can be resumed by running it again.");
+        out.println("  --retry-failed       Only retry the files that the journal has recorded as failed.");
+        out.println("  --watch              After converting, keep watching the input directories and convert");
+        out.println("                       new images as they arrive, until stopped with Ctrl-C.");
+        out.println("  --watch-quiet MS     Wait until a new file has been unchanged for MS milliseconds before");
+        out.println("                       converting it (default 2000).");
+        out.println("  --shard DIR          Share the batch with other processes (on this or other machines) that");
+        out.println("                       are given the same directory to convert and the same DIR, which all of");
+        out.println("                       them must be able to write to. Run it again to resume.");
+        out.println("  --shard-size N       Split a sharded batch into units of N images (default 250).");
+        out.println("  --lease-time S       Hand a unit to another process if its worker shows no sign of life for");
+        out.println("                       S seconds (default 60).");
+        out.println("  -n, --dry-run        Report what would be converted, skipped or overwritten, then exit.");
+        out.println("  -v, --verbose        Print the outcome of each file, and a summary of per-stage timings.");
+        out.println("  -h, --help           Show this help.");
+    }
+}
@@ -6,25 +6,24 @@ import ca.corbett.forms.fields.FormField;
 import ca.corbett.forms.fields.ValueChangedListener;
 import ca.corbett.imageviewer.ui.ImageInstance;
 import ca.corbett.imageviewer.ui.MainWindow;
-import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.MessageUtil;
 import ca.corbett.forms.FormPanel;
 import ca.corbett.forms.fields.CheckBoxField;
 import ca.corbett.forms.fields.ComboField;
 import ca.corbett.forms.fields.NumberField;
-import org.apache.commons.io.FilenameUtils;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
 import javax.swing.border.BevelBorder;
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.KeyEventDispatcher;
@@ -32,15 +31,9 @@ import java.awt.KeyboardFocusManager;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributeView;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,30 +47,60 @@ import java.util.logging.Logger;
  */
 public class ImageConverterDialog extends JDialog implements KeyEventDispatcher {
 
-    public enum OperationOutcome {
-        SkippedBecauseExists, InternalError, Success
-    }
-
     private static final Logger logger = Logger.getLogger(ImageConverterDialog.class.getName());
 
+    /**
+     * The name of the timing report written to the starting directory, if requested.
+     */
+    private static final String REPORT_FILE_NAME = ".imageconverter-report.json";
+
+    /**
+     * The matte colors offered for jpeg output, in the same order as matteColorChooser's options.
+     */
+    private static final Color[] MATTE_COLORS = {Color.WHITE, Color.BLACK, Color.GRAY};
+
+    /**
+     * How many converted files are flushed to disk at once when safe writes are selected.
+     */
+    private static final int SAFE_WRITE_SYNC_INTERVAL = 32;
+
+    /**
+     * How many files are read ahead at once when the network drive option is selected.
+     */
+    private static final int NETWORK_PREFETCH_COUNT = 16;
+
     private final ImageInstance selectedImage;
 
     private MessageUtil messageUtil;
 
     private ComboField<String> conversionQuantityChooser;
+    private NumberField threadCountField;
+    private CheckBoxField pipelineCheckbox;
+    private CheckBoxField networkDriveCheckbox;
+    private CheckBoxField memoryMappedCheckbox;
+    private ComboField<String> deduplicationChooser;
+    private CheckBoxField safeWriteCheckbox;
+    private CheckBoxField journalCheckbox;
+    private CheckBoxField reportCheckbox;
+    private CheckBoxField backgroundCheckbox;
+    private NumberField maxImagesPerSecondField;
+    private NumberField maxMegabytesPerSecondField;
     private ComboField<String> conversionTypeChooser;
+    private ComboField<String> matteColorChooser;
+    private ComboField<String> pngCompressionChooser;
     private CheckBoxField deleteOriginalCheckbox;
     private CheckBoxField overwriteIfExistsCheckbox;
     private NumberField jpegQualityField;
+    private NumberField jpegTargetSizeField;
+    private NumberField maxDimensionField;
     private CheckBoxField preserveDateCheckbox;
     private CheckBoxField extraLoggingCheckbox;
 
     public ImageConverterDialog(ImageInstance image) {
         super(MainWindow.getInstance(), "Convert image");
         this.selectedImage = image;
-        setSize(new Dimension(480, 300));
-        setMinimumSize(new Dimension(480, 300));
-        setResizable(false);
+        setSize(new Dimension(500, 560));
+        setMinimumSize(new Dimension(420, 300));
         setLocationRelativeTo(MainWindow.getInstance());
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
         initComponents();
@@ -121,74 +144,57 @@ public class ImageConverterDialog extends JDialog implements KeyEventDispatcher
     }
 
     /**
-     * Converts the given image in the given source file using the current conversion parameters
-     * in this dialog.
+     * Takes a snapshot of the current form values as an immutable ConversionSettings object.
+     * This is done once on the EDT when the user hits OK, so that worker threads never have
+     * to touch our Swing fields.
      *
-     * @param srcFile The file containing the image to be converted.
-     * @param image   The image data.
-     * @return An OperationOutcome that described what happened.
+     * @return A ConversionSettings reflecting the options currently selected in this dialog.
      */
-    public OperationOutcome convertImage(File srcFile, BufferedImage image) {
-        final String targetExtension = conversionTypeChooser.getSelectedIndex() == 0 ? ".png" : ".jpg";
-        File targetFile = new File(srcFile.getParentFile(),
-                                   FilenameUtils.getBaseName(srcFile.getName()) + targetExtension);
-
-        // Check if the output file already exists:
-        if (targetFile.exists() && !overwriteIfExistsCheckbox.isChecked()) {
-            logger.log(Level.INFO,
-                       "Skipping conversion of \"{0}\" because the output file exists and \"overwrite if exists\" is not selected.",
-                       srcFile.getAbsolutePath());
-            return OperationOutcome.SkippedBecauseExists;
-        }
-
-        try {
-
-            BasicFileAttributes view = Files.getFileAttributeView(srcFile.toPath(), BasicFileAttributeView.class)
-                                            .readAttributes();
-            FileTime srcFileCreationTime = view.creationTime();
-
-            if (".png".equals(targetExtension)) {
-                Iterator<ImageWriter> iter = ImageIO.getImageWritersByFormatName("png");
-                ImageWriter imageWriter = null;
-                if (iter.hasNext()) {
-                    imageWriter = iter.next();
-                }
-                if (imageWriter == null) {
-                    throw new IOException("No PNG ImageWriter exists on this system; unable to convert.");
-                }
-
-                ImageUtil.saveImage(image, targetFile, imageWriter, null);
-            }
-
-            else {
-                ImageUtil.saveImage(image, targetFile, jpegQualityField.getCurrentValue().floatValue() / 100f);
-            }
-
-            // Delete the source file if successful and if so directed:
-            if (deleteOriginalCheckbox.isChecked()) {
-                srcFile.delete();
-
-                // Notify the ImageSetManager that this image has moved:
-                // (note: if deleteOriginal is not selected, we'll skip this and just
-                //  leave the original image in the image set. User can sort it out as needed).
-                MainWindow.getInstance().getImageSetManager().imageMoved(srcFile, targetFile);
-            }
+    ConversionSettings buildSettings() {
+        return ConversionSettings.builder()
+                                 .setOutputFormat(conversionTypeChooser.getSelectedIndex() == 0
+                                                      ? ConversionSettings.OutputFormat.PNG
+                                                      : ConversionSettings.OutputFormat.JPEG)
+                                 .setJpegQuality(jpegQualityField.getCurrentValue().floatValue() / 100f)
+                                 .setJpegTargetBytesPerPixel(jpegTargetSizeField.getCurrentValue().doubleValue()
+                                                                 * 1024 / 1_000_000)
+                                 .setDeleteOriginal(deleteOriginalCheckbox.isChecked())
+                                 .setOverwriteIfExists(overwriteIfExistsCheckbox.isChecked())
+                                 .setPreserveDate(preserveDateCheckbox.isChecked())
+                                 .setThreadCount(threadCountField.getCurrentValue().intValue())
+                                 .setPipelined(pipelineCheckbox.isChecked())
+                                 .setPrefetchCount(networkDriveCheckbox.isChecked() ? NETWORK_PREFETCH_COUNT : 0)
+                                 .setMemoryMapped(memoryMappedCheckbox.isChecked())
+                                 .setDeduplication(ConversionSettings.Deduplication.values()[
+                                     deduplicationChooser.getSelectedIndex()])
+                                 .setSyncInterval(safeWriteCheckbox.isChecked() ? SAFE_WRITE_SYNC_INTERVAL : 0)
+                                 .setMaxDimension(maxDimensionField.getCurrentValue().intValue())
+                                 .setMatteColor(MATTE_COLORS[matteColorChooser.getSelectedIndex()])
+                                 .setPngCompression(ConversionSettings.PngCompression.values()[
+                                     pngCompressionChooser.getSelectedIndex()])
+                                 .setLowPriority(isBackground())
+                                 .setMaxImagesPerSecond(isBackground()
+                                                            ? maxImagesPerSecondField.getCurrentValue().intValue()
+                                                            : 0)
+                                 .setMaxBytesPerSecond(isBackground()
+                                                           ? maxMegabytesPerSecondField.getCurrentValue().longValue()
+                                                               * 1024 * 1024
+                                                           : 0)
+                                 .build();
+    }
 
-            // Modify the target file to have the same creation time as the source file:
-            if (preserveDateCheckbox.isChecked()) {
-                Files.setLastModifiedTime(targetFile.toPath(), srcFileCreationTime);
-            }
-        }
-        catch (IOException ioe) {
-            logger.log(Level.SEVERE, "Image conversion error: " + ioe.getMessage(), ioe);
-            return OperationOutcome.InternalError;
-        }
-        dispose();
-        return OperationOutcome.Success;
+    /**
+     * Reports whether a bulk conversion should run in the background, with its limits, while the user
+     * carries on browsing.
+     */
+    private boolean isBackground() {
+        return conversionQuantityChooser.getSelectedIndex() != 0 && backgroundCheckbox.isChecked();
     }
 
     private void convertImage() {
-        OperationOutcome outcome = convertImage(selectedImage.getImageFile(), selectedImage.getRegularImage());
+        File srcFile = selectedImage.getImageFile();
+        ConversionEngine engine = new ConversionEngine(buildSettings());
+        ConversionEngine.OperationOutcome outcome = engine.convertImage(srcFile, selectedImage.getRegularImage());
         switch (outcome) {
             case InternalError:
                 getMessageUtil().error("Conversion error", "An internal error occurred. Check the log for details.");
@@ -197,45 +203,106 @@ public class ImageConverterDialog extends JDialog implements KeyEventDispatcher
                 getMessageUtil().info("Conversion skipped", "Conversion was skipped because the output file exists.");
                 break;
             case Success:
+                if (engine.getSettings().isDeleteOriginal()) {
+                    // Notify the ImageSetManager that this image has moved:
+                    // (note: if deleteOriginal is not selected, we'll skip this and just
+                    //  leave the original image in the image set. User can sort it out as needed).
+                    MainWindow.getInstance().getImageSetManager()
+                              .imageMoved(srcFile, engine.getSettings().getTargetFile(srcFile));
+                }
+                dispose();
                 getMessageUtil().info("Conversion complete", "The file was successfully converted.");
                 break;
         }
     }
 
     private void convertBulk(boolean recursive) {
-        boolean toPng = conversionTypeChooser.getSelectedIndex() == 0;
-        List<String> extensions = new ArrayList<>();
-        if (toPng) {
-            extensions.add("jpg");
-            extensions.add("jpeg");
+        ConversionSettings settings = buildSettings();
+        File dir = selectedImage.getImageFile().getParentFile();
+        ConversionJournal journal = null;
+        if (journalCheckbox.isChecked()) {
+            try {
+                journal = ConversionJournal.open(ConversionJournal.getDefaultJournalFile(dir, settings), settings);
+            }
+            catch (IOException ioe) {
+                logger.log(Level.SEVERE, "Unable to read conversion journal: " + ioe.getMessage(), ioe);
+                getMessageUtil().error("Journal error", "Unable to read the conversion journal. Check the log for details.");
+                return;
+            }
         }
-        else {
-            extensions.add("png");
+
+        ConversionEngine engine = new ConversionEngine(settings);
+        if (isBackground()) {
+            // Gives the worker something to pause and resume the batch with:
+            engine.setThrottle(new BatchThrottle(settings));
         }
-        List<File> fileList = FileSystemUtil.findFiles(selectedImage.getImageFile().getParentFile(), recursive,
-                                                       extensions);
-        String extraPrompt = recursive ? " recursively" : "";
         String warning = deleteOriginalCheckbox.isChecked() ? "Original images will be deleted upon completion." : "Original images will not be deleted.";
-
-        if (JOptionPane.showConfirmDialog(this,
-                                          "Perform bulk conversion on all " + fileList.size() + " images in this directory" + extraPrompt + "?\n" + warning,
-                                          "Confirm", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
-            return;
+        ImageConverterThread worker;
+        if (recursive) {
+            // Directory trees can be huge, so we don't scan them up front. Instead, conversion
+            // starts right away and works through files as the scanner finds them:
+            if (JOptionPane.showConfirmDialog(this,
+                                              "Perform bulk conversion on all images in this directory recursively?\n" + warning,
+                                              "Confirm", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                closeQuietly(journal);
+                return;
+            }
+            SourceFileScanner scanner = new SourceFileScanner(List.of(dir), true, settings);
+            worker = new ImageConverterThread(engine, scanner, journal, extraLoggingCheckbox.isChecked());
+        }
+        else {
+            List<File> fileList = FileSystemUtil.findFiles(dir, false, settings.getOutputFormat().getSourceExtensions());
+            ConversionPlan plan = engine.plan(fileList, journal);
+            if (JOptionPane.showConfirmDialog(this,
+                                              "Perform bulk conversion on all " + fileList.size() + " images in this directory?\n"
+                                                  + "(" + plan.getSummary() + ")\n" + warning,
+                                              "Confirm", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                closeQuietly(journal);
+                return;
+            }
+            worker = new ImageConverterThread(engine, plan, journal, extraLoggingCheckbox.isChecked());
         }
 
-        ImageConverterThread worker = new ImageConverterThread(this, fileList, extraLoggingCheckbox.isChecked());
-        MainWindow.getInstance().disableDirTree();
+        if (reportCheckbox.isChecked()) {
+            worker.setReportFile(new File(dir, REPORT_FILE_NAME));
+        }
+        worker.setVisibleDirectory(dir);
+        if (!worker.isBackground()) {
+            MainWindow.getInstance().disableDirTree();
+        }
         new Thread(worker).start();
         dispose();
     }
 
+    private static void closeQuietly(ConversionJournal journal) {
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to close conversion journal: " + ioe.getMessage(), ioe);
+            }
+        }
+    }
+
     private void initComponents() {
         setLayout(new BorderLayout());
-        add(buildControlPanel(), BorderLayout.CENTER);
+        // The everyday options come first; the rest are tucked away so the dialog fits on small screens:
+        JTabbedPane tabPane = new JTabbedPane();
+        tabPane.addTab("General", buildScrollPane(buildGeneralPanel()));
+        tabPane.addTab("Advanced", buildScrollPane(buildAdvancedPanel()));
+        add(tabPane, BorderLayout.CENTER);
         add(buildButtonPanel(), BorderLayout.SOUTH);
     }
 
-    private FormPanel buildControlPanel() {
+    private static JScrollPane buildScrollPane(FormPanel formPanel) {
+        JScrollPane scrollPane = new JScrollPane(formPanel);
+        scrollPane.setBorder(BorderFactory.createEmptyBorder());
+        scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        return scrollPane;
+    }
+
+    private FormPanel buildGeneralPanel() {
         FormPanel formPanel = new FormPanel(Alignment.TOP_CENTER);
 
         List<String> options = new ArrayList<>();
@@ -244,6 +311,20 @@ public class ImageConverterDialog extends JDialog implements KeyEventDispatcher
         options.add("All images recursively");
         conversionQuantityChooser = new ComboField<>("Convert:", options, 0, false);
         conversionQuantityChooser.setMargins(new Margins(16, 4, 4, 4, 4));
+        conversionQuantityChooser.addValueChangedListener(
+            field -> {
+                boolean isBulk = conversionQuantityChooser.getSelectedIndex() != 0;
+                threadCountField.setEnabled(isBulk);
+                pipelineCheckbox.setEnabled(isBulk);
+                networkDriveCheckbox.setEnabled(isBulk);
+                memoryMappedCheckbox.setEnabled(isBulk);
+                deduplicationChooser.setEnabled(isBulk);
+                journalCheckbox.setEnabled(isBulk);
+                reportCheckbox.setEnabled(isBulk);
+                backgroundCheckbox.setEnabled(isBulk);
+                maxImagesPerSecondField.setEnabled(isBackground());
+                maxMegabytesPerSecondField.setEnabled(isBackground());
+            });
         formPanel.add(conversionQuantityChooser);
 
         options = new ArrayList<>();
@@ -251,9 +332,21 @@ public class ImageConverterDialog extends JDialog implements KeyEventDispatcher
         options.add("PNG -> Jpeg");
         conversionTypeChooser = new ComboField<>("Format:", options, 0, false);
         conversionTypeChooser.addValueChangedListener(
-            field -> jpegQualityField.setEnabled(conversionTypeChooser.getSelectedIndex() == 1));
+            field -> {
+                boolean isJpeg = conversionTypeChooser.getSelectedIndex() == 1;
+                jpegQualityField.setEnabled(isJpeg);
+                jpegTargetSizeField.setEnabled(isJpeg);
+                matteColorChooser.setEnabled(isJpeg);
+                pngCompressionChooser.setEnabled(!isJpeg);
+            });
         formPanel.add(conversionTypeChooser);
 
+        // Batch conversions can be spread across multiple cores. A value of 1 gives the old sequential behaviour.
+        int processors = Runtime.getRuntime().availableProcessors();
+        threadCountField = new NumberField("Worker threads:", processors, 1, Math.max(processors * 2, 8), 1);
+        threadCountField.setEnabled(false);
+        formPanel.add(threadCountField);
+
         deleteOriginalCheckbox = new CheckBoxField("Remove source file(s) after conversion", false);
         formPanel.add(deleteOriginalCheckbox);
 
@@ -267,12 +360,94 @@ public class ImageConverterDialog extends JDialog implements KeyEventDispatcher
         preserveDateCheckbox = new CheckBoxField("Preserve file date/time when converting", true);
         formPanel.add(preserveDateCheckbox);
 
+        // Background batches leave the dir tree enabled, and can be paused and resumed:
+        backgroundCheckbox = new CheckBoxField("Run in the background (keep browsing meanwhile)", false);
+        backgroundCheckbox.setEnabled(false);
+        backgroundCheckbox.addValueChangedListener(
+            field -> {
+                maxImagesPerSecondField.setEnabled(isBackground());
+                maxMegabytesPerSecondField.setEnabled(isBackground());
+            });
+        formPanel.add(backgroundCheckbox);
+
         extraLoggingCheckbox = new CheckBoxField("Log each conversion result", false);
         formPanel.add(extraLoggingCheckbox);
 
         return formPanel;
     }
 
+    private FormPanel buildAdvancedPanel() {
+        FormPanel formPanel = new FormPanel(Alignment.TOP_CENTER);
+
+        pipelineCheckbox = new CheckBoxField("Overlap disk reads/writes with conversion", false);
+        pipelineCheckbox.setMargins(new Margins(16, 4, 4, 4, 4));
+        pipelineCheckbox.setEnabled(false);
+        formPanel.add(pipelineCheckbox);
+
+        networkDriveCheckbox = new CheckBoxField("Images are on a network drive (read ahead)", false);
+        networkDriveCheckbox.setEnabled(false);
+        formPanel.add(networkDriveCheckbox);
+
+        memoryMappedCheckbox = new CheckBoxField("Memory-map source files (best on fast local disks)", false);
+        memoryMappedCheckbox.setEnabled(false);
+        formPanel.add(memoryMappedCheckbox);
+
+        // Same order as ConversionSettings.Deduplication:
+        List<String> options = new ArrayList<>();
+        options.add("Convert each one");
+        options.add("Convert once, hard-link the rest");
+        options.add("Convert once, copy the rest");
+        deduplicationChooser = new ComboField<>("Identical images:", options, 0, false);
+        deduplicationChooser.setEnabled(false);
+        formPanel.add(deduplicationChooser);
+
+        journalCheckbox = new CheckBoxField("Keep a journal so the batch can be resumed", false);
+        journalCheckbox.setEnabled(false);
+        formPanel.add(journalCheckbox);
+
+        reportCheckbox = new CheckBoxField("Write a timing report when done", false);
+        reportCheckbox.setEnabled(false);
+        formPanel.add(reportCheckbox);
+
+        // Only apply to background batches (see the General tab):
+        maxImagesPerSecondField = new NumberField("Max images per second (0 = no limit):", 0, 0, 1000, 1);
+        maxImagesPerSecondField.setEnabled(false);
+        formPanel.add(maxImagesPerSecondField);
+
+        maxMegabytesPerSecondField = new NumberField("Max disk MB per second (0 = no limit):", 0, 0, 10000, 5);
+        maxMegabytesPerSecondField.setEnabled(false);
+        formPanel.add(maxMegabytesPerSecondField);
+
+        // Same order as ConversionSettings.PngCompression:
+        options = new ArrayList<>();
+        options.add("Fast");
+        options.add("Balanced");
+        options.add("Small");
+        pngCompressionChooser = new ComboField<>("Png compression:", options, 1, false);
+        formPanel.add(pngCompressionChooser);
+
+        // Picks the quality image by image, with the jpeg quality as the most it will use:
+        jpegTargetSizeField = new NumberField("Jpeg KB per megapixel (0 = fixed quality):", 0, 0, 5000, 50);
+        jpegTargetSizeField.setEnabled(false);
+        formPanel.add(jpegTargetSizeField);
+
+        options = new ArrayList<>();
+        options.add("White");
+        options.add("Black");
+        options.add("Gray");
+        matteColorChooser = new ComboField<>("Transparent areas become:", options, 0, false);
+        matteColorChooser.setEnabled(false);
+        formPanel.add(matteColorChooser);
+
+        maxDimensionField = new NumberField("Max width/height (0 = full size):", 0, 0, 20000, 100);
+        formPanel.add(maxDimensionField);
+
+        safeWriteCheckbox = new CheckBoxField("Make sure converted files are safely on disk (slower)", false);
+        formPanel.add(safeWriteCheckbox);
+
+        return formPanel;
+    }
+
     private JPanel buildButtonPanel() {
         JPanel panel = new JPanel();
         panel.setBorder(BorderFactory.createBevelBorder(BevelBorder.RAISED));
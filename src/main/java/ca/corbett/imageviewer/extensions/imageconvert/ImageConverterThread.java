@@ -1,12 +1,10 @@
 package ca.corbett.imageviewer.extensions.imageconvert;
 
 import ca.corbett.imageviewer.ui.MainWindow;
-import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.logging.Stopwatch;
 
 import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -17,6 +15,19 @@ import java.util.logging.Logger;
  * A worker thread for handling batch conversion of entire directories of images
  * at a time. Launched from ImageConverterDialog. Much of this code was copied
  * from ImageResizeThread in the ImageResize extension.
+ * <p>
+ * The actual conversion work is done by a ConversionEngine, which spreads the batch across
+ * as many threads as its settings allow, either as a plain worker pool or as a staged
+ * ConversionPipeline. This class just wraps that up with a ProgressMonitor, so that the user
+ * can see progress and cancel the batch, and reports the results when it's done.
+ * A cancel request stops any files that haven't started yet (files that are already in
+ * progress are allowed to finish so we don't leave half-written output).
+ * </p>
+ * <p>
+ * If the engine has a BatchThrottle, the batch is run in the background: instead of the
+ * ProgressMonitor, a BackgroundConversionDialog is shown, which can also pause and resume it,
+ * and the rest of the application stays usable while it runs.
+ * </p>
  *
  * @author scorbo2
  * @since 2023-12-31
@@ -25,49 +36,122 @@ public class ImageConverterThread implements Runnable {
 
     private final static Logger logger = Logger.getLogger(ImageConverterThread.class.getName());
 
-    private final ImageConverterDialog owner;
-    private final List<File> fileList;
+    private final ConversionEngine engine;
+    private final ConversionPlan plan;
+    private final SourceFileScanner scanner;
+    private final ConversionJournal journal;
     private final boolean extraLogging;
     private ProgressMonitor monitor;
-    private int convertedCount;
-    private int skippedCount;
-    private int problemCount;
-    private long totalTimeSpent;
-    private boolean wasCanceled;
+    private BackgroundConversionDialog controlDialog;
+    private BatchResult result;
+    private File reportFile;
+    private File visibleDir;
+    private ViewerRefresher refresher;
 
     /**
-     * You must supply the ImageConverterDialog that launched this thread, along with a
-     * list of files on which to operate.
+     * You must supply the ConversionEngine to use, along with a list of files on which to operate.
      *
-     * @param owner        The ImageConverterDialog that launched this thread.
+     * @param engine       The ConversionEngine that will do the actual work.
      * @param list         A List of files on which to operate.
      * @param extraLogging if enabled, will log a message for each conversion.
      */
-    public ImageConverterThread(ImageConverterDialog owner, List<File> list, boolean extraLogging) {
-        this.owner = owner;
-        this.fileList = list;
+    public ImageConverterThread(ConversionEngine engine, List<File> list, boolean extraLogging) {
+        this(engine, engine.plan(list), extraLogging);
+    }
+
+    /**
+     * Creates a worker that will carry out an already-built ConversionPlan.
+     *
+     * @param engine       The ConversionEngine that will do the actual work.
+     * @param plan         A plan created by that engine.
+     * @param extraLogging if enabled, will log a message for each conversion.
+     */
+    public ImageConverterThread(ConversionEngine engine, ConversionPlan plan, boolean extraLogging) {
+        this(engine, plan, null, extraLogging);
+    }
+
+    /**
+     * Creates a worker that will carry out an already-built ConversionPlan, recording
+     * progress in the given journal. The journal is closed when the batch is done.
+     *
+     * @param engine       The ConversionEngine that will do the actual work.
+     * @param plan         A plan created by that engine with the given journal.
+     * @param journal      The journal for this batch, or null.
+     * @param extraLogging if enabled, will log a message for each conversion.
+     */
+    public ImageConverterThread(ConversionEngine engine, ConversionPlan plan, ConversionJournal journal,
+                                boolean extraLogging) {
+        this(engine, plan, null, journal, extraLogging);
+    }
+
+    /**
+     * Creates a worker that converts files as the given scanner finds them, so that conversion
+     * can begin before the directory scan is finished. The progress bar grows as the scan does.
+     *
+     * @param engine       The ConversionEngine that will do the actual work.
+     * @param scanner      A SourceFileScanner, which will be started by this worker.
+     * @param journal      The journal for this batch, or null.
+     * @param extraLogging if enabled, will log a message for each conversion.
+     */
+    public ImageConverterThread(ConversionEngine engine, SourceFileScanner scanner, ConversionJournal journal,
+                                boolean extraLogging) {
+        this(engine, null, scanner, journal, extraLogging);
+    }
+
+    private ImageConverterThread(ConversionEngine engine, ConversionPlan plan, SourceFileScanner scanner,
+                                 ConversionJournal journal, boolean extraLogging) {
+        this.engine = engine;
+        this.plan = plan;
+        this.scanner = scanner;
+        this.journal = journal;
         this.extraLogging = extraLogging;
+        this.result = new BatchResult(new ConversionMetrics());
         initialize();
     }
 
     public int getProcessedCount() {
-        return fileList.size();
+        return plan == null ? result.getProcessedCount() : plan.size();
     }
 
     public int getConvertedCount() {
-        return convertedCount;
+        return result.getConvertedCount();
     }
 
     public int getSkippedCount() {
-        return skippedCount;
+        return result.getSkippedCount();
     }
 
     public int getProblemCount() {
-        return problemCount;
+        return result.getProblemCount();
+    }
+
+    public int getThreadCount() {
+        return engine.getSettings().getThreadCount();
     }
 
     public boolean wasCanceled() {
-        return wasCanceled;
+        return result.wasCanceled();
+    }
+
+    /**
+     * Asks for a timing report to be written to the given file when the batch is done.
+     * See ConversionMetrics.writeReport() for the format.
+     *
+     * @param reportFile The report file, or null for no report.
+     */
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Tells this worker which directory the MainWindow is showing, so that it only has to be
+     * reloaded when the batch changes something in it. If this isn't set, the MainWindow is
+     * reloaded whenever anything was converted.
+     *
+     * @param visibleDir The directory being browsed, or null if not known.
+     */
+    public void setVisibleDirectory(File visibleDir) {
+        this.visibleDir = visibleDir;
     }
 
     /**
@@ -76,60 +160,57 @@ public class ImageConverterThread implements Runnable {
     private void initialize() {
         int min = 0;
         int max = 100;
-        if (fileList != null && !fileList.isEmpty()) {
-            max = fileList.size();
+        if (plan != null && plan.size() > 0) {
+            max = plan.size();
+        }
+        if (isBackground()) {
+            controlDialog = new BackgroundConversionDialog(engine.getThrottle(), max);
+            controlDialog.setVisible(true);
+            return;
         }
         monitor = new ProgressMonitor(MainWindow.getInstance(), "Converting...", "Please wait", min, max);
         monitor.setMillisToDecideToPopup(200);
         monitor.setMillisToPopup(200);
     }
 
+    /**
+     * Reports whether this batch runs in the background, under the control of its engine's BatchThrottle.
+     */
+    public boolean isBackground() {
+        return engine.getThrottle() != null;
+    }
+
+    private boolean isCanceled() {
+        return isBackground() ? controlDialog.isCanceled() : monitor.isCanceled();
+    }
+
     @Override
     public void run() {
-        convertedCount = 0;
-        skippedCount = 0;
-        problemCount = 0;
-        totalTimeSpent = 0;
-        wasCanceled = false;
-        int i = 1;
-        for (File file : fileList) {
-            if (monitor.isCanceled()) {
-                wasCanceled = true;
-                break;
+        refresher = new ViewerRefresher(visibleDir, engine.getSettings().isDeleteOriginal());
+        if (plan != null) {
+            result = engine.runBatch(plan, journal, new ProgressListener(), this::isCanceled);
+        }
+        else {
+            result = engine.runBatch(scanner, journal, new ProgressListener(), this::isCanceled);
+        }
+        logger.log(Level.INFO, "Image conversion timings:\n{0}", result.getMetrics().getSummary());
+        if (reportFile != null) {
+            try {
+                result.getMetrics().writeReport(reportFile, engine.getSettings());
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to write timing report: " + ioe.getMessage(), ioe);
             }
+        }
+        if (journal != null) {
             try {
-                monitor.setNote("Converting " + file.getName());
-                BufferedImage image = ImageUtil.loadImage(file);
-                monitor.setProgress(i++);
-                Stopwatch.start("imageConvert");
-                ImageConverterDialog.OperationOutcome outcome = owner.convertImage(file, image);
-                Stopwatch.stop("imageConvert");
-                totalTimeSpent += Stopwatch.report("imageConvert");
-                switch (outcome) {
-                    case SkippedBecauseExists:
-                        skippedCount++;
-                        break;
-                    case InternalError:
-                        problemCount++;
-                        break;
-                    case Success:
-                        if (extraLogging) {
-                            logger.log(Level.INFO, "Converted {0} in {1}",
-                                       new Object[]{file.getName(), Stopwatch.reportFormatted("imageConvert")});
-                        }
-                        convertedCount++;
-                        break;
-                }
-
-                image.flush();
+                journal.close();
             }
             catch (IOException ioe) {
-                problemCount++;
-                logger.log(Level.SEVERE,
-                           "convertImage: Caught exception while resizing " + file.getAbsolutePath() + ": " + ioe.getMessage(),
-                           ioe);
+                logger.log(Level.WARNING, "Unable to compact conversion journal: " + ioe.getMessage(), ioe);
             }
         }
+
         final ImageConverterThread thisThread = this;
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -139,12 +220,92 @@ public class ImageConverterThread implements Runnable {
 
         });
 
-        monitor.close();
+        SwingUtilities.invokeLater(() -> {
+            if (isBackground()) {
+                controlDialog.close();
+            }
+            else {
+                monitor.close();
+            }
+        });
+    }
+
+    /**
+     * Keeps the ProgressMonitor and the ViewerRefresher up to date as the engine works
+     * through the batch. Invoked from engine worker threads.
+     */
+    private class ProgressListener implements ConversionListener {
+
+        private int completedCount;
+
+        @Override
+        public void totalChanged(int total) {
+            // The scan may not have found anything yet; don't let the bar jump to 100% in the meantime:
+            final int max = Math.max(total, 1);
+            SwingUtilities.invokeLater(() -> {
+                if (isBackground()) {
+                    controlDialog.setMaximum(max);
+                }
+                else {
+                    monitor.setMaximum(max);
+                }
+            });
+        }
+
+        @Override
+        public void fileStarted(File srcFile) {
+            final String note = "Converting " + srcFile.getName();
+            SwingUtilities.invokeLater(() -> {
+                if (isBackground()) {
+                    controlDialog.setNote(note);
+                }
+                else {
+                    monitor.setNote(note);
+                }
+            });
+        }
+
+        @Override
+        public void fileCompleted(File srcFile, File targetFile, ConversionEngine.OperationOutcome outcome,
+                                  long timeSpent) {
+            if (outcome == ConversionEngine.OperationOutcome.Success && extraLogging) {
+                logger.log(Level.INFO, "Converted {0} in {1}",
+                           new Object[]{srcFile.getName(), Stopwatch.formatTimeValue(timeSpent)});
+            }
+
+            final int progress;
+            synchronized (this) {
+                progress = ++completedCount;
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (isBackground()) {
+                    controlDialog.setProgress(progress);
+                }
+                else {
+                    monitor.setProgress(progress);
+                }
+            });
+        }
+
+        @Override
+        public void fileCommitted(File srcFile, File targetFile) {
+            refresher.fileCommitted(srcFile, targetFile);
+        }
+
+        @Override
+        public void commitFailed(File srcFile, File targetFile) {
+            // Already counted towards the progress as processed; the final counts come from the
+            // BatchResult, which now has it as a problem instead of a conversion:
+            if (extraLogging) {
+                logger.log(Level.INFO, "Unable to put {0} in place after converting {1}",
+                           new Object[]{targetFile.getName(), srcFile.getName()});
+            }
+        }
     }
 
     private void conversionCompleteHandler() {
         MainWindow.getInstance().enableDirTree();
-        MainWindow.getInstance().reload();
+        refresher.batchCompleted();
 
         if (wasCanceled()) {
             MainWindow.getInstance().showMessageDialog("Conversion canceled",
@@ -155,7 +316,11 @@ public class ImageConverterThread implements Runnable {
 
         String msg = "The conversion operation evaluated " + getProcessedCount() + " images.\n"
             + getConvertedCount() + " were converted and " + getSkippedCount() + " were skipped.\n"
-            + "Total time spent converting images: " + Stopwatch.formatTimeValue(totalTimeSpent) + "\n";
+            + "Total time spent converting images: " + Stopwatch.formatTimeValue(result.getTotalTimeSpent()) + "\n";
+        if (getThreadCount() > 1 || engine.getSettings().isPipelined()) {
+            msg += "Elapsed time using " + getThreadCount() + " threads: "
+                + Stopwatch.formatTimeValue(result.getElapsedTime()) + "\n";
+        }
         if (getProblemCount() > 0) {
             msg += getProblemCount() + " problems were encountered (see log file).";
         }
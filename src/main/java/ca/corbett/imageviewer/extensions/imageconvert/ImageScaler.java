@@ -0,0 +1,106 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Utility methods for producing downscaled output when ConversionSettings has a maximum
+ * output dimension. Downscaling happens in two steps: first the image is decoded at reduced
+ * resolution by having the ImageReader skip pixels (see getSubsampling()), which is where
+ * nearly all of the time and memory is saved; then the result, which is now less than twice
+ * the target size, is resampled down to the exact target size with bicubic interpolation.
+ *
+ * @author scorbo2
+ * @since 2024-01-10
+ */
+public final class ImageScaler {
+
+    private ImageScaler() {
+    }
+
+    /**
+     * Returns the largest whole-number subsampling factor that can be applied to an image
+     * of the given size while decoding, without dropping below the given maximum dimension.
+     * Decoding with this factor gets as close as possible to the target size, and the
+     * remainder is done by scaleToFit().
+     *
+     * @param width        The width of the source image.
+     * @param height       The height of the source image.
+     * @param maxDimension The maximum output width or height, or 0 for no limit.
+     * @return The subsampling factor to use in both directions; 1 means decode at full size.
+     */
+    public static int getSubsampling(int width, int height, int maxDimension) {
+        int longestSide = Math.max(width, height);
+        if (maxDimension <= 0 || longestSide <= maxDimension) {
+            return 1;
+        }
+        return longestSide / maxDimension;
+    }
+
+    /**
+     * Returns the size an image of the given size should be scaled to, so that neither side
+     * is bigger than the given maximum dimension. The aspect ratio is kept, and images that
+     * already fit are left alone.
+     *
+     * @param width        The width of the image.
+     * @param height       The height of the image.
+     * @param maxDimension The maximum output width or height, or 0 for no limit.
+     * @return The output size.
+     */
+    public static Dimension getScaledSize(int width, int height, int maxDimension) {
+        int longestSide = Math.max(width, height);
+        if (maxDimension <= 0 || longestSide <= maxDimension) {
+            return new Dimension(width, height);
+        }
+        double scale = (double)maxDimension / longestSide;
+        return new Dimension(Math.max(1, (int)Math.round(width * scale)),
+                             Math.max(1, (int)Math.round(height * scale)));
+    }
+
+    /**
+     * Scales the given image down so that neither side is bigger than the given maximum
+     * dimension. If it already fits, it is returned as-is. Otherwise, a new image is returned,
+     * of TYPE_INT_ARGB if the source has alpha, or TYPE_INT_RGB otherwise.
+     * <p>
+     * A single bicubic pass only samples a 4x4 neighbourhood, so it starts to skip source
+     * pixels (and alias) when shrinking by more than half. Larger reductions are therefore
+     * done by halving repeatedly first, which is normally only needed for images that
+     * weren't subsampled while decoding, such as the one shown in the viewer.
+     * </p>
+     *
+     * @param image        The image to scale.
+     * @param maxDimension The maximum output width or height, or 0 for no limit.
+     * @return The scaled image, or the original one if no scaling was needed.
+     */
+    public static BufferedImage scaleToFit(BufferedImage image, int maxDimension) {
+        Dimension target = getScaledSize(image.getWidth(), image.getHeight(), maxDimension);
+        if (target.width == image.getWidth() && target.height == image.getHeight()) {
+            return image;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(target.width, width / 2);
+            height = Math.max(target.height, height / 2);
+            if (width < target.width * 2 && height < target.height * 2) {
+                width = target.width;
+                height = target.height;
+            }
+            BufferedImage scaled = new BufferedImage(width, height, type);
+            Graphics2D graphics = scaled.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            if (current != image) {
+                current.flush();
+            }
+            current = scaled;
+        } while (width != target.width || height != target.height);
+        return current;
+    }
+}
@@ -0,0 +1,179 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits how much decoded image data a batch can have in memory at once. Before a file is
+ * decoded, its header is read to estimate how big the decoded image will be, and the worker
+ * must acquire that much of the budget before going any further. If admitting the file would
+ * take the total in-flight footprint over the budget, the worker waits until enough other
+ * files have finished.
+ * <p>
+ * A single image that is bigger than the whole budget is not rejected. Instead, it waits
+ * until nothing else is in flight, and then runs alone. Nothing else is admitted until it's
+ * done. This way a handful of huge scans in a batch slows things down a little instead of
+ * causing an OutOfMemoryError.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-07
+ */
+public class MemoryBudget {
+
+    private static final Logger logger = Logger.getLogger(MemoryBudget.class.getName());
+
+    /**
+     * The fraction of the maximum heap size that we use as a budget if none is given.
+     */
+    public static final double DEFAULT_HEAP_FRACTION = 0.6;
+
+    private final long budget;
+    private long inFlight;
+
+    /**
+     * Creates a budget of the given size.
+     *
+     * @param budget The maximum number of bytes of decoded image data to allow in memory at once.
+     *               If zero or negative, a default based on the maximum heap size is used.
+     */
+    public MemoryBudget(long budget) {
+        this.budget = budget > 0 ? budget : getDefaultBudget();
+    }
+
+    /**
+     * Returns the default budget, which is a fixed fraction of the maximum heap size.
+     */
+    public static long getDefaultBudget() {
+        return (long)(Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * The number of bytes currently admitted and not yet released.
+     */
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Blocks until the given number of bytes can be admitted without going over budget.
+     * A request bigger than the whole budget is admitted once nothing else is in flight.
+     *
+     * @param bytes The estimated footprint of the work about to start.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytes <= 0) {
+            return;
+        }
+        if (bytes > budget) {
+            logger.log(Level.INFO, "Image needs an estimated {0}MB, more than the {1}MB budget; it will run alone.",
+                       new Object[]{bytes / (1024 * 1024), budget / (1024 * 1024)});
+            while (inFlight > 0) {
+                wait();
+            }
+        }
+        else {
+            while (inFlight + bytes > budget) {
+                wait();
+            }
+        }
+        inFlight += bytes;
+    }
+
+    /**
+     * Returns the given number of bytes to the budget, waking up anyone waiting for room.
+     *
+     * @param bytes The same value that was passed to acquire().
+     */
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        inFlight = Math.max(0, inFlight - bytes);
+        notifyAll();
+    }
+
+    /**
+     * Estimates how much memory will be needed to convert the given file, by reading only
+     * its header. This is the size of the decoded raster (after any subsampling for a maximum
+     * output dimension), plus the size of the RGB copy we have to make when flattening an
+     * image with alpha for jpeg output, plus the size of the resampled copy, if any.
+     *
+     * @param srcFile  The source image file.
+     * @param settings The settings the file will be converted with.
+     * @return The estimated footprint in bytes, or 0 if the header can't be read (in which
+     *         case the decode will most likely fail anyway, and report the problem itself).
+     */
+    public static long estimateFootprint(File srcFile, ConversionSettings settings) {
+        try (ImageInputStream inStream = ImageIO.createImageInputStream(srcFile)) {
+            if (inStream == null) {
+                return 0;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(inStream);
+            if (!readers.hasNext()) {
+                return 0;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(inStream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = ImageScaler.getSubsampling(width, height, settings.getMaxDimension());
+                long pixels = (long)((width + subsampling - 1) / subsampling)
+                    * ((height + subsampling - 1) / subsampling);
+                ImageTypeSpecifier type = reader.getRawImageType(0);
+                if (type == null) {
+                    Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                    type = types.hasNext() ? types.next() : null;
+                }
+                int bytesPerPixel = type == null ? 4 : getBytesPerPixel(type.getSampleModel(1, 1));
+                long footprint = pixels * bytesPerPixel;
+                boolean hasAlpha = type != null && type.getColorModel().hasAlpha();
+                if (settings.getOutputFormat() == ConversionSettings.OutputFormat.JPEG
+                    && (hasAlpha || bytesPerPixel != 4)) {
+                    footprint += pixels * 4;
+                }
+                int maxDimension = settings.getMaxDimension();
+                if (maxDimension > 0 && Math.max(width, height) > maxDimension) {
+                    // The image will also be resampled down to the exact output size:
+                    Dimension scaled = ImageScaler.getScaledSize(width, height, maxDimension);
+                    footprint += (long)scaled.width * scaled.height * 4;
+                }
+                return footprint;
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "Unable to read image header of " + srcFile.getAbsolutePath(), e);
+            return 0;
+        }
+    }
+
+    private static int getBytesPerPixel(SampleModel sampleModel) {
+        int bytesPerSample = Math.max(1, DataBuffer.getDataTypeSize(sampleModel.getDataType()) / 8);
+        if (sampleModel instanceof SinglePixelPackedSampleModel || sampleModel instanceof MultiPixelPackedSampleModel) {
+            // All bands packed into a single sample (this overestimates sub-byte pixels, which is fine for a budget):
+            return bytesPerSample;
+        }
+        return bytesPerSample * sampleModel.getNumBands();
+    }
+}
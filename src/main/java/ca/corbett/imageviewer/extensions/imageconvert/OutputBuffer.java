@@ -0,0 +1,38 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An in-memory buffer that an image is encoded into before it is written to disk. This is
+ * a ByteArrayOutputStream that can hand out its contents as a ByteBuffer without copying
+ * them, so that they can be written with a single FileChannel.write(). Buffers are pooled
+ * by CodecPool and reused from image to image, so that they only have to grow once.
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public final class OutputBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Creates an empty buffer with the given initial capacity in bytes.
+     */
+    public OutputBuffer(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * Returns a ByteBuffer over the current contents of this buffer. It shares our storage,
+     * so it is only valid until this buffer is next written to or reset.
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Returns the size in bytes of the storage currently allocated by this buffer.
+     */
+    public synchronized int capacity() {
+        return buf.length;
+    }
+}
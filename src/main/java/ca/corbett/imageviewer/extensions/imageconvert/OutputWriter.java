@@ -0,0 +1,322 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes converted images to disk so that a target file is either complete or not there
+ * at all. Each image is written to a hidden temp file next to its target with a single
+ * FileChannel write, given its date/time, and then atomically renamed into place. If a
+ * conversion is interrupted, whether by an error, a cancel, or the whole process dying, the
+ * worst that can be left behind is a temp file; never a truncated image that a later run
+ * with "overwrite if exists" turned off would mistake for a finished one.
+ * <p>
+ * The sync interval, from ConversionSettings, controls whether files are also flushed
+ * all the way to disk (fsync), which is what makes them survive a power cut or OS crash:
+ * </p>
+ * <ul>
+ *     <li><b>0</b> - never; the OS writes files out in its own time. This is the fastest.
+ *     <li><b>1</b> - each file is flushed before it is renamed into place.
+ *     <li><b>N</b> - files are held back as temp files, and every N of them are flushed
+ *     together, renamed into place, and then their directories flushed. This gives the same
+ *     guarantee as 1 for much less waiting on the disk.
+ * </ul>
+ * <p>
+ * Anything that must only happen once the target is safely in place, such as removing the
+ * source file, is passed in as an afterCommit action, which is run after the rename (and
+ * any flush) for that file. With a sync interval over 1, that can be some time after write()
+ * returns, and in the worst case only when flush() is called at the end of the batch.
+ * </p>
+ * <p>
+ * A file that is held back has already been reported as converted by the time it is renamed,
+ * so if that rename (or its flush) fails, there is no caller left to throw to. Such failures
+ * are reported to the listener given to the constructor, through its commitFailed() method,
+ * so that the batch can count the file as a failure after all. The file's afterCommit action
+ * is not run, so its source is never removed. Files that do make it into place are reported
+ * to the same listener through its fileCommitted() method, just before their afterCommit
+ * action is run.
+ * </p>
+ * <p>
+ * An OutputWriter is thread safe. It must be flushed (or closed) at the end of a batch.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class OutputWriter implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(OutputWriter.class.getName());
+
+    /**
+     * The suffix given to temp files. Temp files are also hidden by starting with a dot.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private final int syncInterval;
+    private final ConversionListener listener;
+    private List<Pending> pending = new ArrayList<>();
+
+    /**
+     * A temp file that has been written, but not yet flushed and renamed into place.
+     */
+    private static final class Pending {
+        final File srcFile;
+        final File tempFile;
+        final File targetFile;
+        final Runnable afterCommit;
+
+        Pending(File srcFile, File tempFile, File targetFile, Runnable afterCommit) {
+            this.srcFile = srcFile;
+            this.tempFile = tempFile;
+            this.targetFile = targetFile;
+            this.afterCommit = afterCommit;
+        }
+    }
+
+    /**
+     * Creates an OutputWriter with the given sync interval, as described above.
+     */
+    public OutputWriter(int syncInterval) {
+        this(syncInterval, null);
+    }
+
+    /**
+     * Creates an OutputWriter with the given sync interval, which reports each file it commits,
+     * or fails to commit after it was held back, to the given listener, as described above.
+     *
+     * @param syncInterval How many files to flush to disk at once.
+     * @param listener     Told about files as they are committed, or fail to be. May be null.
+     */
+    public OutputWriter(int syncInterval, ConversionListener listener) {
+        this.syncInterval = Math.max(0, syncInterval);
+        this.listener = listener;
+    }
+
+    /**
+     * Returns a new, unique temp file name in the same directory as the given target file.
+     * The temp file itself is not created.
+     */
+    public File getTempFile(File targetFile) {
+        String suffix = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+        return new File(targetFile.getAbsoluteFile().getParentFile(),
+                        "." + targetFile.getName() + "." + suffix + TEMP_SUFFIX);
+    }
+
+    /**
+     * Writes the contents of the given buffer to the given target file.
+     *
+     * @param srcFile      The source file the target was converted from, for reporting failures.
+     * @param targetFile   The file to write. It is replaced if it exists.
+     * @param data         The encoded image.
+     * @param lastModified The date/time to give the target file, or null to leave it as now.
+     * @param afterCommit  Run once the target file is in place, or null.
+     * @throws IOException If the file can't be written. Nothing is left behind in that case.
+     */
+    public void write(File srcFile, File targetFile, OutputBuffer data, FileTime lastModified, Runnable afterCommit)
+        throws IOException {
+        File tempFile = getTempFile(targetFile);
+        Path tempPath = tempFile.toPath();
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = data.toByteBuffer();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (lastModified != null) {
+                Files.setLastModifiedTime(tempPath, lastModified);
+            }
+            if (syncInterval == 1) {
+                channel.force(true);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        enqueue(new Pending(srcFile, tempFile, targetFile, afterCommit));
+    }
+
+    /**
+     * Moves a temp file that the caller has already written (as from getTempFile()) to the
+     * given target file, in the same way as write().
+     *
+     * @param srcFile      The source file the target was converted from, for reporting failures.
+     * @param tempFile     The completed temp file.
+     * @param targetFile   The file it should become. It is replaced if it exists.
+     * @param lastModified The date/time to give the target file, or null to leave it as is.
+     * @param afterCommit  Run once the target file is in place, or null.
+     * @throws IOException If the file can't be moved into place. The temp file is removed in that case.
+     */
+    public void commit(File srcFile, File tempFile, File targetFile, FileTime lastModified, Runnable afterCommit)
+        throws IOException {
+        try {
+            if (lastModified != null) {
+                Files.setLastModifiedTime(tempFile.toPath(), lastModified);
+            }
+            if (syncInterval == 1) {
+                sync(tempFile.toPath());
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+        enqueue(new Pending(srcFile, tempFile, targetFile, afterCommit));
+    }
+
+    /**
+     * Flushes, renames and finishes every file still being held back. This must be called at
+     * the end of a batch. If any file can't be moved into place, the rest are still committed
+     * and then the first failure is thrown. Every file that failed is also reported to our
+     * listener, since they were all reported as converted when they were written.
+     *
+     * @throws IOException If any file could not be committed.
+     */
+    public void flush() throws IOException {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        commitAll(batch, null);
+    }
+
+    /**
+     * Same as flush().
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void enqueue(Pending item) throws IOException {
+        if (syncInterval <= 1) {
+            List<Pending> single = new ArrayList<>(1);
+            single.add(item);
+            commitAll(single, item);
+            return;
+        }
+        List<Pending> batch = null;
+        synchronized (this) {
+            pending.add(item);
+            if (pending.size() >= syncInterval) {
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+        }
+        if (batch != null) {
+            commitAll(batch, item);
+        }
+    }
+
+    /**
+     * Commits every file in the given batch. If the file being written by the caller (if any)
+     * fails, that failure is thrown, since the caller can still report it. Any other failure
+     * belongs to a file that was already reported as converted, and goes to our listener; that
+     * is also thrown if there is no caller's file, as from flush().
+     */
+    private void commitAll(List<Pending> batch, Pending callersItem) throws IOException {
+        IOException firstFailure = null;
+        List<Pending> committed = new ArrayList<>(batch.size());
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Pending item : batch) {
+            try {
+                if (syncInterval > 1) {
+                    sync(item.tempFile.toPath());
+                }
+                moveIntoPlace(item.tempFile.toPath(), item.targetFile.toPath());
+                committed.add(item);
+                directories.add(item.targetFile.getAbsoluteFile().getParentFile().toPath());
+            }
+            catch (IOException ioe) {
+                deleteTempFile(item.tempFile);
+                if (item != callersItem) {
+                    logger.log(Level.SEVERE, "Unable to write " + item.targetFile.getAbsolutePath() + ": "
+                        + ioe.getMessage(), ioe);
+                    if (listener != null) {
+                        listener.commitFailed(item.srcFile, item.targetFile);
+                    }
+                }
+                if (firstFailure == null && (item == callersItem || callersItem == null)) {
+                    firstFailure = ioe;
+                }
+            }
+        }
+
+        // Make the renames themselves durable before anything irreversible happens:
+        if (syncInterval > 0) {
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        }
+        for (Pending item : committed) {
+            if (listener != null) {
+                listener.fileCommitted(item.srcFile, item.targetFile);
+            }
+            if (item.afterCommit != null) {
+                item.afterCommit.run();
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+
+    /**
+     * Removes a temp file that couldn't be committed. This mustn't stop the rest of the batch
+     * from being committed, so a failure here is only logged.
+     */
+    private static void deleteTempFile(File tempFile) {
+        try {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to remove temp file " + tempFile.getAbsolutePath() + ": "
+                + ioe.getMessage());
+        }
+    }
+
+    private static void moveIntoPlace(Path tempPath, Path targetPath) throws IOException {
+        try {
+            Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException amnse) {
+            // Very unlikely, since the temp file is in the same directory, but still better than failing:
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void sync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flushes a directory's entries to disk. Not every platform allows directories to be
+     * opened (Windows doesn't, and doesn't need it), so failure here is not an error.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.FINE, "Unable to sync directory " + directory + ": " + ioe.getMessage());
+        }
+    }
+}
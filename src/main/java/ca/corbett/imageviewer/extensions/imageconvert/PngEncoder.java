@@ -0,0 +1,481 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A png encoder that compresses a single image on several threads at once, in the same way
+ * as pigz: the filtered image data is cut into blocks of rows, each block is deflated on
+ * its own thread, and the blocks are stitched back together into one zlib stream. Each
+ * block is primed with the 32K of data before it as a preset dictionary, so compression
+ * is nearly as good as deflating the whole image in one go, and the output is identical
+ * no matter how many threads were used. The result is an ordinary png file that any
+ * decoder can read.
+ * <p>
+ * The ImageIO png writer, by comparison, deflates on one thread at a fixed level, which
+ * makes png encoding by far the slowest part of converting jpeg images to png.
+ * </p>
+ * <p>
+ * Only 8-bit RGB, RGBA and gray images are handled here (see canEncode()), which covers
+ * everything the jpeg reader produces. Anything else should be written with ImageIO.
+ * The compression levels are:
+ * </p>
+ * <ul>
+ *     <li><b>FAST</b> - deflate level 1, with the cheap Sub filter on every row.
+ *     <li><b>BALANCED</b> - deflate level 4 (as ImageIO uses), with the Paeth filter on every row,
+ *     which suits photos well.
+ *     <li><b>SMALL</b> - deflate level 9, trying every filter on each row and keeping the best one.
+ * </ul>
+ * <p>
+ * A PngEncoder is thread safe, and must be closed when no longer needed to stop its threads.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class PngEncoder implements AutoCloseable {
+
+    /**
+     * The amount of raw image data in each block that is compressed on its own thread.
+     */
+    private static final int BLOCK_BYTES = 256 * 1024;
+
+    /**
+     * The size of the deflate window, and so of the dictionary each block is primed with.
+     */
+    private static final int DICTIONARY_BYTES = 32 * 1024;
+
+    private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+    private static final int FILTER_ADAPTIVE = -1;
+
+    private final int deflateLevel;
+    private final int filter;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a PngEncoder whose threads run at normal priority.
+     *
+     * @param compression The compression level to use.
+     * @param threads     The number of threads to compress each image on. With 1, everything is done
+     *                    on the calling thread.
+     */
+    public PngEncoder(ConversionSettings.PngCompression compression, int threads) {
+        this(compression, threads, false);
+    }
+
+    /**
+     * Creates a PngEncoder.
+     *
+     * @param compression The compression level to use.
+     * @param threads     The number of threads to compress each image on. With 1, everything is done
+     *                    on the calling thread.
+     * @param lowPriority Whether those threads run at the lowest priority (see ConversionSettings.isLowPriority()).
+     */
+    public PngEncoder(ConversionSettings.PngCompression compression, int threads, boolean lowPriority) {
+        switch (compression) {
+            case FAST:
+                deflateLevel = 1;
+                filter = FILTER_SUB;
+                break;
+            case SMALL:
+                deflateLevel = 9;
+                filter = FILTER_ADAPTIVE;
+                break;
+            default:
+                deflateLevel = 4;
+                filter = FILTER_PAETH;
+                break;
+        }
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "ImageConverter-png");
+                thread.setDaemon(true);
+                if (lowPriority) {
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                }
+                return thread;
+            });
+        }
+        else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Reports whether the given image is of a type this encoder can write.
+     */
+    public static boolean canEncode(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Encodes the given image as a png file in memory.
+     *
+     * @param image     An image for which canEncode() returns true.
+     * @param outStream Receives the contents of the png file.
+     * @throws IOException If the image type isn't supported, or encoding is interrupted.
+     */
+    public void encode(BufferedImage image, ByteArrayOutputStream outStream) throws IOException {
+        if (!canEncode(image)) {
+            throw new IOException("PngEncoder can't write images of type " + image.getType());
+        }
+        ImageRows rows = new ImageRows(image);
+        int rowsPerBlock = Math.max(1, BLOCK_BYTES / rows.rowBytes);
+        int blockCount = (rows.height + rowsPerBlock - 1) / rowsPerBlock;
+
+        // Compress the blocks, in parallel if we can and there's more than one:
+        List<Future<Block>> futures = new ArrayList<>();
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < blockCount; i++) {
+            int firstRow = i * rowsPerBlock;
+            int lastRow = Math.min(rows.height, firstRow + rowsPerBlock);
+            boolean isLast = i == blockCount - 1;
+            if (executor == null || blockCount == 1) {
+                blocks.add(compressBlock(rows, firstRow, lastRow, isLast));
+            }
+            else {
+                futures.add(executor.submit(() -> compressBlock(rows, firstRow, lastRow, isLast)));
+            }
+        }
+        try {
+            for (Future<Block> future : futures) {
+                blocks.add(future.get());
+            }
+        }
+        catch (InterruptedException ie) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Png encoding was interrupted.");
+        }
+        catch (ExecutionException ee) {
+            futures.forEach(future -> future.cancel(true));
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ee.getCause();
+            }
+            if (ee.getCause() instanceof Error) {
+                throw (Error)ee.getCause();
+            }
+            throw new IOException("Png encoding failed: " + ee.getCause().getMessage(), ee.getCause());
+        }
+
+        // Stitch them together: zlib header, blocks in order, then the adler32 of all the data.
+        outStream.write(SIGNATURE, 0, SIGNATURE.length);
+        writeHeader(outStream, rows);
+        writeChunk(outStream, "IDAT", getZlibHeader(), 2);
+        long adler = 1;
+        for (Block block : blocks) {
+            writeChunk(outStream, "IDAT", block.data, block.data.length);
+            adler = combineAdler32(adler, block.adler, block.length);
+        }
+        byte[] trailer = {(byte)(adler >>> 24), (byte)(adler >>> 16), (byte)(adler >>> 8), (byte)adler};
+        writeChunk(outStream, "IDAT", trailer, trailer.length);
+        writeChunk(outStream, "IEND", new byte[0], 0);
+    }
+
+    /**
+     * Stops this encoder's threads. Any encode() still in progress will fail.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The compressed form of a run of filtered rows.
+     */
+    private static final class Block {
+        final byte[] data;
+        final long adler;
+        final long length;
+
+        Block(byte[] data, long adler, long length) {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Filters and deflates the given rows. Unless this is the first block, the deflater is
+     * first given the filtered data from just before these rows as a dictionary, so that it
+     * can refer back to it just as it would if the whole image were deflated in one go.
+     * The last block finishes the deflate stream; the others end on a byte boundary, so that
+     * the next block can simply be appended.
+     */
+    private Block compressBlock(ImageRows rows, int firstRow, int lastRow, boolean isLast) {
+        int lineBytes = rows.rowBytes + 1;
+        int dictionaryRows = Math.min(firstRow, (DICTIONARY_BYTES + lineBytes - 1) / lineBytes);
+        int startRow = firstRow - dictionaryRows;
+        byte[] filtered = new byte[(lastRow - startRow) * lineBytes];
+        byte[] previous = new byte[rows.rowBytes];
+        byte[] current = new byte[rows.rowBytes];
+        byte[] scratch = filter == FILTER_ADAPTIVE ? new byte[rows.rowBytes] : null;
+        int[] pixels = rows.isPacked ? new int[rows.width] : null;
+        if (startRow > 0) {
+            rows.getRow(startRow - 1, previous, pixels);
+        }
+        for (int y = startRow; y < lastRow; y++) {
+            rows.getRow(y, current, pixels);
+            filterRow(current, previous, rows.bytesPerPixel, filtered, (y - startRow) * lineBytes, scratch);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int dataStart = dictionaryRows * lineBytes;
+        int dataLength = filtered.length - dataStart;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(dataLength / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        Deflater deflater = new Deflater(deflateLevel, true);
+        try {
+            if (dataStart > 0) {
+                int dictionaryLength = Math.min(DICTIONARY_BYTES, dataStart);
+                deflater.setDictionary(filtered, dataStart - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(filtered, dataStart, dataLength);
+            if (isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            else {
+                // A full buffer, or input the deflater hasn't taken yet, means there is more to come:
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length || !deflater.needsInput());
+            }
+        }
+        finally {
+            deflater.end();
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered, dataStart, dataLength);
+        return new Block(compressed.toByteArray(), adler.getValue(), dataLength);
+    }
+
+    /**
+     * Writes the filter type byte and the filtered bytes of one row to the given offset in out.
+     */
+    private void filterRow(byte[] row, byte[] previous, int bpp, byte[] out, int offset, byte[] scratch) {
+        if (filter != FILTER_ADAPTIVE) {
+            out[offset] = (byte)filter;
+            applyFilter(filter, row, previous, bpp, out, offset + 1);
+            return;
+        }
+
+        // Try each filter, and keep whichever gives the smallest sum of absolute values, as
+        // recommended by the png spec. The best so far lives in out, the current try in scratch:
+        long bestScore = Long.MAX_VALUE;
+        int bestFilter = FILTER_NONE;
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+            applyFilter(type, row, previous, bpp, scratch, 0);
+            long score = 0;
+            for (int i = 0; i < scratch.length && score < bestScore; i++) {
+                score += Math.abs(scratch[i]);
+            }
+            if (score < bestScore) {
+                bestScore = score;
+                bestFilter = type;
+                System.arraycopy(scratch, 0, out, offset + 1, scratch.length);
+            }
+        }
+        out[offset] = (byte)bestFilter;
+    }
+
+    private static void applyFilter(int type, byte[] row, byte[] previous, int bpp, byte[] out, int offset) {
+        int length = row.length;
+        switch (type) {
+            case FILTER_SUB:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? row[i - bpp] : 0;
+                    out[offset + i] = (byte)(row[i] - left);
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < length; i++) {
+                    out[offset + i] = (byte)(row[i] - previous[i]);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte)(row[i] - ((left + (previous[i] & 0xff)) >> 1));
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+                    int up = previous[i] & 0xff;
+                    int upLeft = i >= bpp ? previous[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte)(row[i] - paeth(left, up, upLeft));
+                }
+                break;
+            default:
+                System.arraycopy(row, 0, out, offset, length);
+                break;
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    /**
+     * Combines the adler32 checksums of two runs of data into the checksum of both together,
+     * as zlib's adler32_combine() does, so that each block's checksum can be computed on its own thread.
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        sum1 %= base;
+        sum2 %= base;
+        return (sum2 << 16) | sum1;
+    }
+
+    /**
+     * The two byte zlib stream header: deflate with a 32K window, no preset dictionary,
+     * and the level hint that zlib itself would use for our deflate level.
+     */
+    private byte[] getZlibHeader() {
+        int levelHint = deflateLevel <= 1 ? 0 : deflateLevel < 6 ? 1 : deflateLevel == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = levelHint << 6;
+        flg += (31 - ((cmf << 8) + flg) % 31) % 31;
+        return new byte[]{(byte)cmf, (byte)flg};
+    }
+
+    private static void writeHeader(ByteArrayOutputStream outStream, ImageRows rows) {
+        byte[] header = new byte[13];
+        putInt(header, 0, rows.width);
+        putInt(header, 4, rows.height);
+        header[8] = 8; // bit depth
+        header[9] = (byte)rows.colorType;
+        // Compression method, filter method and interlace method are all 0.
+        writeChunk(outStream, "IHDR", header, header.length);
+    }
+
+    private static void writeChunk(ByteArrayOutputStream outStream, String type, byte[] data, int length) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] intBytes = new byte[4];
+        putInt(intBytes, 0, length);
+        outStream.write(intBytes, 0, 4);
+        outStream.write(typeBytes, 0, 4);
+        outStream.write(data, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(intBytes, 0, (int)crc.getValue());
+        outStream.write(intBytes, 0, 4);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte)(value >>> 24);
+        bytes[offset + 1] = (byte)(value >>> 16);
+        bytes[offset + 2] = (byte)(value >>> 8);
+        bytes[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Reads rows out of an image as png pixel bytes: R, G, B (and A) for color images, or
+     * a single gray byte. Raster.getDataElements() already returns the bands of the
+     * supported byte image types in that order, so only the packed int types need unpacking.
+     * Any number of threads may read rows at once.
+     */
+    private static final class ImageRows {
+        final Raster raster;
+        final int width;
+        final int height;
+        final int bytesPerPixel;
+        final int rowBytes;
+        final int colorType;
+        final boolean isPacked;
+
+        ImageRows(BufferedImage image) throws IOException {
+            raster = image.getRaster();
+            width = image.getWidth();
+            height = image.getHeight();
+            boolean hasAlpha = image.getColorModel().hasAlpha();
+            if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                bytesPerPixel = 1;
+                colorType = 0;
+            }
+            else {
+                bytesPerPixel = hasAlpha ? 4 : 3;
+                colorType = hasAlpha ? 6 : 2;
+            }
+            if ((long)width * bytesPerPixel > Integer.MAX_VALUE - 1) {
+                throw new IOException("Image is too wide to encode: " + width);
+            }
+            rowBytes = width * bytesPerPixel;
+            isPacked = raster.getTransferType() == DataBuffer.TYPE_INT;
+        }
+
+        /**
+         * Copies the given row into row. For packed images, pixels must be an int[width]
+         * to unpack from; it is ignored otherwise.
+         */
+        void getRow(int y, byte[] row, int[] pixels) {
+            if (!isPacked) {
+                raster.getDataElements(0, y, width, 1, row);
+                return;
+            }
+            raster.getDataElements(0, y, width, 1, pixels);
+            int out = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[x];
+                row[out++] = (byte)(pixel >> 16);
+                row[out++] = (byte)(pixel >> 8);
+                row[out++] = (byte)pixel;
+                if (bytesPerPixel == 4) {
+                    row[out++] = (byte)(pixel >>> 24);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Converts decoded images to plain packed RGB for jpeg output, which has no alpha channel.
+ * Transparent and translucent pixels are composited onto a solid matte color, and indexed,
+ * grayscale and 16-bit images are normalized to 8 bits per channel along the way.
+ * <p>
+ * The work is done directly on the primitive arrays behind the source and destination
+ * rasters, so no per-pixel objects or intermediate images are created. The destination
+ * is supplied by the caller, normally from CodecPool.getRgbImage(), so that a batch can
+ * reuse the same pixel buffer from image to image instead of allocating a new one each time.
+ * The layouts produced by the stock png, jpeg, gif and bmp readers are all handled this way;
+ * anything else (a CMYK jpeg, say) falls back to drawing the image onto the destination.
+ * </p>
+ * <p>
+ * Gray levels are copied into all three channels as-is, the same as Java2D does when drawing
+ * a TYPE_BYTE_GRAY image, rather than being treated as linear and gamma corrected.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public final class RgbConverter {
+
+    private RgbConverter() {
+    }
+
+    /**
+     * Reports whether the given image can be handed to the jpeg writer as-is: that is,
+     * whether it is already 8-bit RGB with no alpha channel.
+     */
+    public static boolean isRgb(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_3BYTE_BGR;
+    }
+
+    /**
+     * Converts the given source image into the given destination image, compositing any
+     * transparency onto the given matte color.
+     *
+     * @param src   The image to convert. It is not modified.
+     * @param dest  A TYPE_INT_RGB image of the same size as src, whose pixels are all overwritten.
+     * @param matte The background color for transparent areas.
+     */
+    public static void convert(BufferedImage src, BufferedImage dest, Color matte) {
+        if (dest.getType() != BufferedImage.TYPE_INT_RGB
+            || dest.getWidth() != src.getWidth() || dest.getHeight() != src.getHeight()) {
+            throw new IllegalArgumentException("Destination must be a TYPE_INT_RGB image of the same size.");
+        }
+        int[] destPixels = ((DataBufferInt)dest.getRaster().getDataBuffer()).getData();
+        int matteRgb = matte.getRGB() & 0xffffff;
+        boolean converted;
+        ColorModel colorModel = src.getColorModel();
+        if (colorModel instanceof IndexColorModel) {
+            converted = convertIndexed(src.getRaster(), (IndexColorModel)colorModel, destPixels, matteRgb);
+        }
+        else if (colorModel instanceof DirectColorModel) {
+            converted = convertPacked(src.getRaster(), (DirectColorModel)colorModel, destPixels, matteRgb);
+        }
+        else if (colorModel instanceof ComponentColorModel) {
+            converted = convertComponent(src.getRaster(), (ComponentColorModel)colorModel, destPixels, matteRgb);
+        }
+        else {
+            converted = false;
+        }
+
+        if (!converted) {
+            Graphics2D graphics = dest.createGraphics();
+            graphics.drawImage(src, 0, 0, matte, null);
+            graphics.dispose();
+        }
+    }
+
+    /**
+     * Composites the given non-premultiplied ARGB pixels onto the given matte color, in place.
+     *
+     * @param pixels   The pixels to flatten.
+     * @param offset   The index of the first pixel.
+     * @param count    The number of pixels.
+     * @param matteRgb The background color, as 0xRRGGBB.
+     */
+    public static void flatten(int[] pixels, int offset, int count, int matteRgb) {
+        for (int i = offset; i < offset + count; i++) {
+            int argb = pixels[i];
+            pixels[i] = blend((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff, argb >>> 24, matteRgb);
+        }
+    }
+
+    /**
+     * Composites a single non-premultiplied pixel onto the matte, returning it as 0xRRGGBB.
+     */
+    private static int blend(int red, int green, int blue, int alpha, int matteRgb) {
+        if (alpha == 0xff) {
+            return (red << 16) | (green << 8) | blue;
+        }
+        int inverse = 0xff - alpha;
+        red = (red * alpha + ((matteRgb >> 16) & 0xff) * inverse + 127) / 0xff;
+        green = (green * alpha + ((matteRgb >> 8) & 0xff) * inverse + 127) / 0xff;
+        blue = (blue * alpha + (matteRgb & 0xff) * inverse + 127) / 0xff;
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Composites a single premultiplied pixel onto the matte, returning it as 0xRRGGBB.
+     */
+    private static int blendPremultiplied(int red, int green, int blue, int alpha, int matteRgb) {
+        if (alpha == 0xff) {
+            return (red << 16) | (green << 8) | blue;
+        }
+        int inverse = 0xff - alpha;
+        red = Math.min(0xff, red + (((matteRgb >> 16) & 0xff) * inverse + 127) / 0xff);
+        green = Math.min(0xff, green + (((matteRgb >> 8) & 0xff) * inverse + 127) / 0xff);
+        blue = Math.min(0xff, blue + ((matteRgb & 0xff) * inverse + 127) / 0xff);
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Palette images: the palette is flattened once, and then each index is looked up in it.
+     * Handles one index per byte, and the packed 1, 2 and 4 bit layouts used for small palettes.
+     */
+    private static boolean convertIndexed(Raster raster, IndexColorModel colorModel, int[] dest, int matteRgb) {
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferByte) || dataBuffer.getNumBanks() != 1) {
+            return false;
+        }
+        int[] palette = new int[256];
+        colorModel.getRGBs(palette);
+        flatten(palette, 0, colorModel.getMapSize(), matteRgb);
+
+        byte[] data = ((DataBufferByte)dataBuffer).getData();
+        SampleModel sampleModel = raster.getSampleModel();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int translateX = raster.getSampleModelTranslateX();
+        int translateY = raster.getSampleModelTranslateY();
+        if (sampleModel instanceof MultiPixelPackedSampleModel) {
+            MultiPixelPackedSampleModel packedModel = (MultiPixelPackedSampleModel)sampleModel;
+            int bits = packedModel.getPixelBitStride();
+            int mask = (1 << bits) - 1;
+            int stride = packedModel.getScanlineStride();
+            int firstBit = packedModel.getDataBitOffset() - translateX * bits;
+            for (int y = 0; y < height; y++) {
+                int rowStart = dataBuffer.getOffset() + (y - translateY) * stride;
+                int destIndex = y * width;
+                for (int x = 0; x < width; x++) {
+                    int bit = firstBit + x * bits;
+                    int shift = 8 - bits - (bit & 7);
+                    dest[destIndex + x] = palette[(data[rowStart + (bit >> 3)] >> shift) & mask];
+                }
+            }
+            return true;
+        }
+        if (sampleModel instanceof ComponentSampleModel && sampleModel.getNumBands() == 1) {
+            ComponentSampleModel componentModel = (ComponentSampleModel)sampleModel;
+            int pixelStride = componentModel.getPixelStride();
+            int stride = componentModel.getScanlineStride();
+            int start = dataBuffer.getOffset() + componentModel.getBandOffsets()[0]
+                - translateY * stride - translateX * pixelStride;
+            for (int y = 0; y < height; y++) {
+                int srcIndex = start + y * stride;
+                int destIndex = y * width;
+                for (int x = 0; x < width; x++, srcIndex += pixelStride) {
+                    dest[destIndex + x] = palette[data[srcIndex] & 0xff];
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Packed int images, such as TYPE_INT_ARGB, TYPE_INT_ARGB_PRE and TYPE_INT_BGR.
+     */
+    private static boolean convertPacked(Raster raster, DirectColorModel colorModel, int[] dest, int matteRgb) {
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferInt) || dataBuffer.getNumBanks() != 1
+            || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+            || !isByteMask(colorModel.getRedMask()) || !isByteMask(colorModel.getGreenMask())
+            || !isByteMask(colorModel.getBlueMask())
+            || (colorModel.hasAlpha() && !isByteMask(colorModel.getAlphaMask()))
+            || !colorModel.getColorSpace().isCS_sRGB()) {
+            return false;
+        }
+        int redShift = Integer.numberOfTrailingZeros(colorModel.getRedMask());
+        int greenShift = Integer.numberOfTrailingZeros(colorModel.getGreenMask());
+        int blueShift = Integer.numberOfTrailingZeros(colorModel.getBlueMask());
+        int alphaShift = colorModel.hasAlpha() ? Integer.numberOfTrailingZeros(colorModel.getAlphaMask()) : 0;
+        boolean hasAlpha = colorModel.hasAlpha();
+        boolean premultiplied = colorModel.isAlphaPremultiplied();
+
+        int[] data = ((DataBufferInt)dataBuffer).getData();
+        int stride = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int start = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride
+            - raster.getSampleModelTranslateX();
+        for (int y = 0; y < height; y++) {
+            int srcIndex = start + y * stride;
+            int destIndex = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = data[srcIndex + x];
+                int red = (pixel >>> redShift) & 0xff;
+                int green = (pixel >>> greenShift) & 0xff;
+                int blue = (pixel >>> blueShift) & 0xff;
+                int alpha = hasAlpha ? (pixel >>> alphaShift) & 0xff : 0xff;
+                dest[destIndex + x] = premultiplied
+                    ? blendPremultiplied(red, green, blue, alpha, matteRgb)
+                    : blend(red, green, blue, alpha, matteRgb);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isByteMask(int mask) {
+        return mask != 0 && (mask >>> Integer.numberOfTrailingZeros(mask)) == 0xff;
+    }
+
+    /**
+     * Interleaved byte or ushort images: gray, gray with alpha, RGB and RGBA, in any band order.
+     * This covers TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, TYPE_BYTE_GRAY and TYPE_USHORT_GRAY, as well
+     * as the custom 8 and 16 bit layouts the png reader produces.
+     */
+    private static boolean convertComponent(Raster raster, ComponentColorModel colorModel, int[] dest,
+                                            int matteRgb) {
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        boolean isGray = colorSpace.getType() == ColorSpace.TYPE_GRAY && colorModel.getNumColorComponents() == 1;
+        boolean isRgb = colorSpace.isCS_sRGB() && colorModel.getNumColorComponents() == 3;
+        if (!(isGray || isRgb) || colorModel.isAlphaPremultiplied() || dataBuffer.getNumBanks() != 1
+            || !(raster.getSampleModel() instanceof ComponentSampleModel)) {
+            return false;
+        }
+        ComponentSampleModel sampleModel = (ComponentSampleModel)raster.getSampleModel();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int pixelStride = sampleModel.getPixelStride();
+        int stride = sampleModel.getScanlineStride();
+        int start = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride
+            - raster.getSampleModelTranslateX() * pixelStride;
+
+        // Gray uses the same band for all three channels:
+        int redOffset = bandOffsets[0];
+        int greenOffset = isGray ? bandOffsets[0] : bandOffsets[1];
+        int blueOffset = isGray ? bandOffsets[0] : bandOffsets[2];
+        int alphaOffset = colorModel.hasAlpha() ? bandOffsets[bandOffsets.length - 1] : -1;
+
+        if (dataBuffer instanceof DataBufferByte) {
+            byte[] data = ((DataBufferByte)dataBuffer).getData();
+            for (int y = 0; y < raster.getHeight(); y++) {
+                int srcIndex = start + y * stride;
+                int destIndex = y * raster.getWidth();
+                for (int x = 0; x < raster.getWidth(); x++, srcIndex += pixelStride) {
+                    int alpha = alphaOffset < 0 ? 0xff : data[srcIndex + alphaOffset] & 0xff;
+                    dest[destIndex + x] = blend(data[srcIndex + redOffset] & 0xff,
+                                                data[srcIndex + greenOffset] & 0xff,
+                                                data[srcIndex + blueOffset] & 0xff,
+                                                alpha, matteRgb);
+                }
+            }
+            return true;
+        }
+        if (dataBuffer instanceof DataBufferUShort) {
+            short[] data = ((DataBufferUShort)dataBuffer).getData();
+            for (int y = 0; y < raster.getHeight(); y++) {
+                int srcIndex = start + y * stride;
+                int destIndex = y * raster.getWidth();
+                for (int x = 0; x < raster.getWidth(); x++, srcIndex += pixelStride) {
+                    int alpha = alphaOffset < 0 ? 0xff : toByte(data[srcIndex + alphaOffset]);
+                    dest[destIndex + x] = blend(toByte(data[srcIndex + redOffset]),
+                                                toByte(data[srcIndex + greenOffset]),
+                                                toByte(data[srcIndex + blueOffset]),
+                                                alpha, matteRgb);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scales a 16-bit sample down to 8 bits, with rounding.
+     */
+    private static int toByte(short sample) {
+        return ((sample & 0xffff) * 0xff + 0x7fff) / 0xffff;
+    }
+}
@@ -0,0 +1,194 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The merged results of a sharded batch (see ShardedBatch), as recorded in its coordination
+ * directory by every worker that took part. This can be loaded at any time, by any process,
+ * including while the batch is still running, in which case it covers the units done so far.
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class ShardSummary {
+
+    private final int unitCount;
+    private final int fileCount;
+    private int doneUnitCount;
+    private int processedCount;
+    private int convertedCount;
+    private int skippedCount;
+    private int problemCount;
+    private long totalTimeSpent;
+    private long bytesRead;
+    private long bytesWritten;
+    private long firstStarted = Long.MAX_VALUE;
+    private long lastFinished;
+    private final Map<String, int[]> workerCounts = new TreeMap<>();
+    private final List<String> failedFiles = new ArrayList<>();
+
+    private ShardSummary(int unitCount, int fileCount) {
+        this.unitCount = unitCount;
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * Reads and merges the records in the given coordination directory.
+     *
+     * @throws IOException If the batch hasn't been planned yet, or its records can't be read.
+     */
+    public static ShardSummary load(File coordinationDir) throws IOException {
+        Path unitsDir = new File(coordinationDir, ShardedBatch.UNITS_DIR).toPath();
+        Properties plan = ShardedBatch.readProperties(unitsDir.resolve(ShardedBatch.PLAN_FILE));
+        ShardSummary summary;
+        try {
+            summary = new ShardSummary(Integer.parseInt(plan.getProperty("unitCount")),
+                                       Integer.parseInt(plan.getProperty("fileCount")));
+        }
+        catch (NumberFormatException nfe) {
+            throw new IOException("The plan in " + unitsDir + " is corrupt.");
+        }
+
+        for (int unit = 0; unit < summary.unitCount; unit++) {
+            File doneFile = new File(coordinationDir,
+                                     ShardedBatch.DONE_DIR + "/" + ShardedBatch.getUnitName(unit) + ".properties");
+            if (doneFile.exists()) {
+                summary.add(ShardedBatch.readProperties(doneFile.toPath()));
+            }
+        }
+        return summary;
+    }
+
+    private void add(Properties record) throws IOException {
+        try {
+            int converted = Integer.parseInt(record.getProperty("converted"));
+            doneUnitCount++;
+            processedCount += Integer.parseInt(record.getProperty("processed"));
+            convertedCount += converted;
+            skippedCount += Integer.parseInt(record.getProperty("skipped"));
+            problemCount += Integer.parseInt(record.getProperty("problems"));
+            totalTimeSpent += Long.parseLong(record.getProperty("totalTimeSpent"));
+            bytesRead += Long.parseLong(record.getProperty("bytesRead"));
+            bytesWritten += Long.parseLong(record.getProperty("bytesWritten"));
+            firstStarted = Math.min(firstStarted, Long.parseLong(record.getProperty("started")));
+            lastFinished = Math.max(lastFinished, Long.parseLong(record.getProperty("finished")));
+            int[] counts = workerCounts.computeIfAbsent(record.getProperty("worker", "?"), worker -> new int[2]);
+            counts[0]++;
+            counts[1] += converted;
+        }
+        catch (NumberFormatException nfe) {
+            throw new IOException("A work unit record is corrupt: " + nfe.getMessage());
+        }
+        for (int i = 0; record.getProperty("failed." + i) != null; i++) {
+            failedFiles.add(record.getProperty("failed." + i));
+        }
+    }
+
+    /**
+     * Reports whether every unit in the batch has been done.
+     */
+    public boolean isComplete() {
+        return doneUnitCount == unitCount;
+    }
+
+    public int getUnitCount() {
+        return unitCount;
+    }
+
+    public int getDoneUnitCount() {
+        return doneUnitCount;
+    }
+
+    /**
+     * The number of source files found when the batch was planned.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getProcessedCount() {
+        return processedCount;
+    }
+
+    public int getConvertedCount() {
+        return convertedCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public int getProblemCount() {
+        return problemCount;
+    }
+
+    /**
+     * The sum of time spent on each individual file by every worker, in milliseconds.
+     */
+    public long getTotalTimeSpent() {
+        return totalTimeSpent;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Wall clock time from the first unit being started to the last one being finished, in milliseconds.
+     */
+    public long getElapsedTime() {
+        return doneUnitCount == 0 ? 0 : lastFinished - firstStarted;
+    }
+
+    /**
+     * The number of units done, and images converted, by each worker, keyed by worker id.
+     */
+    public Map<String, int[]> getWorkerCounts() {
+        return Collections.unmodifiableMap(workerCounts);
+    }
+
+    /**
+     * The source files that failed to convert, as seen by the workers that tried them.
+     */
+    public List<String> getFailedFiles() {
+        return Collections.unmodifiableList(failedFiles);
+    }
+
+    /**
+     * Describes the batch in a few lines of text, for the console or a log.
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(doneUnitCount).append(" of ").append(unitCount).append(" work units done (")
+              .append(fileCount).append(" images).\n");
+        report.append(processedCount).append(" images processed: ").append(convertedCount).append(" converted, ")
+              .append(skippedCount).append(" skipped, ").append(problemCount).append(" problems.\n");
+        long elapsedTime = getElapsedTime();
+        report.append("Elapsed time: ").append(elapsedTime).append("ms");
+        if (elapsedTime > 0) {
+            report.append(String.format(" (%.1f images/s, %.1f MB/s)", convertedCount * 1000.0 / elapsedTime,
+                                        (bytesRead + bytesWritten) * 1000.0 / elapsedTime / (1024 * 1024)));
+        }
+        report.append('\n');
+        for (Map.Entry<String, int[]> entry : workerCounts.entrySet()) {
+            report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()[0]).append(" units, ")
+                  .append(entry.getValue()[1]).append(" converted\n");
+        }
+        for (String failedFile : failedFiles) {
+            report.append("Failed: ").append(failedFile).append('\n');
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,539 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Runs one batch over a directory tree with several processes at once, possibly on different
+ * machines sharing the tree over a network mount. Each process creates its own ShardedBatch
+ * with the same tree and the same coordination directory (somewhere all of them can write),
+ * and calls run(). The work is shared out through files in the coordination directory, so the
+ * processes never need to talk to each other:
+ * <ul>
+ *     <li><b>units/</b> - The first process to get there takes the plan lease (see below), scans
+ *     the tree the same way a recursive conversion from ImageConverterDialog does, and splits the
+ *     files into work units of a fixed size, while the others wait. The units are written to a
+ *     temporary directory that is then renamed into place, so every process sees either all of
+ *     them or none, and they all work from the same list. Paths are stored relative to the top
+ *     of the tree, so it may be mounted in a different place on each machine.</li>
+ *     <li><b>leases/</b> - A process claims a unit (or the job of planning) by creating its lease
+ *     file, which only one of them can do. While it works on the unit, it keeps touching the lease
+ *     file to show that it's still alive. A lease that hasn't been touched for the lease time has
+ *     expired, which means its process has died or lost contact, and the unit is claimed again by
+ *     somebody else. A process that comes back after its lease was taken over finds somebody else's
+ *     lease file when it next tries to renew it, and gives up on the unit. Converting a file twice
+ *     is harmless, since output files are only ever renamed into place when complete, and a target
+ *     converted on the first attempt is skipped on the second.</li>
+ *     <li><b>done/</b> - When a unit is finished, its counts are recorded here, and its lease is
+ *     removed. Once every unit is done, the records are merged into a ShardSummary, which is
+ *     also written to summary.txt.</li>
+ * </ul>
+ * Lease expiry is judged by comparing a lease file's modified time with the local clock, so the
+ * clocks of the machines involved must agree to well within the lease time. To start the batch
+ * over, delete the coordination directory.
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class ShardedBatch {
+
+    private static final Logger logger = Logger.getLogger(ShardedBatch.class.getName());
+
+    public static final int DEFAULT_UNIT_SIZE = 250;
+    public static final long DEFAULT_LEASE_MILLIS = 60000;
+
+    /**
+     * The most we wait between looks at the coordination directory, while every unit that
+     * isn't done is leased to somebody else.
+     */
+    private static final long MAX_POLL_MILLIS = 2000;
+
+    static final String UNITS_DIR = "units";
+    static final String LEASES_DIR = "leases";
+    static final String DONE_DIR = "done";
+    static final String PLAN_FILE = "plan.properties";
+    static final String SUMMARY_FILE = "summary.txt";
+
+    private final ConversionEngine engine;
+    private final File root;
+    private final boolean recursive;
+    private final File coordinationDir;
+    private int unitSize = DEFAULT_UNIT_SIZE;
+    private long leaseMillis = DEFAULT_LEASE_MILLIS;
+    private String workerId;
+
+    /**
+     * Creates a worker for a sharded batch. Nothing happens until run() is called.
+     *
+     * @param engine          The engine to convert with. Every worker should have the same settings.
+     * @param root            The top of the tree to convert.
+     * @param recursive       Whether to include images in subdirectories.
+     * @param coordinationDir The directory shared by every worker in this batch. It will be created if needed.
+     */
+    public ShardedBatch(ConversionEngine engine, File root, boolean recursive, File coordinationDir) {
+        this.engine = engine;
+        this.root = root;
+        this.recursive = recursive;
+        this.coordinationDir = coordinationDir;
+        this.workerId = getDefaultWorkerId();
+    }
+
+    /**
+     * Sets how many files go in each work unit. Only the worker that scans the tree uses this.
+     * Smaller units share the work out more evenly, and lose less when a worker dies, at the cost
+     * of more files in the coordination directory.
+     */
+    public void setUnitSize(int unitSize) {
+        this.unitSize = Math.max(1, unitSize);
+    }
+
+    /**
+     * Sets how long a lease lasts without being renewed. Every worker should use the same lease time.
+     * It should be long enough to ride out a busy network file system, since a worker that misses
+     * renewing for this long will have its unit claimed by another.
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = Math.max(1000, leaseMillis);
+    }
+
+    /**
+     * Sets the name this worker goes by in lease files and in the summary. The default is the host
+     * name and process id, which is unique as long as each process runs only one worker.
+     */
+    public void setWorkerId(String workerId) {
+        this.workerId = workerId;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Works on units until every one of them is done, or until canceled. Units leased to other
+     * workers are waited for, in case their workers die and the units have to be taken over.
+     *
+     * @param listener   Notified as each of this worker's files starts and completes. May be null.
+     * @param isCanceled Polled periodically to see if this worker should stop. A unit in progress
+     *                   is abandoned and its lease released, so another worker will redo it.
+     * @return The merged results of every worker so far, complete unless canceled.
+     * @throws IOException If the coordination directory can't be read or written.
+     */
+    public ShardSummary run(ConversionListener listener, BooleanSupplier isCanceled) throws IOException {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ImageConverter-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            int unitCount = preparePlan(heartbeat);
+            boolean allDone = false;
+            while (!allDone && !isCanceled.getAsBoolean()) {
+                allDone = true;
+                boolean didWork = false;
+                for (int unit = 0; unit < unitCount && !isCanceled.getAsBoolean(); unit++) {
+                    if (getDoneFile(unit).exists()) {
+                        continue;
+                    }
+                    allDone = false;
+                    Lease lease = claim(new File(coordinationDir,
+                                                 LEASES_DIR + "/" + getUnitName(unit) + ".lease").toPath());
+                    if (lease != null) {
+                        runUnit(unit, lease, heartbeat, listener, isCanceled);
+                        didWork = true;
+                    }
+                }
+                if (!allDone && !didWork) {
+                    // Everything left belongs to somebody else; look again in a while:
+                    Thread.sleep(getPollMillis());
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            heartbeat.shutdownNow();
+        }
+
+        ShardSummary summary = ShardSummary.load(coordinationDir);
+        if (summary.isComplete()) {
+            writeAtomically(new File(coordinationDir, SUMMARY_FILE).toPath(),
+                            summary.getReport().getBytes(StandardCharsets.UTF_8));
+        }
+        return summary;
+    }
+
+    /**
+     * Scans the tree and writes out the work units, unless another worker already has, and returns
+     * the number of units. Scanning a large tree takes a while, so only the worker holding the plan
+     * lease does it, and the rest wait for it to finish (or to die, and be taken over).
+     */
+    private int preparePlan(ScheduledExecutorService heartbeat) throws IOException, InterruptedException {
+        Path unitsDir = new File(coordinationDir, UNITS_DIR).toPath();
+        Files.createDirectories(new File(coordinationDir, LEASES_DIR).toPath());
+        Files.createDirectories(new File(coordinationDir, DONE_DIR).toPath());
+        while (!Files.isRegularFile(unitsDir.resolve(PLAN_FILE))) {
+            Lease lease = claim(new File(coordinationDir, LEASES_DIR + "/plan.lease").toPath());
+            if (lease == null) {
+                Thread.sleep(getPollMillis());
+                continue;
+            }
+            ScheduledFuture<?> renewal = lease.startRenewing(heartbeat);
+            Path tempDir = Files.createTempDirectory(coordinationDir.toPath(), UNITS_DIR + ".");
+            try {
+                if (!Files.exists(unitsDir)) {
+                    writeUnits(tempDir);
+                    Files.move(tempDir, unitsDir, StandardCopyOption.ATOMIC_MOVE);
+                    logger.log(Level.INFO, "Worker {0} planned the sharded batch.", workerId);
+                }
+            }
+            catch (IOException ioe) {
+                // If another worker got there first (having taken over from us), use theirs so we all agree:
+                if (!Files.isRegularFile(unitsDir.resolve(PLAN_FILE))) {
+                    throw ioe;
+                }
+            }
+            finally {
+                renewal.cancel(false);
+                lease.release();
+                deleteTree(tempDir);
+            }
+        }
+
+        Properties plan = readProperties(unitsDir.resolve(PLAN_FILE));
+        String format = engine.getSettings().getOutputFormat().name();
+        if (!format.equals(plan.getProperty("outputFormat"))) {
+            throw new IOException("This batch was planned for " + plan.getProperty("outputFormat")
+                                      + " output, but this worker is converting to " + format + ".");
+        }
+        try {
+            return Integer.parseInt(plan.getProperty("unitCount"));
+        }
+        catch (NumberFormatException nfe) {
+            throw new IOException("The plan in " + unitsDir + " is corrupt.");
+        }
+    }
+
+    private void writeUnits(Path dir) throws IOException {
+        List<File> files = ConversionEngine.findSourceFiles(root, recursive, engine.getSettings());
+        files.sort(Comparator.comparing(File::getPath));
+        Path rootPath = root.getAbsoluteFile().toPath();
+        int unitCount = 0;
+        for (int start = 0; start < files.size(); start += unitSize) {
+            StringBuilder unitList = new StringBuilder();
+            for (File file : files.subList(start, Math.min(start + unitSize, files.size()))) {
+                String relativePath = rootPath.relativize(file.getAbsoluteFile().toPath()).toString();
+                unitList.append(relativePath.replace(File.separatorChar, '/')).append('\n');
+            }
+            Files.write(dir.resolve(getUnitName(unitCount) + ".txt"),
+                        unitList.toString().getBytes(StandardCharsets.UTF_8));
+            unitCount++;
+        }
+
+        Properties plan = new Properties();
+        plan.setProperty("unitCount", Integer.toString(unitCount));
+        plan.setProperty("fileCount", Integer.toString(files.size()));
+        plan.setProperty("outputFormat", engine.getSettings().getOutputFormat().name());
+        plan.setProperty("plannedBy", workerId);
+        try (OutputStream outStream = Files.newOutputStream(dir.resolve(PLAN_FILE))) {
+            plan.store(outStream, "Sharded batch plan");
+        }
+    }
+
+    /**
+     * Tries to take the given lease, taking it over if it has expired. Returns null if somebody
+     * else holds it.
+     */
+    private Lease claim(Path leasePath) throws IOException {
+        Lease lease = new Lease(leasePath);
+        if (lease.create()) {
+            return lease;
+        }
+        if (!lease.takeOverIfExpired()) {
+            return null;
+        }
+        return lease.create() ? lease : null;
+    }
+
+    private void runUnit(int unit, Lease lease, ScheduledExecutorService heartbeat, ConversionListener listener,
+                         BooleanSupplier isCanceled) throws IOException {
+        // Somebody may have finished it between our looking and our claiming:
+        if (getDoneFile(unit).exists()) {
+            lease.release();
+            return;
+        }
+        ScheduledFuture<?> renewal = lease.startRenewing(heartbeat);
+        try {
+            List<File> files = new ArrayList<>();
+            Path unitFile = new File(coordinationDir, UNITS_DIR + "/" + getUnitName(unit) + ".txt").toPath();
+            for (String line : Files.readAllLines(unitFile, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    files.add(new File(root, line.replace('/', File.separatorChar)));
+                }
+            }
+
+            List<String> failedFiles = new ArrayList<>();
+            long startTime = System.currentTimeMillis();
+            BatchResult result = engine.runBatch(files, new ConversionListener() {
+                @Override
+                public void fileCompleted(File srcFile, File targetFile, ConversionEngine.OperationOutcome outcome,
+                                          long timeSpent) {
+                    if (outcome == ConversionEngine.OperationOutcome.InternalError) {
+                        synchronized (failedFiles) {
+                            failedFiles.add(srcFile.getPath());
+                        }
+                    }
+                    if (listener != null) {
+                        listener.fileCompleted(srcFile, targetFile, outcome, timeSpent);
+                    }
+                }
+
+                @Override
+                public void commitFailed(File srcFile, File targetFile) {
+                    synchronized (failedFiles) {
+                        failedFiles.add(srcFile.getPath());
+                    }
+                    if (listener != null) {
+                        listener.commitFailed(srcFile, targetFile);
+                    }
+                }
+            }, () -> isCanceled.getAsBoolean() || lease.isLost());
+            if (result.wasCanceled() || lease.isLost()) {
+                // Canceled, or taken over by somebody else, who will finish the unit and record it:
+                return;
+            }
+
+            Properties record = new Properties();
+            record.setProperty("worker", workerId);
+            record.setProperty("files", Integer.toString(files.size()));
+            record.setProperty("processed", Integer.toString(result.getProcessedCount()));
+            record.setProperty("converted", Integer.toString(result.getConvertedCount()));
+            record.setProperty("skipped", Integer.toString(result.getSkippedCount()));
+            record.setProperty("problems", Integer.toString(result.getProblemCount()));
+            record.setProperty("totalTimeSpent", Long.toString(result.getTotalTimeSpent()));
+            record.setProperty("bytesRead", Long.toString(result.getMetrics().getBytesRead()));
+            record.setProperty("bytesWritten", Long.toString(result.getMetrics().getBytesWritten()));
+            record.setProperty("started", Long.toString(startTime));
+            record.setProperty("finished", Long.toString(System.currentTimeMillis()));
+            for (int i = 0; i < failedFiles.size(); i++) {
+                record.setProperty("failed." + i, failedFiles.get(i));
+            }
+            try (ByteArrayOutputStream outStream = new ByteArrayOutputStream()) {
+                record.store(outStream, "Work unit " + unit);
+                writeAtomically(getDoneFile(unit).toPath(), outStream.toByteArray());
+            }
+        }
+        finally {
+            renewal.cancel(false);
+            lease.release();
+        }
+    }
+
+    /**
+     * How long to wait between looks at the coordination directory, while waiting on other workers.
+     */
+    private long getPollMillis() {
+        return Math.min(MAX_POLL_MILLIS, leaseMillis / 4);
+    }
+
+    private File getDoneFile(int unit) {
+        return new File(coordinationDir, DONE_DIR + "/" + getUnitName(unit) + ".properties");
+    }
+
+    static String getUnitName(int unit) {
+        return String.format("unit-%06d", unit);
+    }
+
+    /**
+     * Writes to a temporary file and renames it into place, so that readers never see part of it.
+     */
+    private void writeAtomically(Path path, byte[] data) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Files.write(tempPath, data);
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Properties readProperties(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream inStream = Files.newInputStream(path)) {
+            properties.load(inStream);
+        }
+        return properties;
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static String getDefaultWorkerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException uhe) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * One worker's hold on one unit, or on the job of planning the batch. The lease file holds a
+     * token unique to this claim, so that a worker taking over an expired lease can tell whether
+     * it was renewed in the meantime.
+     */
+    private final class Lease {
+        private final Path path;
+        private final String token = UUID.randomUUID().toString();
+        private volatile boolean lost;
+
+        private Lease(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Creates the lease file, which fails if it already exists.
+         */
+        private boolean create() throws IOException {
+            try {
+                Files.write(path, (workerId + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return true;
+            }
+            catch (FileAlreadyExistsException faee) {
+                return false;
+            }
+        }
+
+        /**
+         * Removes the existing lease file if it has expired. Only one of several workers trying this at
+         * once can succeed, since only one of them can rename the file out of the way.
+         */
+        private boolean takeOverIfExpired() throws IOException {
+            Path stalePath = path.resolveSibling(path.getFileName() + "." + token + ".stale");
+            try {
+                if (!isExpired(path)) {
+                    return false;
+                }
+                List<String> owner = Files.readAllLines(path, StandardCharsets.UTF_8);
+                Files.move(path, stalePath, StandardCopyOption.ATOMIC_MOVE);
+                if (!isExpired(stalePath) || !owner.equals(Files.readAllLines(stalePath, StandardCharsets.UTF_8))) {
+                    // It was renewed, or replaced, between our looking and our moving it; put it back,
+                    // unless its owner has already made a new one:
+                    Files.move(stalePath, path);
+                    return false;
+                }
+                logger.log(Level.WARNING, "Worker {0} is taking over {1} from {2}, whose lease expired.",
+                           new Object[]{workerId, path.getFileName(), owner.isEmpty() ? "?" : owner.get(0)});
+                Files.delete(stalePath);
+                return true;
+            }
+            catch (NoSuchFileException | FileAlreadyExistsException e) {
+                // Somebody else finished with it, or took it over, first.
+                Files.deleteIfExists(stalePath);
+                return false;
+            }
+        }
+
+        private boolean isExpired(Path leasePath) throws IOException {
+            return Files.getLastModifiedTime(leasePath).toMillis() < System.currentTimeMillis() - leaseMillis;
+        }
+
+        /**
+         * Starts renewing the lease in the background, on the given executor, until the returned
+         * future is canceled.
+         */
+        private ScheduledFuture<?> startRenewing(ScheduledExecutorService heartbeat) {
+            long renewMillis = leaseMillis / 4;
+            return heartbeat.scheduleAtFixedRate(this::renew, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Shows that we're still working, as long as the lease file is still ours. If somebody else
+         * has taken it over (as they will if we were too slow to renew it, say during a long pause),
+         * the lease is lost, and is never renewed again. Invoked periodically from the heartbeat thread.
+         */
+        private void renew() {
+            if (lost) {
+                return;
+            }
+            try {
+                List<String> owner = Files.readAllLines(path, StandardCharsets.UTF_8);
+                if (owner.size() < 2 || !token.equals(owner.get(1))) {
+                    markLost(owner.isEmpty() ? "?" : owner.get(0));
+                    return;
+                }
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            catch (NoSuchFileException nsfe) {
+                // Being taken over right now:
+                markLost("another worker");
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to renew lease " + path + "; another worker may take it over.",
+                           ioe);
+            }
+        }
+
+        private void markLost(String newOwner) {
+            lost = true;
+            logger.log(Level.WARNING, "Worker {0} lost {1} to {2}, and is giving up on it.",
+                       new Object[]{workerId, path.getFileName(), newOwner});
+        }
+
+        /**
+         * Whether somebody else has taken this lease over since we claimed it, as found by renew().
+         */
+        private boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * Removes the lease file, if it's still ours.
+         */
+        private void release() {
+            try {
+                List<String> owner = Files.readAllLines(path, StandardCharsets.UTF_8);
+                if (owner.size() > 1 && token.equals(owner.get(1))) {
+                    Files.delete(path);
+                }
+            }
+            catch (NoSuchFileException ignored) {
+                // Already taken over by somebody else.
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to release lease " + path, ioe);
+            }
+        }
+    }
+}
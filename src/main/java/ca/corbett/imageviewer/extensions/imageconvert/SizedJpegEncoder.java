@@ -0,0 +1,494 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A jpeg encoder that picks the quality for each image so that its file comes as close as it
+ * can to a target size without going over (see ConversionSettings.getJpegTargetBytes()). With a
+ * fixed quality, the size of a jpeg file depends heavily on how much detail is in the image, so
+ * a batch of outputs can vary by ten times or more; with a target, they don't.
+ * <p>
+ * There's no way to know what size a quality will give without encoding at that quality, so
+ * this searches for the right quality with trial encodes in memory. Each round encodes the same
+ * (already flattened) image at a few qualities at once, one per thread, and narrows the range
+ * down to the qualities between the best one that fit and the lowest one that didn't, until that
+ * range is within QUALITY_TOLERANCE. The best trial's output is kept as the result, so nothing is
+ * encoded twice. The quality from the settings is the highest that will be used, and images that
+ * don't fit even at MIN_QUALITY are written at that quality, reusing the trial at MIN_QUALITY if
+ * the search got that far.
+ * </p>
+ * <p>
+ * Images in a batch tend to be alike, so each image's size curve (the bytes per pixel each
+ * trial gave, by quality) is kept for the rest of the batch. The first round for a new image
+ * tries just around the quality at which the last image hit the target. If that misses, the
+ * next round tries around the quality predicted by whichever cached curve is closest to what
+ * this image has given so far, scaled to fit. Once there are trials either side of the target,
+ * the rest is read off the image's own curve. For a batch of similar images, this usually
+ * settles each image in one or two rounds, instead of the four or more that searching from
+ * scratch takes.
+ * </p>
+ * <p>
+ * A SizedJpegEncoder is thread safe, and belongs to a CodecPool, which closes it at the end of
+ * the batch. Its threads run at the lowest priority if the batch's own threads do. Images too big
+ * to be decoded in one piece (see StreamingConverter) are written at the fixed quality instead.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class SizedJpegEncoder implements AutoCloseable {
+
+    /**
+     * The lowest quality we'll go down to looking for a small enough file.
+     */
+    public static final float MIN_QUALITY = 0.05f;
+
+    /**
+     * The search stops once the best quality that fits is known to within this much.
+     */
+    private static final float QUALITY_TOLERANCE = 0.01f;
+
+    /**
+     * How many trial encodes are done at once in each round.
+     */
+    private static final int TRIALS_PER_ROUND = 3;
+
+    /**
+     * A backstop; the search converges well before this.
+     */
+    private static final int MAX_ROUNDS = 8;
+
+    /**
+     * How many images' size curves are kept for predicting the next one.
+     */
+    private static final int MAX_CACHED_CURVES = 32;
+
+    private final ConversionEngine engine;
+    private final CodecPool codecs;
+    private final ExecutorService executor;
+    private final Queue<ImageWriter> writers = new ConcurrentLinkedQueue<>();
+    private final Deque<SizeCurve> curves = new ArrayDeque<>();
+    private final LongAdder imageCount = new LongAdder();
+    private final LongAdder trialCount = new LongAdder();
+
+    /**
+     * One trial encode, and what it came to.
+     */
+    private static final class Trial {
+        final float quality;
+        OutputBuffer encoded;
+
+        Trial(float quality) {
+            this.quality = quality;
+        }
+    }
+
+    /**
+     * The bytes per pixel that one image came to at each quality tried. Size grows with quality,
+     * so the curve can be read both ways, by linear interpolation between the qualities tried.
+     */
+    private static final class SizeCurve {
+        final TreeMap<Float, Double> bytesPerPixel = new TreeMap<>();
+
+        double getBytesPerPixel(float quality) {
+            Map.Entry<Float, Double> below = bytesPerPixel.floorEntry(quality);
+            Map.Entry<Float, Double> above = bytesPerPixel.ceilingEntry(quality);
+            if (below == null || above == null || below.getKey().equals(above.getKey())) {
+                return (below != null ? below : above).getValue();
+            }
+            double fraction = (quality - below.getKey()) / (above.getKey() - below.getKey());
+            return below.getValue() + fraction * (above.getValue() - below.getValue());
+        }
+
+        /**
+         * Reports whether every quality tried gave much the same size. That happens with tiny images,
+         * which are mostly headers, and means there's no point trying lower qualities.
+         */
+        boolean isFlat() {
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (double value : bytesPerPixel.values()) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            return bytesPerPixel.size() > 1 && max < min * 1.01;
+        }
+
+        /**
+         * Returns the quality at which this curve reaches the given size, or NaN if that's outside the
+         * range of qualities tried, as a straight line beyond them would be a poor guess.
+         */
+        float getQuality(double targetBytesPerPixel) {
+            Map.Entry<Float, Double> below = null;
+            for (Map.Entry<Float, Double> entry : bytesPerPixel.entrySet()) {
+                if (entry.getValue() > targetBytesPerPixel) {
+                    if (below == null) {
+                        return Float.NaN;
+                    }
+                    double fraction = (targetBytesPerPixel - below.getValue()) / (entry.getValue() - below.getValue());
+                    return below.getKey() + (float)fraction * (entry.getKey() - below.getKey());
+                }
+                below = entry;
+            }
+            return Float.NaN;
+        }
+    }
+
+    /**
+     * Creates a SizedJpegEncoder.
+     *
+     * @param engine  Supplies the target size, the quality limit and jpeg writers.
+     * @param codecs  The pool this encoder belongs to, which supplies buffers for the trials.
+     * @param threads The number of threads to run each round's trials on. With 1, everything is
+     *                done on the calling thread.
+     */
+    public SizedJpegEncoder(ConversionEngine engine, CodecPool codecs, int threads) {
+        this.engine = engine;
+        this.codecs = codecs;
+        // The calling thread always runs one of the trials itself:
+        int extraThreads = Math.min(threads, TRIALS_PER_ROUND) - 1;
+        if (extraThreads > 0) {
+            boolean lowPriority = engine.getSettings().isLowPriority();
+            executor = Executors.newFixedThreadPool(extraThreads, runnable -> {
+                Thread thread = new Thread(runnable, "ImageConverter-jpeg");
+                thread.setDaemon(true);
+                if (lowPriority) {
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                }
+                return thread;
+            });
+        }
+        else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Encodes the given image as a jpeg file in memory, at the highest quality that keeps it within
+     * the target size.
+     *
+     * @param image   An RGB image, already scaled and flattened.
+     * @param encoded Receives the contents of the jpeg file.
+     * @throws IOException If encoding fails.
+     */
+    public void encode(BufferedImage image, OutputBuffer encoded) throws IOException {
+        ConversionSettings settings = engine.getSettings();
+        long pixels = (long)image.getWidth() * image.getHeight();
+        long targetBytes = settings.getJpegTargetBytes(image.getWidth(), image.getHeight());
+        double targetBytesPerPixel = (double)targetBytes / pixels;
+        float maxQuality = Math.max(MIN_QUALITY, settings.getJpegQuality());
+
+        SizeCurve curve = new SizeCurve();
+        Trial best = null;
+        Trial smallest = null; // kept in case nothing fits
+        float lowestTooBig = Float.NaN;
+        List<Float> qualities = predictQualities(targetBytesPerPixel, MIN_QUALITY, maxQuality);
+        try {
+            for (int round = 0; round < MAX_ROUNDS && !qualities.isEmpty(); round++) {
+                for (Trial trial : runTrials(image, qualities)) {
+                    long size = trial.encoded.size();
+                    curve.bytesPerPixel.put(trial.quality, (double)size / pixels);
+                    Trial unused = trial;
+                    if (size <= targetBytes) {
+                        if (best == null || trial.quality > best.quality) {
+                            unused = best;
+                            best = trial;
+                        }
+                    }
+                    else {
+                        if (Float.isNaN(lowestTooBig) || trial.quality < lowestTooBig) {
+                            lowestTooBig = trial.quality;
+                        }
+                        if (trial.quality <= MIN_QUALITY && best == null) {
+                            unused = smallest;
+                            smallest = trial;
+                        }
+                    }
+                    if (unused != null) {
+                        codecs.releaseBuffer(unused.encoded);
+                    }
+                }
+
+                // What's left to search is between the best that fit and the lowest that didn't:
+                float low = best == null ? MIN_QUALITY : best.quality;
+                float high = Float.isNaN(lowestTooBig) ? maxQuality : lowestTooBig;
+                if ((best != null && best.quality >= maxQuality) || high - low <= QUALITY_TOLERANCE
+                    || (best == null && (lowestTooBig <= MIN_QUALITY || curve.isFlat()))) {
+                    break;
+                }
+                if (best != null && !Float.isNaN(lowestTooBig)) {
+                    // The target is somewhere between two qualities we've tried, so read it off this image's
+                    // own curve. That's only a straight line between them, so spread out more when they're far apart:
+                    float spacing = Math.max(QUALITY_TOLERANCE / 2, (high - low) / 8);
+                    qualities = around(curve.getQuality(targetBytesPerPixel), spacing, low, high, curve);
+                }
+                else {
+                    qualities = predictQualities(curve, targetBytesPerPixel, low, high);
+                }
+                if (qualities.isEmpty()) {
+                    qualities = spreadQualities(low, best == null, high, Float.isNaN(lowestTooBig), curve);
+                }
+            }
+            if (best == null) {
+                // Not even the lowest quality fits; that's as small as it gets:
+                best = smallest != null ? smallest : runTrials(image, List.of(MIN_QUALITY)).get(0);
+                smallest = null;
+            }
+            best.encoded.writeTo(encoded);
+        }
+        finally {
+            if (best != null) {
+                codecs.releaseBuffer(best.encoded);
+            }
+            if (smallest != null) {
+                codecs.releaseBuffer(smallest.encoded);
+            }
+        }
+        imageCount.increment();
+        cache(curve);
+    }
+
+    /**
+     * Returns the number of images encoded so far.
+     */
+    public long getImageCount() {
+        return imageCount.sum();
+    }
+
+    /**
+     * Returns the number of trial encodes done so far, for all images.
+     */
+    public long getTrialCount() {
+        return trialCount.sum();
+    }
+
+    /**
+     * Stops this encoder's threads and disposes its writers. Any encode() still in progress will fail.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        ImageWriter writer;
+        while ((writer = writers.poll()) != null) {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Returns the qualities for an image's first round: the quality at which the last image's curve
+     * hits the target, and one either side of it (neighbouring files are often much alike). Without
+     * any cached curves, or if the last one never reached the target, the whole range from low to high
+     * is spread out instead.
+     */
+    private List<Float> predictQualities(double targetBytesPerPixel, float low, float high) {
+        SizeCurve last;
+        synchronized (curves) {
+            last = curves.peekFirst();
+        }
+        List<Float> qualities = last == null
+            ? List.of()
+            : around(last.getQuality(targetBytesPerPixel), QUALITY_TOLERANCE, low, high, null);
+        return qualities.isEmpty() ? spreadQualities(low, true, high, true, null) : qualities;
+    }
+
+    /**
+     * Returns the qualities for an image's later rounds, while everything tried so far has been on the
+     * same side of the target: around the quality predicted by the cached curve that is closest to what
+     * this image has given so far, scaled to fit this image. Returns an empty list if there are no
+     * cached curves, or they have nothing new to suggest.
+     */
+    private List<Float> predictQualities(SizeCurve curve, double targetBytesPerPixel, float low, float high) {
+        SizeCurve closest = null;
+        double closestLogScale = Double.MAX_VALUE;
+        synchronized (curves) {
+            for (SizeCurve cached : curves) {
+                double logScale = 0;
+                for (Map.Entry<Float, Double> entry : curve.bytesPerPixel.entrySet()) {
+                    logScale += Math.log(entry.getValue() / cached.getBytesPerPixel(entry.getKey()));
+                }
+                logScale /= curve.bytesPerPixel.size();
+                if (Math.abs(logScale) < Math.abs(closestLogScale)) {
+                    closest = cached;
+                    closestLogScale = logScale;
+                }
+            }
+        }
+        double closestScale = Math.exp(closestLogScale);
+        if (closest == null) {
+            return List.of();
+        }
+        return around(closest.getQuality(targetBytesPerPixel / closestScale), QUALITY_TOLERANCE, low, high, curve);
+    }
+
+    /**
+     * Returns the given quality and one either side of it, the given spacing apart, kept within low to
+     * high, and leaving out any already on the given curve. Returns an empty list if the quality is NaN.
+     */
+    private static List<Float> around(float quality, float spacing, float low, float high, SizeCurve curve) {
+        if (Float.isNaN(quality)) {
+            return List.of();
+        }
+        float center = Math.max(low + spacing, Math.min(high - spacing, quality));
+        List<Float> qualities = new ArrayList<>();
+        for (int i = -1; i <= 1; i++) {
+            float candidate = round(Math.max(low, Math.min(high, center + i * spacing)));
+            if (!qualities.contains(candidate) && (curve == null || !curve.bytesPerPixel.containsKey(candidate))) {
+                qualities.add(candidate);
+            }
+        }
+        return qualities;
+    }
+
+    /**
+     * Returns qualities spread evenly from low to high, including either end only if asked to,
+     * and leaving out any already on the given curve.
+     */
+    private static List<Float> spreadQualities(float low, boolean includeLow, float high, boolean includeHigh,
+                                               SizeCurve curve) {
+        int gaps = TRIALS_PER_ROUND + 1 - (includeLow ? 1 : 0) - (includeHigh ? 1 : 0);
+        List<Float> qualities = new ArrayList<>();
+        for (int i = 0; i < TRIALS_PER_ROUND; i++) {
+            float quality = round(low + (high - low) * (i + (includeLow ? 0 : 1)) / gaps);
+            if (!qualities.contains(quality) && (curve == null || !curve.bytesPerPixel.containsKey(quality))) {
+                qualities.add(quality);
+            }
+        }
+        return qualities;
+    }
+
+    private static float round(float quality) {
+        return Math.round(quality * 1000) / 1000f;
+    }
+
+    /**
+     * Encodes the given image at each of the given qualities, in parallel where we can. If any of
+     * them fails, the rest are canceled, and the buffers of those that finished are given back.
+     */
+    private List<Trial> runTrials(BufferedImage image, List<Float> qualities) throws IOException {
+        List<Trial> trials = new ArrayList<>();
+        List<Future<Trial>> futures = new ArrayList<>();
+        boolean succeeded = false;
+        for (int i = 0; i < qualities.size(); i++) {
+            float quality = qualities.get(i);
+            if (executor == null || i == 0) {
+                continue;
+            }
+            futures.add(executor.submit(() -> encodeTrial(image, quality)));
+        }
+        try {
+            trials.add(encodeTrial(image, qualities.get(0)));
+            if (executor == null) {
+                for (int i = 1; i < qualities.size(); i++) {
+                    trials.add(encodeTrial(image, qualities.get(i)));
+                }
+            }
+            for (Future<Trial> future : futures) {
+                trials.add(future.get());
+            }
+            succeeded = true;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Jpeg encoding was interrupted.");
+        }
+        catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ee.getCause();
+            }
+            if (ee.getCause() instanceof Error) {
+                throw (Error)ee.getCause();
+            }
+            throw new IOException("Jpeg encoding failed: " + ee.getCause().getMessage(), ee.getCause());
+        }
+        finally {
+            if (!succeeded) {
+                releaseTrials(trials, futures);
+            }
+        }
+        trialCount.add(trials.size());
+        return trials;
+    }
+
+    /**
+     * Cancels the given trials that are still running, and gives back the buffers of those that
+     * finished, whether or not they were collected into the given list yet. A trial that was
+     * already running when canceled may still finish later; its buffer is simply not pooled.
+     */
+    private void releaseTrials(List<Trial> trials, List<Future<Trial>> futures) {
+        for (Future<Trial> future : futures) {
+            future.cancel(true);
+        }
+        for (Trial trial : trials) {
+            codecs.releaseBuffer(trial.encoded);
+        }
+        for (Future<Trial> future : futures) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    Trial trial = future.get();
+                    if (!trials.contains(trial)) {
+                        codecs.releaseBuffer(trial.encoded);
+                    }
+                }
+                catch (ExecutionException | InterruptedException e) {
+                    // It failed too, and gave its own buffer back.
+                }
+            }
+        }
+    }
+
+    private Trial encodeTrial(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = writers.poll();
+        if (writer == null) {
+            writer = engine.createImageWriter();
+        }
+        Trial trial = new Trial(quality);
+        trial.encoded = codecs.acquireBuffer();
+        try (ImageOutputStream imageOutStream = new MemoryCacheImageOutputStream(trial.encoded)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(imageOutStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        catch (IOException | RuntimeException e) {
+            codecs.releaseBuffer(trial.encoded);
+            throw e;
+        }
+        finally {
+            writer.reset();
+            writers.offer(writer);
+        }
+        return trial;
+    }
+
+    private void cache(SizeCurve curve) {
+        synchronized (curves) {
+            curves.addFirst(curve);
+            if (curves.size() > MAX_CACHED_CURVES) {
+                curves.removeLast();
+            }
+        }
+    }
+}
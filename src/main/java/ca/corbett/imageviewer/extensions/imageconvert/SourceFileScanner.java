@@ -0,0 +1,215 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks one or more directories on a background thread, and feeds each matching source
+ * file to the conversion workers as soon as it is found. This means conversion can start
+ * within moments of the batch starting, instead of waiting for the whole tree to be scanned
+ * up front, and only a small bounded number of discovered files is ever held in memory.
+ * If the workers fall behind, the scan simply waits for them.
+ * <p>
+ * Since the total number of files isn't known until the scan finishes, an optional
+ * callback is notified of the running total as it grows, so that progress can be shown
+ * against it.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-06
+ */
+public class SourceFileScanner implements FileSource {
+
+    private static final Logger logger = Logger.getLogger(SourceFileScanner.class.getName());
+
+    /**
+     * How many discovered files may be waiting for a worker before the scan pauses.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * How often (in files found) the running total is reported while the scan is in progress.
+     */
+    private static final int REPORT_INTERVAL = 64;
+
+    private static final File END = new File("");
+
+    private final List<File> roots;
+    private final boolean recursive;
+    private final ConversionSettings settings;
+    private final BlockingQueue<File> queue;
+    private final AtomicInteger discoveredCount = new AtomicInteger();
+    private volatile IntConsumer totalListener;
+    private volatile boolean isComplete;
+    private volatile boolean isCanceled;
+    private Thread scanThread;
+
+    /**
+     * Creates a scanner over the given roots. Directories are scanned for files that match
+     * the given settings; plain files are passed through as they are.
+     *
+     * @param roots     Directories (or individual files) to scan.
+     * @param recursive Whether to descend into subdirectories.
+     * @param settings  Determines which file extensions are of interest.
+     */
+    public SourceFileScanner(List<File> roots, boolean recursive, ConversionSettings settings) {
+        this(roots, recursive, settings, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public SourceFileScanner(List<File> roots, boolean recursive, ConversionSettings settings, int queueCapacity) {
+        this.roots = List.copyOf(roots);
+        this.recursive = recursive;
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Sets a callback to be notified of the running total of discovered files. It is
+     * invoked periodically during the scan, and once more with the final total when the
+     * scan completes. It will be invoked on the scan thread.
+     */
+    public void setTotalListener(IntConsumer totalListener) {
+        this.totalListener = totalListener;
+    }
+
+    /**
+     * Starts scanning on a background thread. Does nothing if the scan was already started.
+     */
+    public synchronized void start() {
+        if (scanThread != null) {
+            return;
+        }
+        scanThread = new Thread(this::scan, "SourceFileScanner");
+        scanThread.setDaemon(true);
+        scanThread.start();
+    }
+
+    /**
+     * The number of files discovered so far.
+     */
+    public int getDiscoveredCount() {
+        return discoveredCount.get();
+    }
+
+    /**
+     * Reports whether the scan has finished, in which case getDiscoveredCount() is the final total.
+     */
+    public boolean isComplete() {
+        return isComplete;
+    }
+
+    @Override
+    public File next() throws InterruptedException {
+        start();
+        File file = queue.take();
+        if (file == END) {
+            // Put it back so that any other workers waiting on us also see the end:
+            queue.put(END);
+            return null;
+        }
+        return file;
+    }
+
+    @Override
+    public void cancel() {
+        isCanceled = true;
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void scan() {
+        try {
+            for (File root : roots) {
+                if (isCanceled) {
+                    break;
+                }
+                if (root.isDirectory()) {
+                    scanDirectory(root.toPath());
+                }
+                else {
+                    offer(root.toPath());
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            isComplete = true;
+            notifyTotal();
+            try {
+                queue.put(END);
+            }
+            catch (InterruptedException ie) {
+                queue.clear();
+                queue.offer(END);
+            }
+        }
+    }
+
+    private void scanDirectory(Path dir) throws InterruptedException {
+        try {
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1,
+                               new SimpleFileVisitor<>() {
+                                   @Override
+                                   public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                                       if (isCanceled) {
+                                           return FileVisitResult.TERMINATE;
+                                       }
+                                       if (attrs.isRegularFile() && settings.isSourceFile(file.toFile())) {
+                                           try {
+                                               offer(file);
+                                           }
+                                           catch (InterruptedException ie) {
+                                               Thread.currentThread().interrupt();
+                                               return FileVisitResult.TERMINATE;
+                                           }
+                                       }
+                                       return FileVisitResult.CONTINUE;
+                                   }
+
+                                   @Override
+                                   public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                                       // An unreadable subdirectory shouldn't stop the whole batch:
+                                       logger.log(Level.WARNING, "Unable to scan {0}: {1}",
+                                                  new Object[]{file, exc.getMessage()});
+                                       return FileVisitResult.CONTINUE;
+                                   }
+                               });
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Unable to scan " + dir + ": " + ioe.getMessage(), ioe);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private void offer(Path file) throws InterruptedException {
+        queue.put(file.toFile());
+        if (discoveredCount.incrementAndGet() % REPORT_INTERVAL == 0) {
+            notifyTotal();
+        }
+    }
+
+    private void notifyTotal() {
+        IntConsumer listener = totalListener;
+        if (listener != null) {
+            listener.accept(discoveredCount.get());
+        }
+    }
+}
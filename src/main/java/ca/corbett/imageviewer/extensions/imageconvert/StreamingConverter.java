@@ -0,0 +1,342 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * Converts a single very large image without ever holding the whole decoded raster in memory.
+ * The source is decoded one horizontal strip at a time, using ImageReadParam.setSourceRegion(),
+ * and the ImageWriter pulls rows out of those strips as it encodes them. Peak memory is a
+ * couple of strips, instead of the full image (plus a flattened copy of it, for jpeg output).
+ * <p>
+ * This is slower than a normal conversion, because the stock ImageIO readers have to decode
+ * the file from the top to reach each strip (the PNG reader in particular decodes every row
+ * of the file for each strip). Strips are therefore made as tall as the memory allowance
+ * permits, and ConversionEngine only streams images whose estimated footprint is over
+ * the streaming threshold in ConversionSettings.
+ * </p>
+ * <p>
+ * As with ConversionEngine.encodeImage(), images with an alpha channel are flattened onto
+ * the matte color from ConversionSettings for jpeg output.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-08
+ */
+public class StreamingConverter {
+
+    /**
+     * The smallest strip we will bother with, in bytes of decoded pixels.
+     */
+    public static final long MIN_STRIP_BYTES = 8L * 1024 * 1024;
+
+    private final ConversionEngine engine;
+    private final long stripBytes;
+
+    /**
+     * Creates a StreamingConverter that writes using the given engine's settings. Strips are
+     * sized at a quarter of the streaming threshold, so that a streamed image never needs more
+     * memory than one that was only just small enough to convert normally.
+     */
+    public StreamingConverter(ConversionEngine engine) {
+        this.engine = engine;
+        this.stripBytes = getStripBytes(engine.getSettings());
+    }
+
+    /**
+     * Returns the size in bytes of the decoded pixels in each strip for the given settings.
+     */
+    public static long getStripBytes(ConversionSettings settings) {
+        return Math.max(MIN_STRIP_BYTES, settings.getStreamingThreshold() / 4);
+    }
+
+    /**
+     * Returns roughly how much memory a streamed conversion needs at most: the strip as decoded
+     * by the reader, plus our own copy of it as packed pixels.
+     */
+    public static long getFootprint(ConversionSettings settings) {
+        return getStripBytes(settings) * 2;
+    }
+
+    /**
+     * Converts the given source file to the given target file, strip by strip. The target file
+     * is written directly; if conversion fails partway through, the partial file is removed.
+     *
+     * @param srcFile    The source image file.
+     * @param targetFile The file to write.
+     * @throws IOException If the source can't be decoded or the target can't be written.
+     */
+    public void convert(File srcFile, File targetFile) throws IOException {
+        try (ImageInputStream inStream = ImageIO.createImageInputStream(srcFile)) {
+            if (inStream == null) {
+                throw new IOException("Unable to open " + srcFile.getAbsolutePath());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(inStream);
+            if (!readers.hasNext()) {
+                throw new IOException("No ImageReader was able to decode this file.");
+            }
+            ImageReader reader = readers.next();
+            ImageWriter writer = engine.createImageWriter();
+            try {
+                // Not seek-forward-only, as each strip is read from the start of the image:
+                reader.setInput(inStream, false, true);
+                StripedImage image = new StripedImage(reader, engine.getSettings(), stripBytes);
+                ImageWriteParam param = engine.createWriteParam(writer);
+                try (ImageOutputStream outStream = ImageIO.createImageOutputStream(targetFile)) {
+                    if (outStream == null) {
+                        throw new IOException("Unable to write " + targetFile.getAbsolutePath());
+                    }
+                    writer.setOutput(outStream);
+                    writer.write(null, new IIOImage(image, null, null), param);
+                }
+                catch (UncheckedIOException uioe) {
+                    // Strips are loaded from inside the writer, which only lets unchecked exceptions through:
+                    throw uioe.getCause();
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                targetFile.delete();
+                throw e;
+            }
+            finally {
+                writer.dispose();
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * A RenderedImage over the source file that decodes one strip at a time, as the ImageWriter
+     * asks for its rows. It presents a single tile covering the whole image, backed by a
+     * DataBuffer that loads strips on demand (this is what the jpeg writer reads from), and it
+     * answers getData(Rectangle) by copying out of the current strip (this is what the png
+     * writer uses). Pixels are always presented as packed RGB, or ARGB for png output of an
+     * image with alpha. Like the writers that use it, it is not thread safe.
+     */
+    private static final class StripedImage implements RenderedImage {
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private final int stripHeight;
+        private final boolean flattenAlpha;
+        private final int matteRgb;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        private final ImageReadParam readParam;
+        private final int[] stripPixels;
+        private int stripY = -1;
+        private BufferedImage band;
+        private Raster tile;
+
+        StripedImage(ImageReader reader, ConversionSettings settings, long stripBytes) throws IOException {
+            this.reader = reader;
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+            if ((long)width * height > Integer.MAX_VALUE) {
+                throw new IOException("Image is too large to convert: " + width + "x" + height);
+            }
+            this.stripHeight = (int)Math.max(1, Math.min(height, stripBytes / 4 / Math.max(1, width)));
+            boolean hasAlpha = reader.getImageTypes(0).next().getColorModel().hasAlpha();
+            boolean keepAlpha = hasAlpha && settings.getOutputFormat() != ConversionSettings.OutputFormat.JPEG;
+            this.flattenAlpha = hasAlpha && !keepAlpha;
+            this.matteRgb = settings.getMatteColor().getRGB() & 0xffffff;
+            this.colorModel = keepAlpha
+                ? ColorModel.getRGBdefault()
+                : new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+            this.sampleModel = colorModel.createCompatibleSampleModel(width, height);
+            this.readParam = reader.getDefaultReadParam();
+            this.stripPixels = new int[width * stripHeight];
+        }
+
+        /**
+         * Makes sure the strip containing the given row is the one currently loaded.
+         */
+        private void loadStripFor(int y) {
+            int newStripY = (y / stripHeight) * stripHeight;
+            if (newStripY == stripY) {
+                return;
+            }
+            int rows = Math.min(stripHeight, height - newStripY);
+            readParam.setSourceRegion(new Rectangle(0, newStripY, width, rows));
+            readParam.setDestination(band);
+            try {
+                band = reader.read(0, readParam);
+            }
+            catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            band.getRGB(0, 0, width, rows, stripPixels, 0, width);
+            if (flattenAlpha) {
+                RgbConverter.flatten(stripPixels, 0, width * rows, matteRgb);
+            }
+            stripY = newStripY;
+        }
+
+        private int getPixel(int x, int y) {
+            loadStripFor(y);
+            return stripPixels[(y - stripY) * width + x];
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tile == null) {
+                tile = Raster.createRaster(sampleModel, new StripDataBuffer(), new Point(0, 0));
+            }
+            return tile;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(rect.width, rect.height)
+                                              .createWritableTranslatedChild(rect.x, rect.y);
+            copyData(raster);
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            }
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            int[] row = new int[bounds.width];
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                loadStripFor(y);
+                System.arraycopy(stripPixels, (y - stripY) * width + bounds.x, row, 0, bounds.width);
+                raster.setDataElements(bounds.x, y, bounds.width, 1, row);
+            }
+            return raster;
+        }
+
+        /**
+         * Presents the whole image as one bank of packed pixels, loading strips as they are touched.
+         */
+        private final class StripDataBuffer extends DataBuffer {
+            StripDataBuffer() {
+                super(DataBuffer.TYPE_INT, width * height);
+            }
+
+            @Override
+            public int getElem(int bank, int i) {
+                return getPixel(i % width, i / width);
+            }
+
+            @Override
+            public void setElem(int bank, int i, int val) {
+                throw new UnsupportedOperationException("StripedImage is read only.");
+            }
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return height;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
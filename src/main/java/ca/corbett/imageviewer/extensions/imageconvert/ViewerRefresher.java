@@ -0,0 +1,107 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import ca.corbett.imageviewer.ui.MainWindow;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the MainWindow up to date as a batch conversion works through its files, while doing
+ * as little to it as possible. Reloading the MainWindow re-reads and re-thumbnails the whole
+ * directory being browsed, which in a directory of tens of thousands of images can take longer
+ * than converting a handful of them did, so it is only done when the batch has actually changed
+ * something in that directory: a batch that skipped everything, or only converted files in
+ * subdirectories, leaves the view alone.
+ * <p>
+ * Files that have been moved (converted, with the original deleted) are reported to the
+ * ImageSetManager as the batch goes, once each converted file is in place, instead of from the
+ * worker threads as each one finishes. Moves are queued, and applied on the Swing event thread
+ * in chunks, with at most one chunk waiting to run at a time, so that a fast batch can't flood
+ * the event queue and the UI stays responsive throughout.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2024-01-12
+ */
+public class ViewerRefresher {
+
+    /**
+     * The most moves applied in one go on the event thread before letting it do something else.
+     */
+    private static final int MAX_MOVES_PER_CHUNK = 256;
+
+    private final File visibleDir;
+    private final boolean deleteOriginal;
+    private final Queue<File[]> moves = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean visibleDirChanged;
+
+    /**
+     * Creates a refresher for one batch.
+     *
+     * @param visibleDir     The directory currently shown in the MainWindow, or null if not known,
+     *                       in which case the MainWindow is reloaded whenever anything was converted.
+     * @param deleteOriginal Whether the batch removes its source files, so that they must be reported
+     *                       to the ImageSetManager as having moved.
+     */
+    public ViewerRefresher(File visibleDir, boolean deleteOriginal) {
+        this.visibleDir = visibleDir == null ? null : visibleDir.getAbsoluteFile();
+        this.deleteOriginal = deleteOriginal;
+    }
+
+    /**
+     * Notes that one file in the batch has been converted and its target put in place. This is
+     * the batch's fileCommitted() notification rather than its Success, since with files synced
+     * in groups a target can still fail to be put in place after its Success was reported, leaving
+     * the source where it was. May be invoked from any thread.
+     */
+    public void fileCommitted(File srcFile, File targetFile) {
+        if (isVisible(targetFile) || (deleteOriginal && isVisible(srcFile))) {
+            visibleDirChanged = true;
+        }
+
+        // Note: if deleteOriginal is not selected, we skip this and just leave the original
+        // image in the image set. User can sort it out as needed.
+        if (deleteOriginal) {
+            moves.add(new File[]{srcFile, targetFile});
+            if (flushScheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::applyMoves);
+            }
+        }
+    }
+
+    /**
+     * Applies whatever is left once the batch is done, reloading the MainWindow if the batch changed
+     * the directory it's showing. Must be invoked on the Swing event thread.
+     */
+    public void batchCompleted() {
+        while (!moves.isEmpty()) {
+            applyChunk();
+        }
+        if (visibleDirChanged) {
+            MainWindow.getInstance().reload();
+        }
+    }
+
+    private void applyMoves() {
+        flushScheduled.set(false);
+        applyChunk();
+        if (!moves.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::applyMoves);
+        }
+    }
+
+    private void applyChunk() {
+        File[] move;
+        for (int i = 0; i < MAX_MOVES_PER_CHUNK && (move = moves.poll()) != null; i++) {
+            MainWindow.getInstance().getImageSetManager().imageMoved(move[0], move[1]);
+        }
+    }
+
+    private boolean isVisible(File file) {
+        return visibleDir == null || visibleDir.equals(file.getAbsoluteFile().getParentFile());
+    }
+}
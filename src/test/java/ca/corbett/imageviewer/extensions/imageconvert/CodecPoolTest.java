@@ -0,0 +1,49 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CodecPoolTest {
+
+    private static final ConversionEngine JPEG_ENGINE = new ConversionEngine(
+        ConversionSettings.builder().setOutputFormat(ConversionSettings.OutputFormat.JPEG).build());
+
+    @Test
+    void getRgbImage_shouldReuseOneBufferPerThread() {
+        try (CodecPool codecs = new CodecPool(JPEG_ENGINE, 1)) {
+            int[] first = getPixels(codecs.getRgbImage(200, 100));
+            int[] second = getPixels(codecs.getRgbImage(100, 100));
+            assertSame(first, second);
+
+            BufferedImage bigger = codecs.getRgbImage(300, 300);
+            assertEquals(300, bigger.getWidth());
+            assertEquals(BufferedImage.TYPE_INT_RGB, bigger.getType());
+            assertSame(getPixels(bigger), getPixels(codecs.getRgbImage(10, 10)));
+        }
+    }
+
+    @Test
+    void getRgbImage_overTheCap_shouldNotKeepTheBuffer() {
+        try (CodecPool codecs = new CodecPool(JPEG_ENGINE, 1)) {
+            int[] pooled = getPixels(codecs.getRgbImage(100, 100));
+
+            // Just over 64MB of pixels:
+            int[] huge = getPixels(codecs.getRgbImage(4100, 4100));
+            assertNotSame(pooled, huge);
+            assertNotSame(huge, getPixels(codecs.getRgbImage(4100, 4100)));
+
+            // The pooled buffer is still the small one:
+            assertSame(pooled, getPixels(codecs.getRgbImage(100, 100)));
+        }
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,132 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversionJournalTest {
+
+    private static final ConversionSettings PNG_SETTINGS = ConversionSettings.builder()
+        .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+        .build();
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void isDoneAndUnchanged_reopened_shouldRememberDoneFiles() throws IOException {
+        File journalFile = new File(tempDir, "test.journal");
+        File srcFile = new File(tempDir, "a.jpg");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.record(srcFile, ConversionJournal.State.DONE, 100, 1000);
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            assertEquals(ConversionJournal.State.DONE, journal.getState(srcFile));
+            assertTrue(journal.isDoneAndUnchanged(srcFile, 100, 1000));
+            assertFalse(journal.isDoneAndUnchanged(srcFile, 101, 1000));
+            assertFalse(journal.isDoneAndUnchanged(srcFile, 100, 1001));
+        }
+    }
+
+    @Test
+    void isDoneAndUnchanged_withDifferentOutputSettings_shouldBeFalse() throws IOException {
+        File journalFile = new File(tempDir, "test.journal");
+        File srcFile = new File(tempDir, "a.jpg");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.record(srcFile, ConversionJournal.State.DONE, 100, 1000);
+        }
+
+        ConversionSettings smallerSettings = ConversionSettings.builder()
+                                                               .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+                                                               .setMaxDimension(64)
+                                                               .build();
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, smallerSettings)) {
+            assertEquals(ConversionJournal.State.DONE, journal.getState(srcFile));
+            assertFalse(journal.isDoneAndUnchanged(srcFile, 100, 1000));
+        }
+    }
+
+    @Test
+    void isDoneAndUnchanged_withDifferentRunSettings_shouldBeTrue() throws IOException {
+        File journalFile = new File(tempDir, "test.journal");
+        File srcFile = new File(tempDir, "a.jpg");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.record(srcFile, ConversionJournal.State.DONE, 100, 1000);
+        }
+
+        // Thread count doesn't change the output, so it shouldn't invalidate the journal:
+        ConversionSettings moreThreads = ConversionSettings.builder()
+                                                           .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+                                                           .setThreadCount(4)
+                                                           .build();
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, moreThreads)) {
+            assertTrue(journal.isDoneAndUnchanged(srcFile, 100, 1000));
+        }
+    }
+
+    @Test
+    void open_withTruncatedLastLine_shouldIgnoreIt() throws IOException {
+        File journalFile = new File(tempDir, "test.journal");
+        File srcFile = new File(tempDir, "a.jpg");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.record(srcFile, ConversionJournal.State.DONE, 100, 1000);
+        }
+        Files.writeString(journalFile.toPath(), "FAIL", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            assertTrue(journal.isDoneAndUnchanged(srcFile, 100, 1000));
+        }
+    }
+
+    @Test
+    void getFailedFiles_afterRetry_shouldOnlyListStillFailedFiles() throws IOException {
+        File journalFile = new File(tempDir, "test.journal");
+        File first = new File(tempDir, "a.jpg");
+        File second = new File(tempDir, "b.jpg");
+        File third = new File(tempDir, "c.jpg");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.markPending(first, 1, 1);
+            journal.markPending(second, 2, 2);
+            journal.markPending(third, 3, 3);
+            journal.record(first, ConversionJournal.State.FAILED);
+            journal.record(second, ConversionJournal.State.FAILED);
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            assertEquals(List.of(first.getAbsoluteFile(), second.getAbsoluteFile()), journal.getFailedFiles());
+            assertEquals(List.of(third.getAbsoluteFile()), journal.getPendingFiles());
+            journal.record(first, ConversionJournal.State.DONE);
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            assertEquals(List.of(second.getAbsoluteFile()), journal.getFailedFiles());
+            // The source attributes recorded when it was planned are kept:
+            assertTrue(journal.isDoneAndUnchanged(first, 1, 1));
+            assertNull(journal.getState(new File(tempDir, "d.jpg")));
+        }
+    }
+
+    @Test
+    void close_shouldCompactToOneLinePerFile() throws IOException {
+        File journalFile = new File(tempDir, "test.journal");
+        File srcFile = new File(tempDir, "a.jpg");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.markPending(srcFile, 100, 1000);
+            journal.record(srcFile, ConversionJournal.State.FAILED);
+            journal.record(srcFile, ConversionJournal.State.DONE);
+        }
+        assertEquals(1, Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+}
@@ -0,0 +1,182 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversionPlanTest {
+
+    // One file at a time, so that a cancel stops the batch right after the file that asked for it:
+    private static final ConversionSettings PNG_SETTINGS = ConversionSettings.builder()
+        .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+        .setThreadCount(1)
+        .build();
+
+    private static final ConversionSettings OVERWRITE_SETTINGS = ConversionSettings.builder()
+        .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+        .setOverwriteIfExists(true)
+        .build();
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void create_withoutJournal_shouldClassifyByTarget() throws IOException {
+        List<File> sources = createSources(2);
+        writeImage(PNG_SETTINGS.getTargetFile(sources.get(1)), "png");
+
+        ConversionPlan plan = ConversionPlan.create(sources, PNG_SETTINGS);
+        assertEquals(ConversionPlan.Action.CONVERT, plan.getEntries().get(0).getAction());
+        assertEquals(ConversionPlan.Action.SKIP, plan.getEntries().get(1).getAction());
+        assertEquals(List.of(sources.get(0)), plan.getFilesToConvert());
+
+        plan = ConversionPlan.create(sources, OVERWRITE_SETTINGS);
+        assertEquals(ConversionPlan.Action.CONVERT, plan.getEntries().get(0).getAction());
+        assertEquals(ConversionPlan.Action.OVERWRITE, plan.getEntries().get(1).getAction());
+    }
+
+    @Test
+    void runBatch_resumedAfterCancel_shouldOnlyConvertTheRest() throws IOException {
+        List<File> sources = createSources(4);
+        File journalFile = new File(tempDir, "test.journal");
+        ConversionEngine engine = new ConversionEngine(PNG_SETTINGS);
+
+        // Cancel after the first file, leaving the rest pending:
+        AtomicBoolean canceled = new AtomicBoolean();
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            BatchResult result = engine.runBatch(engine.plan(sources, journal), journal,
+                                                 (srcFile, targetFile, outcome, timeSpent) -> canceled.set(true),
+                                                 canceled::get);
+            assertEquals(1, result.getConvertedCount());
+            assertEquals(sources.size() - 1, journal.getPendingFiles().size());
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            ConversionPlan plan = engine.plan(sources, journal);
+            assertEquals(1, plan.getUnchangedCount());
+            assertEquals(sources.size() - 1, plan.getConvertCount());
+            BatchResult result = engine.runBatch(plan, journal, null, () -> false);
+            assertEquals(sources.size() - 1, result.getConvertedCount());
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            ConversionPlan plan = engine.plan(sources, journal);
+            assertEquals(sources.size(), plan.getUnchangedCount());
+            assertTrue(plan.getFilesToConvert().isEmpty());
+        }
+    }
+
+    @Test
+    void plan_withFailedFile_shouldConvertItAgain() throws IOException {
+        List<File> sources = createSources(2);
+        File journalFile = new File(tempDir, "test.journal");
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            journal.record(sources.get(0), ConversionJournal.State.FAILED);
+            writeImage(PNG_SETTINGS.getTargetFile(sources.get(1)), "png");
+            journal.record(sources.get(1), ConversionJournal.State.DONE);
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            assertEquals(List.of(sources.get(0).getAbsoluteFile()), journal.getFailedFiles());
+            ConversionPlan plan = ConversionPlan.create(journal.getFailedFiles(), PNG_SETTINGS, journal);
+            assertEquals(1, plan.getConvertCount());
+
+            BatchResult result = new ConversionEngine(PNG_SETTINGS).runBatch(plan, journal, null, () -> false);
+            assertEquals(1, result.getConvertedCount());
+            assertTrue(journal.getFailedFiles().isEmpty());
+            assertEquals(ConversionJournal.State.DONE, journal.getState(sources.get(0)));
+        }
+    }
+
+    @Test
+    void plan_withOverwrite_shouldIgnoreJournal() throws IOException {
+        List<File> sources = createSources(2);
+        File journalFile = new File(tempDir, "test.journal");
+        ConversionEngine engine = new ConversionEngine(PNG_SETTINGS);
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            engine.runBatch(engine.plan(sources, journal), journal, null, () -> false);
+        }
+
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, OVERWRITE_SETTINGS)) {
+            ConversionPlan plan = ConversionPlan.create(sources, OVERWRITE_SETTINGS, journal);
+            assertEquals(0, plan.getUnchangedCount());
+            assertEquals(sources.size(), plan.getOverwriteCount());
+        }
+    }
+
+    @Test
+    void runBatch_withHeldBackTargets_shouldJournalThemAsDoneOnceCommitted() throws IOException {
+        List<File> sources = createSources(2);
+        File journalFile = new File(tempDir, "test.journal");
+        ConversionSettings settings = ConversionSettings.builder()
+            .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+            .setThreadCount(1)
+            .setSyncInterval(3)
+            .build();
+        ConversionEngine engine = new ConversionEngine(settings);
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, settings)) {
+            List<ConversionJournal.State> statesOnCompletion = new ArrayList<>();
+            engine.runBatch(engine.plan(sources, journal), journal,
+                            (srcFile, targetFile, outcome, timeSpent) -> statesOnCompletion.add(
+                                journal.getState(srcFile)),
+                            () -> false);
+
+            // Both were held back until the end of the batch, so neither was done when reported:
+            assertEquals(List.of(ConversionJournal.State.PENDING, ConversionJournal.State.PENDING),
+                         statesOnCompletion);
+            for (File srcFile : sources) {
+                assertEquals(ConversionJournal.State.DONE, journal.getState(srcFile));
+            }
+        }
+    }
+
+    @Test
+    void runBatch_withExistingTarget_shouldNotJournalItAsDone() throws IOException {
+        List<File> sources = createSources(1);
+        writeImage(PNG_SETTINGS.getTargetFile(sources.get(0)), "png");
+        File journalFile = new File(tempDir, "test.journal");
+        ConversionEngine engine = new ConversionEngine(PNG_SETTINGS);
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            BatchResult result = engine.runBatch(engine.plan(sources, journal), journal, null, () -> false);
+            assertEquals(1, result.getSkippedCount());
+            assertNotEquals(ConversionJournal.State.DONE, journal.getState(sources.get(0)));
+        }
+
+        // So that a later overwrite, or a journal-only resume, doesn't take a target we never wrote as ours:
+        try (ConversionJournal journal = ConversionJournal.open(journalFile, PNG_SETTINGS)) {
+            assertEquals(ConversionPlan.Action.SKIP,
+                         ConversionPlan.plan(sources.get(0), PNG_SETTINGS, journal).getAction());
+        }
+    }
+
+    private List<File> createSources(int count) throws IOException {
+        List<File> sources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File srcFile = new File(tempDir, "image" + i + ".jpg");
+            writeImage(srcFile, "jpg");
+            sources.add(srcFile);
+        }
+        return sources;
+    }
+
+    private static void writeImage(File file, String formatName) throws IOException {
+        BufferedImage image = new BufferedImage(32, 24, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 8) << 16 | (y * 10) << 8 | (x + y));
+            }
+        }
+        ImageIO.write(image, formatName, file);
+    }
+}
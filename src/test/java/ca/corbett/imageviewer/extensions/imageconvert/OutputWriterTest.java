@@ -0,0 +1,210 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputWriterTest {
+
+    private static final FileTime LAST_MODIFIED = FileTime.fromMillis(1_500_000_000_000L);
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void write_withEachSyncInterval_shouldLeaveOnlyTheTarget() throws IOException {
+        for (int syncInterval : new int[]{0, 1, 3}) {
+            File dir = new File(tempDir, "sync" + syncInterval);
+            assertTrue(dir.mkdir());
+            File targetFile = new File(dir, "out.png");
+            AtomicInteger committed = new AtomicInteger();
+            try (OutputWriter output = new OutputWriter(syncInterval)) {
+                output.write(new File(dir, "in.jpg"), targetFile, createBuffer(1000), LAST_MODIFIED,
+                             committed::incrementAndGet);
+            }
+
+            assertArrayEquals(createBuffer(1000).toByteArray(), Files.readAllBytes(targetFile.toPath()));
+            assertEquals(LAST_MODIFIED, Files.getLastModifiedTime(targetFile.toPath()));
+            assertEquals(1, committed.get());
+            assertEquals(List.of(targetFile.getName()), listNames(dir));
+        }
+    }
+
+    @Test
+    void write_withSyncInterval_shouldHoldBackTempFilesUntilFlush() throws IOException {
+        AtomicInteger committed = new AtomicInteger();
+        OutputWriter output = new OutputWriter(3);
+        output.write(new File(tempDir, "a.jpg"), new File(tempDir, "a.png"), createBuffer(10), null,
+                     committed::incrementAndGet);
+        output.write(new File(tempDir, "b.jpg"), new File(tempDir, "b.png"), createBuffer(20), null,
+                     committed::incrementAndGet);
+
+        // Nothing is in place yet, only hidden temp files:
+        assertEquals(0, committed.get());
+        List<String> names = listNames(tempDir);
+        assertEquals(2, names.size());
+        for (String name : names) {
+            assertTrue(name.startsWith(".") && name.endsWith(OutputWriter.TEMP_SUFFIX), name);
+        }
+
+        output.flush();
+        assertEquals(2, committed.get());
+        assertEquals(List.of("a.png", "b.png"), listNames(tempDir));
+        assertEquals(20, new File(tempDir, "b.png").length());
+    }
+
+    @Test
+    void write_withSyncInterval_shouldCommitEveryNthFile() throws IOException {
+        OutputWriter output = new OutputWriter(2);
+        output.write(new File(tempDir, "a.jpg"), new File(tempDir, "a.png"), createBuffer(10), null, null);
+        assertFalse(new File(tempDir, "a.png").exists());
+        output.write(new File(tempDir, "b.jpg"), new File(tempDir, "b.png"), createBuffer(10), null, null);
+        assertEquals(List.of("a.png", "b.png"), listNames(tempDir));
+    }
+
+    @Test
+    void write_withUnwritableTarget_shouldThrowAndLeaveNothing() {
+        File targetFile = new File(tempDir, "missing/out.png");
+        OutputWriter output = new OutputWriter(1);
+        assertThrows(IOException.class,
+                     () -> output.write(new File(tempDir, "in.jpg"), targetFile, createBuffer(10), null, null));
+        assertEquals(List.of(), listNames(tempDir));
+    }
+
+    @Test
+    void write_withFailedMove_shouldThrowToItsOwnCaller() throws IOException {
+        File targetFile = createNonEmptyDirectory("out.png");
+        AtomicInteger committed = new AtomicInteger();
+        OutputWriter output = new OutputWriter(1);
+        assertThrows(IOException.class, () -> output.write(new File(tempDir, "in.jpg"), targetFile,
+                                                           createBuffer(10), null, committed::incrementAndGet));
+        assertEquals(0, committed.get());
+        assertEquals(List.of("out.png"), listNames(tempDir));
+    }
+
+    @Test
+    void flush_withFailedMove_shouldReportHeldBackFile() throws IOException {
+        File badTarget = createNonEmptyDirectory("bad.png");
+        List<File> failedSources = new ArrayList<>();
+        AtomicInteger committed = new AtomicInteger();
+        OutputWriter output = new OutputWriter(5, new ConversionListener() {
+            @Override
+            public void fileCompleted(File srcFile, File targetFile, ConversionEngine.OperationOutcome outcome,
+                                      long timeSpent) {
+            }
+
+            @Override
+            public void commitFailed(File srcFile, File targetFile) {
+                failedSources.add(srcFile);
+            }
+        });
+        File badSource = new File(tempDir, "bad.jpg");
+        output.write(badSource, badTarget, createBuffer(10), null, committed::incrementAndGet);
+        output.write(new File(tempDir, "good.jpg"), new File(tempDir, "good.png"), createBuffer(10), null,
+                     committed::incrementAndGet);
+
+        // The write calls have returned, so the failure can only be reported to the listener:
+        assertThrows(IOException.class, output::flush);
+        assertEquals(List.of(badSource), failedSources);
+        assertEquals(1, committed.get());
+        assertEquals(List.of("bad.png", "good.png"), listNames(tempDir));
+    }
+
+    @Test
+    void runBatch_withFailedHeldBackMove_shouldCountItAsAProblem() throws IOException {
+        runBatchWithFailedMove(new File(tempDir, "pool"), false);
+        runBatchWithFailedMove(new File(tempDir, "pipeline"), true);
+    }
+
+    private void runBatchWithFailedMove(File dir, boolean pipelined) throws IOException {
+        assertTrue(dir.mkdir());
+        List<File> sources = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File srcFile = new File(dir, "image" + i + ".jpg");
+            ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB), "jpg", srcFile);
+            sources.add(srcFile);
+        }
+        // Overwritten files are converted as usual, but this one can't be renamed into place:
+        createNonEmptyDirectory(new File(dir, "image2.png"));
+
+        ConversionSettings settings = ConversionSettings.builder()
+                                                        .setOutputFormat(ConversionSettings.OutputFormat.PNG)
+                                                        .setOverwriteIfExists(true)
+                                                        .setDeleteOriginal(true)
+                                                        .setSyncInterval(10)
+                                                        .setPipelined(pipelined)
+                                                        .build();
+        ConversionEngine engine = new ConversionEngine(settings);
+        List<File> failedSources = new ArrayList<>();
+        BatchResult result;
+        try (ConversionJournal journal = ConversionJournal.open(new File(dir, "test.journal"), settings)) {
+            result = engine.runBatch(engine.plan(sources, journal), journal, new ConversionListener() {
+                @Override
+                public void fileCompleted(File srcFile, File targetFile, ConversionEngine.OperationOutcome outcome,
+                                          long timeSpent) {
+                }
+
+                @Override
+                public void commitFailed(File srcFile, File targetFile) {
+                    failedSources.add(srcFile);
+                }
+            }, () -> false);
+            assertEquals(List.of(sources.get(2).getAbsoluteFile()), journal.getFailedFiles());
+        }
+
+        assertEquals(4, result.getProcessedCount());
+        assertEquals(3, result.getConvertedCount());
+        assertEquals(1, result.getProblemCount());
+        assertEquals(3, result.getMetrics().getImagesConverted());
+        assertEquals(1, result.getMetrics().getImagesFailed());
+        assertEquals(List.of(sources.get(2)), failedSources);
+
+        // Only the sources whose targets made it into place are removed:
+        assertTrue(sources.get(2).exists());
+        assertFalse(sources.get(0).exists());
+    }
+
+    private File createNonEmptyDirectory(String name) throws IOException {
+        return createNonEmptyDirectory(new File(tempDir, name));
+    }
+
+    private static File createNonEmptyDirectory(File dir) throws IOException {
+        assertTrue(dir.mkdir());
+        Files.writeString(new File(dir, "keep").toPath(), "keep");
+        return dir;
+    }
+
+    private static OutputBuffer createBuffer(int size) {
+        OutputBuffer buffer = new OutputBuffer(size);
+        for (int i = 0; i < size; i++) {
+            buffer.write(i * 7);
+        }
+        return buffer;
+    }
+
+    private static List<String> listNames(File dir) {
+        List<String> names = new ArrayList<>();
+        for (File file : dir.listFiles()) {
+            if (!file.getName().endsWith(".journal")) {
+                names.add(file.getName());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+}
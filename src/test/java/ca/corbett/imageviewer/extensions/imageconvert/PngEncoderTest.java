@@ -0,0 +1,120 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PngEncoderTest {
+
+    /**
+     * Every type canEncode() accepts: RGB and RGBA in both int and byte layouts, and gray.
+     */
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY};
+
+    private static final int THREADS = 4;
+
+    @Test
+    void encode_everyTypeAndLevel_shouldRoundTripExactly() throws IOException {
+        for (ConversionSettings.PngCompression compression : ConversionSettings.PngCompression.values()) {
+            try (PngEncoder singleThreaded = new PngEncoder(compression, 1);
+                 PngEncoder multiThreaded = new PngEncoder(compression, THREADS)) {
+                for (int type : TYPES) {
+                    // Big enough to be split into several blocks, with an odd width to catch row alignment slips:
+                    BufferedImage image = createImage(701, 411, type);
+                    String description = compression + ", type " + type;
+
+                    byte[] single = encode(singleThreaded, image);
+                    assertSamePixels(image, decode(single), description);
+                    byte[] multi = encode(multiThreaded, image);
+                    assertArrayEquals(single, multi, description + ": output differs across thread counts");
+                }
+            }
+        }
+    }
+
+    @Test
+    void encode_tinyImages_shouldRoundTripExactly() throws IOException {
+        try (PngEncoder encoder = new PngEncoder(ConversionSettings.PngCompression.SMALL, THREADS)) {
+            for (int type : TYPES) {
+                for (int[] size : new int[][]{{1, 1}, {1, 50}, {50, 1}}) {
+                    BufferedImage image = createImage(size[0], size[1], type);
+                    assertSamePixels(image, decode(encode(encoder, image)), size[0] + "x" + size[1] + " type " + type);
+                }
+            }
+        }
+    }
+
+    @Test
+    void encode_unsupportedType_shouldThrow() {
+        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_USHORT_GRAY);
+        assertFalse(PngEncoder.canEncode(image));
+        try (PngEncoder encoder = new PngEncoder(ConversionSettings.PngCompression.FAST, 1)) {
+            assertThrows(IOException.class, () -> encoder.encode(image, new ByteArrayOutputStream()));
+        }
+    }
+
+    /**
+     * Creates an image that is partly smooth and partly noise, so that every filter gets used
+     * by the adaptive level, with alpha (where there is any) varying across the image.
+     */
+    private static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31L + height + type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb;
+                if ((x / 64 + y / 64) % 2 == 0) {
+                    argb = random.nextInt();
+                }
+                else {
+                    argb = ((x + y) & 0xff) << 24 | (x & 0xff) << 16 | (y & 0xff) << 8 | ((x * y) & 0xff);
+                }
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(PngEncoder encoder, BufferedImage image) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        encoder.encode(image, outStream);
+        return outStream.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        assertNotNull(image, "ImageIO couldn't read the encoded image");
+        return image;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual, String description) {
+        assertEquals(expected.getWidth(), actual.getWidth(), description);
+        assertEquals(expected.getHeight(), actual.getHeight(), description);
+        assertEquals(expected.getColorModel().hasAlpha(), actual.getColorModel().hasAlpha(), description);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                    // Compare the stored levels, since getRGB() converts gray through a linear color space:
+                    assertEquals(expected.getRaster().getSample(x, y, 0), actual.getRaster().getSample(x, y, 0),
+                                 description + " at " + x + "," + y);
+                }
+                else {
+                    assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), description + " at " + x + "," + y);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks RgbConverter against the drawImage() fallback it replaces. Opaque images must match it
+ * exactly; compositing onto the matte may round differently, by at most one level per channel.
+ */
+class RgbConverterTest {
+
+    private static final Color MATTE = new Color(0x30, 0x80, 0xd0);
+    private static final int WIDTH = 67;
+    private static final int HEIGHT = 45;
+
+    @Test
+    void convert_opaqueImages_shouldMatchDrawImageExactly() {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_USHORT_555_RGB, BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_BYTE_BINARY, BufferedImage.TYPE_BYTE_INDEXED};
+        for (int type : types) {
+            BufferedImage src = new BufferedImage(WIDTH, HEIGHT, type);
+            fillRandom(src);
+            assertEquals(0, getMaxDifference(convert(src), drawImage(src)), "type " + type);
+        }
+    }
+
+    @Test
+    void convert_translucentImages_shouldMatchDrawImage() {
+        int[] types = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_4BYTE_ABGR_PRE, BufferedImage.TYPE_USHORT_GRAY};
+        for (int type : types) {
+            BufferedImage src = new BufferedImage(WIDTH, HEIGHT, type);
+            fillRandom(src);
+            assertTrue(getMaxDifference(convert(src), drawImage(src)) <= 1, "type " + type);
+        }
+    }
+
+    @Test
+    void convert_sixteenBitRgba_shouldMatchDrawImage() {
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+                                                        Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        BufferedImage src = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(WIDTH, HEIGHT),
+                                              false, null);
+        fillRandom(src);
+        assertTrue(getMaxDifference(convert(src), drawImage(src)) <= 1);
+    }
+
+    @Test
+    void convert_indexedWithTransparency_shouldMatchDrawImage() {
+        Random random = new Random(3);
+        byte[] reds = new byte[16];
+        byte[] greens = new byte[16];
+        byte[] blues = new byte[16];
+        byte[] alphas = new byte[16];
+        random.nextBytes(reds);
+        random.nextBytes(greens);
+        random.nextBytes(blues);
+        random.nextBytes(alphas);
+        alphas[0] = 0;
+        IndexColorModel colorModel = new IndexColorModel(4, 16, reds, greens, blues, alphas);
+        BufferedImage src = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+        fillRandom(src);
+        assertTrue(getMaxDifference(convert(src), drawImage(src)) <= 1);
+    }
+
+    @Test
+    void convert_grayWithAlpha_shouldCopyGrayLevelsAsIs() {
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), true, false,
+                                                        Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+        BufferedImage src = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(WIDTH, HEIGHT),
+                                              false, null);
+        fillRandom(src);
+
+        // Java2D would treat these gray levels as linear, so draw them as sRGB gray instead:
+        BufferedImage expanded = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int gray = src.getRaster().getSample(x, y, 0);
+                int alpha = src.getRaster().getSample(x, y, 1);
+                expanded.setRGB(x, y, (alpha << 24) | (gray << 16) | (gray << 8) | gray);
+            }
+        }
+        assertTrue(getMaxDifference(convert(src), drawImage(expanded)) <= 1);
+    }
+
+    @Test
+    void convert_fullyTransparentPixels_shouldBecomeMatte() {
+        BufferedImage src = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        src.setRGB(1, 1, 0xff123456);
+        BufferedImage dest = convert(src);
+        assertEquals(MATTE.getRGB() & 0xffffff, dest.getRGB(0, 0) & 0xffffff);
+        assertEquals(0x123456, dest.getRGB(1, 1) & 0xffffff);
+    }
+
+    @Test
+    void convert_withWrongSizeDestination_shouldThrow() {
+        BufferedImage src = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage dest = new BufferedImage(WIDTH + 1, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        assertThrows(IllegalArgumentException.class, () -> RgbConverter.convert(src, dest, MATTE));
+    }
+
+    @Test
+    void isRgb_shouldOnlyAcceptOpaqueEightBitRgb() {
+        assertTrue(RgbConverter.isRgb(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)));
+        assertTrue(RgbConverter.isRgb(new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR)));
+        assertFalse(RgbConverter.isRgb(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB)));
+        assertFalse(RgbConverter.isRgb(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    private static BufferedImage convert(BufferedImage src) {
+        BufferedImage dest = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        RgbConverter.convert(src, dest, MATTE);
+        return dest;
+    }
+
+    private static BufferedImage drawImage(BufferedImage src) {
+        BufferedImage dest = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = dest.createGraphics();
+        graphics.drawImage(src, 0, 0, MATTE, null);
+        graphics.dispose();
+        return dest;
+    }
+
+    /**
+     * Fills every band of the given image with random samples. Premultiplied color samples are
+     * kept no bigger than their alpha, as anything else isn't a valid pixel.
+     */
+    private static void fillRandom(BufferedImage image) {
+        Random random = new Random(image.getType());
+        WritableRaster raster = image.getRaster();
+        int bands = raster.getNumBands();
+        for (int y = 0; y < raster.getHeight(); y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                for (int band = 0; band < bands; band++) {
+                    raster.setSample(x, y, band, random.nextInt(1 << raster.getSampleModel().getSampleSize(band)));
+                }
+                if (image.isAlphaPremultiplied()) {
+                    int alpha = raster.getSample(x, y, bands - 1);
+                    for (int band = 0; band < bands - 1; band++) {
+                        raster.setSample(x, y, band, Math.min(alpha, raster.getSample(x, y, band)));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int getMaxDifference(BufferedImage first, BufferedImage second) {
+        int maxDifference = 0;
+        for (int y = 0; y < first.getHeight(); y++) {
+            for (int x = 0; x < first.getWidth(); x++) {
+                int firstRgb = first.getRGB(x, y);
+                int secondRgb = second.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((firstRgb >> shift) & 0xff) - ((secondRgb >> shift) & 0xff));
+                    maxDifference = Math.max(maxDifference, difference);
+                }
+            }
+        }
+        return maxDifference;
+    }
+}
@@ -0,0 +1,87 @@
+package ca.corbett.imageviewer.extensions.imageconvert;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SizedJpegEncoderTest {
+
+    @Test
+    void encode_withReachableTarget_shouldComeInUnderIt() throws IOException {
+        BufferedImage image = createImage();
+        long targetBytes = encodeAt(image, 0.5f).length;
+        try (CodecPool codecs = new CodecPool(createEngine(targetBytes), 3)) {
+            SizedJpegEncoder encoder = codecs.getSizedJpegEncoder();
+            OutputBuffer encoded = new OutputBuffer(1024);
+            encoder.encode(image, encoded);
+            assertTrue(encoded.size() <= targetBytes, encoded.size() + " is over " + targetBytes);
+            // Within the search tolerance of the quality that hits the target exactly:
+            assertTrue(encoded.size() >= encodeAt(image, 0.48f).length, "quality came out too low");
+        }
+    }
+
+    @Test
+    void encode_withUnreachableTarget_shouldReuseTheLowestQualityTrial() throws IOException {
+        BufferedImage image = createImage();
+        for (int threads : new int[]{1, 3}) {
+            try (CodecPool codecs = new CodecPool(createEngine(100), threads)) {
+                SizedJpegEncoder encoder = codecs.getSizedJpegEncoder();
+                OutputBuffer encoded = new OutputBuffer(1024);
+                encoder.encode(image, encoded);
+                assertArrayEquals(encodeAt(image, SizedJpegEncoder.MIN_QUALITY), encoded.toByteArray());
+
+                // With nothing cached, the first round spreads out from MIN_QUALITY to the top, and
+                // once MIN_QUALITY is too big there is nothing left to try, or to encode again:
+                assertEquals(3, encoder.getTrialCount(), threads + " threads");
+            }
+        }
+    }
+
+    private static ConversionEngine createEngine(long targetBytes) {
+        return new ConversionEngine(ConversionSettings.builder()
+                                                      .setOutputFormat(ConversionSettings.OutputFormat.JPEG)
+                                                      .setJpegQuality(0.9f)
+                                                      .setJpegTargetBytes(targetBytes)
+                                                      .build());
+    }
+
+    private static BufferedImage createImage() {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(5);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x << 16) | (y << 8) | random.nextInt(64));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encodeAt(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutStream = new MemoryCacheImageOutputStream(outStream)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(imageOutStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+        return outStream.toByteArray();
+    }
+}